@@ -0,0 +1,113 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.LabeledOffsetImageServer;
+import qupath.lib.objects.classes.PathClass;
+
+/**
+ * Encodes a tile and converts it to base64, as done for every tile of a JSON request.
+ * <p>
+ * {@code imageio} is the original {@code base64Encode}, which writes a PNG with the default settings of
+ * {@link ImageIO}; the other encoders are those of {@link CellsparseImageEncoder}. The image tile is RGB noise over
+ * a gradient, which compresses about as badly as a real image; the label tile is rendered from a synthetic
+ * hierarchy.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class Base64EncodeBenchmark {
+
+	private static final int TILE_SIZE = 512;
+
+	@Param({"imageio", "png1", "png4", "png9", "raw"})
+	public String encoder;
+
+	@Param({"image", "label"})
+	public String tile;
+
+	private BufferedImage image;
+	private CellsparseImageEncoder imageEncoder;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		image = "image".equals(tile) ? createImageTile() : createLabelTile();
+		switch (encoder) {
+		case "imageio":
+			imageEncoder = null;
+			break;
+		case "raw":
+			imageEncoder = CellsparseImageEncoder.raw();
+			break;
+		default:
+			imageEncoder = CellsparseImageEncoder.png(Integer.parseInt(encoder.substring(3)));
+		}
+	}
+
+	private static BufferedImage createImageTile() {
+		final BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_RGB);
+		final Random random = new Random(42);
+		for (int y = 0; y < TILE_SIZE; y++) {
+			for (int x = 0; x < TILE_SIZE; x++) {
+				final int base = (x + y) * 255 / (2 * TILE_SIZE);
+				final int r = Math.min(255, base + random.nextInt(32));
+				final int g = Math.min(255, base / 2 + random.nextInt(32));
+				final int b = Math.min(255, 255 - base + random.nextInt(32));
+				img.setRGB(x, y, (r << 16) | (g << 8) | b);
+			}
+		}
+		return img;
+	}
+
+	private static BufferedImage createLabelTile() throws IOException {
+		final ImageData<BufferedImage> imageData = BenchmarkData.createImageData(10_000);
+		final PathClass foregroundClass = PathClass.getInstance("Foreground");
+		final LabeledOffsetImageServer labelServer = new LabeledOffsetImageServer.Builder(imageData)
+				.useFilter(pathObject -> pathObject.getPathClass() == foregroundClass)
+				.addBaseLabel("Background", 1)
+				.grayscale()
+				.useInstanceLabels()
+				.offset(1)
+				.build();
+		return labelServer.readRegion(1.0, 0, 0, TILE_SIZE, TILE_SIZE);
+	}
+
+	@Benchmark
+	public String base64Encode() throws IOException {
+		final byte[] bytes;
+		if (imageEncoder == null) {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ImageIO.write(image, "png", baos);
+			bytes = baos.toByteArray();
+		}
+		else {
+			bytes = imageEncoder.encode(image);
+		}
+		return Base64.getEncoder().encodeToString(bytes);
+	}
+
+}
@@ -0,0 +1,154 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.AbstractTileableImageServer;
+import qupath.lib.images.servers.ImageServerBuilder.ServerBuilder;
+import qupath.lib.images.servers.ImageServerMetadata;
+import qupath.lib.images.servers.TileRequest;
+import qupath.lib.images.servers.WrappedBufferedImageServer;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Synthetic images and hierarchies for the benchmarks.
+ * <p>
+ * Cells are octagons on a regular grid, so that the density, and therefore the number of objects per tile, does not
+ * depend on the number of objects. Every cell is a {@code Foreground} annotation; every other block of
+ * {@value #BLOCK} x {@value #BLOCK} cells is also covered by a {@code Background} annotation, as in a sparsely
+ * annotated training image.
+ */
+public class BenchmarkData {
+
+	/**
+	 * Distance between the centres of neighbouring cells, in pixels.
+	 */
+	public static final int SPACING = 20;
+
+	/**
+	 * Radius of a cell, in pixels.
+	 */
+	public static final double RADIUS = 7;
+
+	/**
+	 * Number of cells along each side of a background block.
+	 */
+	public static final int BLOCK = 10;
+
+	private BenchmarkData() {}
+
+	/**
+	 * @param nObjects number of cells
+	 * @return the size of the square image that holds the cells
+	 */
+	public static int getImageSize(final int nObjects) {
+		return (int) Math.ceil(Math.sqrt(nObjects)) * SPACING;
+	}
+
+	/**
+	 * @param nObjects number of cells
+	 * @return an image of blank pixels whose hierarchy holds the cells and background blocks
+	 */
+	public static ImageData<BufferedImage> createImageData(final int nObjects) {
+		final int size = getImageSize(nObjects);
+		final PathObjectHierarchy hierarchy = new PathObjectHierarchy();
+		final List<PathObject> pathObjects = new ArrayList<>(createCells(nObjects, PathClass.getInstance("Foreground")));
+		final PathClass backgroundClass = PathClass.getInstance("Background");
+		final int blockSize = BLOCK * SPACING;
+		for (int y = 0; y < size; y += blockSize) {
+			for (int x = 0; x < size; x += blockSize) {
+				if ((x / blockSize + y / blockSize) % 2 != 0)
+					continue;
+				pathObjects.add(PathObjects.createAnnotationObject(
+						ROIs.createRectangleROI(x, y, Math.min(blockSize, size - x), Math.min(blockSize, size - y), ImagePlane.getDefaultPlane()),
+						backgroundClass));
+			}
+		}
+		hierarchy.addObjects(pathObjects);
+		return new ImageData<>(new BlankImageServer(size, size), hierarchy, ImageData.ImageType.FLUORESCENCE);
+	}
+
+	/**
+	 * @param nObjects
+	 * @param pathClass the class of the cells, or null for results
+	 * @return octagonal annotations on a grid, row by row
+	 */
+	public static List<PathObject> createCells(final int nObjects, final PathClass pathClass) {
+		final int columns = (int) Math.ceil(Math.sqrt(nObjects));
+		final List<PathObject> cells = new ArrayList<>(nObjects);
+		final double[] xs = new double[8];
+		final double[] ys = new double[8];
+		for (int i = 0; i < nObjects; i++) {
+			final double cx = (i % columns + 0.5) * SPACING;
+			final double cy = (i / columns + 0.5) * SPACING;
+			for (int v = 0; v < 8; v++) {
+				xs[v] = cx + RADIUS * Math.cos(v * Math.PI / 4);
+				ys[v] = cy + RADIUS * Math.sin(v * Math.PI / 4);
+			}
+			cells.add(PathObjects.createAnnotationObject(
+					ROIs.createPolygonROI(xs, ys, ImagePlane.getDefaultPlane()), pathClass));
+		}
+		return cells;
+	}
+
+	/**
+	 * An 8-bit single-channel image of a given size whose pixels are never read.
+	 */
+	private static class BlankImageServer extends AbstractTileableImageServer {
+
+		private final ImageServerMetadata metadata;
+
+		private BlankImageServer(final int width, final int height) {
+			super();
+			final BufferedImage pixel = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+			this.metadata = new ImageServerMetadata.Builder(new WrappedBufferedImageServer("blank", pixel).getMetadata())
+					.width(width)
+					.height(height)
+					.preferredTileSize(512, 512)
+					.build();
+		}
+
+		@Override
+		protected BufferedImage readTile(final TileRequest tileRequest) {
+			return new BufferedImage(tileRequest.getTileWidth(), tileRequest.getTileHeight(), BufferedImage.TYPE_BYTE_GRAY);
+		}
+
+		@Override
+		protected ServerBuilder<BufferedImage> createServerBuilder() {
+			return null;
+		}
+
+		@Override
+		protected String createID() {
+			return UUID.randomUUID().toString();
+		}
+
+		@Override
+		public Collection<URI> getURIs() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public String getServerType() {
+			return "Blank image";
+		}
+
+		@Override
+		public ImageServerMetadata getOriginalMetadata() {
+			return metadata;
+		}
+
+	}
+
+}
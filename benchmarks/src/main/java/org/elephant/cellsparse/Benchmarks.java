@@ -0,0 +1,27 @@
+package org.elephant.cellsparse;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocation rate is reported with the throughput.
+ * <p>
+ * Accepts the same arguments as the JMH launcher, e.g. a regular expression selecting benchmarks or
+ * {@code -p objects=1000,10000} to restrict the parameters.
+ */
+public class Benchmarks {
+
+	public static void main(final String[] args) throws RunnerException, CommandLineOptionException {
+		final Options options = new OptionsBuilder()
+				.parent(new CommandLineOptions(args))
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+
+}
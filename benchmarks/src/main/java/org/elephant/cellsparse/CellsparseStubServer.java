@@ -0,0 +1,447 @@
+package org.elephant.cellsparse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import qupath.lib.io.GsonTools;
+
+/**
+ * A Cellsparse API server that runs in the JVM and answers without a model.
+ * <p>
+ * It serves {@code /stardist/}, {@code /cellpose/} and {@code /elephant/} with their {@code reset/} and
+ * {@code capabilities/} resources. Training and inference requests are read completely, then answered after the
+ * configured latency with a fixed GeoJSON response of {@code responseObjects} cells, or with 503 Service
+ * Unavailable at the configured error rate. The server reports the JSON and frame formats, gzip-compressed
+ * requests and raw tile encoding, so that requests are built as for a current server.
+ * <p>
+ * With {@link Builder#trainingJobs(boolean)}, the server also reports training jobs. Training requests sent with
+ * {@code Prefer: respond-async} are answered with 202 Accepted and the {@code Location} of a job under
+ * {@code jobs/}. The job runs for the configured latency and reports {@code jobEvents} progress events, then a
+ * {@code done} event, or an {@code error} event at the configured error rate, at {@code <job>/events}. The event
+ * stream resumes after the {@code Last-Event-ID} of the request, and can be closed after a number of events to
+ * make clients reconnect. The result is served at {@code <job>/result} once the job is done, and {@code DELETE}
+ * removes the job.
+ */
+public class CellsparseStubServer implements AutoCloseable {
+
+	static final List<String> ALGORITHMS = List.of("stardist", "cellpose", "elephant");
+
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final int latency;
+	private final int latencyJitter;
+	private final double errorRate;
+	private final byte[] response;
+	private final byte[] capabilities;
+	private final boolean trainingJobs;
+	private final int jobEvents;
+	private final int eventStreamLimit;
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong jobsStarted = new AtomicLong();
+	private final AtomicLong jobsDeleted = new AtomicLong();
+	private final AtomicLong eventStreams = new AtomicLong();
+	private final AtomicLong resumedEventStreams = new AtomicLong();
+
+	private CellsparseStubServer(final Builder builder) throws IOException {
+		this.latency = builder.latency;
+		this.latencyJitter = builder.latencyJitter;
+		this.errorRate = builder.errorRate;
+		this.trainingJobs = builder.trainingJobs;
+		this.jobEvents = builder.jobEvents;
+		this.eventStreamLimit = builder.eventStreamLimit;
+		this.capabilities = ("{\"formats\":[\"" + CellsparseCapabilities.FORMAT_JSON + "\",\""
+				+ CellsparseCapabilities.FORMAT_FRAME + "\"],\"features\":[\"" + CellsparseCapabilities.FEATURE_GZIP_REQUESTS
+				+ "\",\"" + CellsparseCapabilities.FEATURE_RAW_ENCODING
+				+ (trainingJobs ? "\",\"" + CellsparseCapabilities.FEATURE_TRAINING_JOBS : "") + "\"]}").getBytes(StandardCharsets.UTF_8);
+		this.response = GsonTools.getInstance()
+				.toJson(BenchmarkData.createCells(builder.responseObjects, null))
+				.getBytes(StandardCharsets.UTF_8);
+		this.executor = Executors.newFixedThreadPool(builder.threads, r -> {
+			final Thread thread = new Thread(r, "cellsparse-stub-server");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), builder.port), 0);
+		for (final String algorithm : ALGORITHMS)
+			server.createContext("/" + algorithm + "/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * @param algorithm one of {@code stardist}, {@code cellpose} and {@code elephant}
+	 * @return the endpoint URL of the algorithm, with a trailing slash
+	 */
+	public String getEndpointURL(final String algorithm) {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/" + algorithm + "/";
+	}
+
+	/**
+	 * @return the number of training and inference requests received
+	 */
+	public long getRequests() {
+		return requests.get();
+	}
+
+	/**
+	 * @return the number of requests answered with an error
+	 */
+	public long getErrors() {
+		return errors.get();
+	}
+
+	/**
+	 * @return the number of request body bytes received
+	 */
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+
+	/**
+	 * @return the size of the response to each successful request
+	 */
+	public int getResponseSize() {
+		return response.length;
+	}
+
+	/**
+	 * @return the number of training jobs started
+	 */
+	public long getJobsStarted() {
+		return jobsStarted.get();
+	}
+
+	/**
+	 * @return the number of training jobs deleted by clients
+	 */
+	public long getJobsDeleted() {
+		return jobsDeleted.get();
+	}
+
+	/**
+	 * @return the number of event streams opened
+	 */
+	public long getEventStreams() {
+		return eventStreams.get();
+	}
+
+	/**
+	 * @return the number of event streams opened with a {@code Last-Event-ID}
+	 */
+	public long getResumedEventStreams() {
+		return resumedEventStreams.get();
+	}
+
+	private void handle(final HttpExchange exchange) throws IOException {
+		try {
+			final String path = exchange.getRequestURI().getPath();
+			bytesReceived.addAndGet(drain(exchange.getRequestBody()));
+			if (path.endsWith("/capabilities/")) {
+				send(exchange, 200, capabilities);
+				return;
+			}
+			if (path.endsWith("/reset/")) {
+				send(exchange, 200, "{}".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			if (trainingJobs && path.contains("/jobs/")) {
+				handleJob(exchange, path);
+				return;
+			}
+			if (!"POST".equals(exchange.getRequestMethod()) || path.chars().filter(c -> c == '/').count() != 2) {
+				send(exchange, 404, new byte[0]);
+				return;
+			}
+			requests.incrementAndGet();
+			final String prefer = exchange.getRequestHeaders().getFirst("Prefer");
+			if (trainingJobs && prefer != null && prefer.contains(CellsparseTrainingJob.PREFER_ASYNC)) {
+				final String id = Long.toString(jobsStarted.incrementAndGet());
+				final boolean fails = errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+				jobs.put(id, new Job(latency + (latencyJitter > 0 ? ThreadLocalRandom.current().nextInt(latencyJitter + 1) : 0), fails));
+				exchange.getResponseHeaders().add("Location", "jobs/" + id + "/");
+				send(exchange, 202, new byte[0]);
+				return;
+			}
+			sleep(latency + (latencyJitter > 0 ? ThreadLocalRandom.current().nextInt(latencyJitter + 1) : 0));
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				errors.incrementAndGet();
+				send(exchange, 503, "Stub server error".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			send(exchange, 200, response);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * Serve {@code jobs/<id>/}, {@code jobs/<id>/events} and {@code jobs/<id>/result}.
+	 */
+	private void handleJob(final HttpExchange exchange, final String path) throws IOException {
+		final String[] parts = path.substring(path.indexOf("/jobs/") + "/jobs/".length()).split("/");
+		final Job job = jobs.get(parts[0]);
+		if (job == null) {
+			send(exchange, 404, new byte[0]);
+			return;
+		}
+		final String resource = parts.length > 1 ? parts[1] : "";
+		final String method = exchange.getRequestMethod();
+		if (resource.isEmpty() && "DELETE".equals(method)) {
+			jobs.remove(parts[0]);
+			job.deleted = true;
+			jobsDeleted.incrementAndGet();
+			send(exchange, 204, new byte[0]);
+		} else if (resource.equals("events") && "GET".equals(method)) {
+			sendEvents(exchange, job);
+		} else if (resource.equals("result") && "GET".equals(method)) {
+			if (job.fails || System.nanoTime() < job.getDueTime(jobEvents + 1))
+				send(exchange, 409, "Training job has no result".getBytes(StandardCharsets.UTF_8));
+			else
+				send(exchange, 200, response);
+		} else {
+			send(exchange, 404, new byte[0]);
+		}
+	}
+
+	/**
+	 * Send the events of a job after the {@code Last-Event-ID} of the request, each once it is due.
+	 */
+	private void sendEvents(final HttpExchange exchange, final Job job) throws IOException {
+		eventStreams.incrementAndGet();
+		final String lastEventId = exchange.getRequestHeaders().getFirst("Last-Event-ID");
+		if (lastEventId != null)
+			resumedEventStreams.incrementAndGet();
+		exchange.getResponseHeaders().add("Content-Type", "text/event-stream");
+		exchange.sendResponseHeaders(200, 0);
+		try (OutputStream stream = exchange.getResponseBody()) {
+			int sent = 0;
+			for (int id = lastEventId == null ? 1 : Integer.parseInt(lastEventId) + 1; id <= jobEvents + 1; id++) {
+				// Like a proxy that closes long-lived connections
+				if (eventStreamLimit > 0 && sent == eventStreamLimit)
+					return;
+				sleep((int) ((job.getDueTime(id) - System.nanoTime()) / 1_000_000));
+				if (job.deleted)
+					return;
+				final String event;
+				if (id <= jobEvents) {
+					event = "event: progress\ndata: {\"epoch\":1,\"epochs\":1,\"step\":" + id + ",\"steps\":" + jobEvents
+							+ ",\"loss\":" + (1.0 / id) + "}\n";
+				} else if (job.fails) {
+					errors.incrementAndGet();
+					event = "event: error\ndata: Stub server error\n";
+				} else {
+					event = "event: done\ndata:\n";
+				}
+				stream.write(("id: " + id + "\n" + event + "\n").getBytes(StandardCharsets.UTF_8));
+				stream.flush();
+				sent++;
+			}
+		}
+	}
+
+	private static long drain(final InputStream stream) throws IOException {
+		final byte[] buffer = new byte[64 * 1024];
+		long count = 0;
+		int n;
+		while ((n = stream.read(buffer)) >= 0)
+			count += n;
+		return count;
+	}
+
+	private static void send(final HttpExchange exchange, final int status, final byte[] body) throws IOException {
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		if (body.length > 0) {
+			try (OutputStream stream = exchange.getResponseBody()) {
+				stream.write(body);
+			}
+		}
+	}
+
+	private static void sleep(final int millis) {
+		if (millis <= 0)
+			return;
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * A training job, whose events are spread evenly over its duration.
+	 */
+	private class Job {
+
+		private final long startTime = System.nanoTime();
+		private final long duration;
+		private final boolean fails;
+		private volatile boolean deleted = false;
+
+		/**
+		 * @param duration in milliseconds
+		 * @param fails whether the job ends with an error
+		 */
+		private Job(final int duration, final boolean fails) {
+			this.duration = duration * 1_000_000L;
+			this.fails = fails;
+		}
+
+		/**
+		 * @param id of an event, from 1 to {@code jobEvents + 1} for the last event
+		 * @return the time in nanoseconds at which the event is sent
+		 */
+		private long getDueTime(final int id) {
+			return startTime + duration * id / (jobEvents + 1);
+		}
+
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return a builder for a server on a free port without latency or errors
+	 */
+	public static Builder newBuilder() {
+		return new Builder();
+	}
+
+	public static class Builder {
+
+		private int port = 0;
+		private int latency = 0;
+		private int latencyJitter = 0;
+		private int responseObjects = 1000;
+		private double errorRate = 0;
+		private int threads = 64;
+		private boolean trainingJobs = false;
+		private int jobEvents = 10;
+		private int eventStreamLimit = 0;
+
+		private Builder() {}
+
+		/**
+		 * @param port 0 to use a free port
+		 * @return
+		 */
+		public Builder port(final int port) {
+			this.port = port;
+			return this;
+		}
+
+		/**
+		 * @param latency time in milliseconds between reading a request and answering it
+		 * @return
+		 */
+		public Builder latency(final int latency) {
+			if (latency < 0)
+				throw new IllegalArgumentException("Latency must not be negative! Requested " + latency);
+			this.latency = latency;
+			return this;
+		}
+
+		/**
+		 * @param latencyJitter maximum random time in milliseconds added to the latency
+		 * @return
+		 */
+		public Builder latencyJitter(final int latencyJitter) {
+			if (latencyJitter < 0)
+				throw new IllegalArgumentException("Latency jitter must not be negative! Requested " + latencyJitter);
+			this.latencyJitter = latencyJitter;
+			return this;
+		}
+
+		/**
+		 * @param responseObjects number of cells in each response, which sets the response size
+		 * @return
+		 */
+		public Builder responseObjects(final int responseObjects) {
+			if (responseObjects < 0)
+				throw new IllegalArgumentException("Response objects must not be negative! Requested " + responseObjects);
+			this.responseObjects = responseObjects;
+			return this;
+		}
+
+		/**
+		 * @param errorRate fraction of requests answered with 503, between 0 and 1
+		 * @return
+		 */
+		public Builder errorRate(final double errorRate) {
+			if (errorRate < 0 || errorRate > 1)
+				throw new IllegalArgumentException("Error rate must be between 0 and 1! Requested " + errorRate);
+			this.errorRate = errorRate;
+			return this;
+		}
+
+		/**
+		 * @param threads number of requests handled at the same time
+		 * @return
+		 */
+		public Builder threads(final int threads) {
+			if (threads < 1)
+				throw new IllegalArgumentException("Threads must be positive! Requested " + threads);
+			this.threads = threads;
+			return this;
+		}
+
+		/**
+		 * @param trainingJobs whether to report training jobs and run training requests sent with
+		 *                     {@code Prefer: respond-async} as jobs
+		 * @return
+		 */
+		public Builder trainingJobs(final boolean trainingJobs) {
+			this.trainingJobs = trainingJobs;
+			return this;
+		}
+
+		/**
+		 * @param jobEvents number of progress events of each training job
+		 * @return
+		 */
+		public Builder jobEvents(final int jobEvents) {
+			if (jobEvents < 0)
+				throw new IllegalArgumentException("Job events must not be negative! Requested " + jobEvents);
+			this.jobEvents = jobEvents;
+			return this;
+		}
+
+		/**
+		 * @param eventStreamLimit number of events after which an event stream is closed, 0 to keep it open until
+		 *                         the job ends
+		 * @return
+		 */
+		public Builder eventStreamLimit(final int eventStreamLimit) {
+			if (eventStreamLimit < 0)
+				throw new IllegalArgumentException("Event stream limit must not be negative! Requested " + eventStreamLimit);
+			this.eventStreamLimit = eventStreamLimit;
+			return this;
+		}
+
+		public CellsparseStubServer build() throws IOException {
+			return new CellsparseStubServer(this);
+		}
+
+	}
+
+}
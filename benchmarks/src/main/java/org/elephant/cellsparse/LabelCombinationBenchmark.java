@@ -0,0 +1,96 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ij.ImagePlus;
+import ij.plugin.ImageCalculator;
+import qupath.imagej.tools.IJTools;
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.LabeledImageServer;
+import qupath.lib.images.servers.LabeledOffsetImageServer;
+import qupath.lib.objects.classes.PathClass;
+
+/**
+ * Renders the training label of a region.
+ * <p>
+ * {@code max} is the original approach: background and foreground instance labels are rendered by two servers and
+ * combined with the ImageJ {@code Max} operation. {@code singlePass} is the current one, which paints the background
+ * as a base label under the instances with a single server. Servers are created for each operation, as they are
+ * for each command, which also keeps tiles from being served from the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class LabelCombinationBenchmark {
+
+	/**
+	 * Size of the rendered region, in pixels.
+	 */
+	private static final int REGION_SIZE = 1024;
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int objects;
+
+	private ImageData<BufferedImage> imageData;
+	private int x;
+	private int y;
+	private int size;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		imageData = BenchmarkData.createImageData(objects);
+		final int imageSize = imageData.getServer().getWidth();
+		size = Math.min(REGION_SIZE, imageSize);
+		x = (imageSize - size) / 2;
+		y = x;
+	}
+
+	@Benchmark
+	public BufferedImage max() throws IOException {
+		final LabeledImageServer bgLabelServer = new LabeledImageServer.Builder(imageData)
+				.backgroundLabel(0)
+				.addLabel("Background", 1)
+				.multichannelOutput(false)
+				.build();
+		final LabeledOffsetImageServer fgLabelServer = new LabeledOffsetImageServer.Builder(imageData)
+				.useFilter(pathObject -> pathObject.getPathClass() == PathClass.getInstance("Foreground"))
+				.useInstanceLabels()
+				.offset(1)
+				.build();
+		final ImagePlus bgImp = IJTools.convertToUncalibratedImagePlus("Background", bgLabelServer.readRegion(1.0, x, y, size, size));
+		final ImagePlus fgImp = IJTools.convertToUncalibratedImagePlus("Foreground", fgLabelServer.readRegion(1.0, x, y, size, size));
+		return new ImageCalculator().run("Max", bgImp, fgImp).getBufferedImage();
+	}
+
+	@Benchmark
+	public BufferedImage singlePass() throws IOException {
+		final PathClass foregroundClass = PathClass.getInstance("Foreground");
+		final LabeledOffsetImageServer labelServer = new LabeledOffsetImageServer.Builder(imageData)
+				.useFilter(pathObject -> pathObject.getPathClass() == foregroundClass)
+				.addBaseLabel("Background", 1)
+				.grayscale()
+				.useInstanceLabels()
+				.offset(1)
+				.build();
+		return labelServer.readRegion(1.0, x, y, size, size);
+	}
+
+}
@@ -0,0 +1,212 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import qupath.lib.images.ImageData;
+
+/**
+ * Drives the Cellsparse client headlessly against a {@link CellsparseStubServer} and reports its throughput.
+ * <p>
+ * For each image size and concurrency level, {@code concurrency} clients send {@code requests} training or
+ * inference requests in total through a {@link CellsparseClient}, each waiting for its previous request before
+ * sending the next one. Each scenario reports the requests and objects per second, latency percentiles, the heap
+ * high-water mark and the metrics summary of the client. The stub server runs in the same JVM, so the heap
+ * high-water mark includes its buffers.
+ * <p>
+ * Arguments are given as {@code --name=value}:
+ * <ul>
+ *   <li>{@code algorithm}: {@code stardist}, {@code cellpose} (default) or {@code elephant}</li>
+ *   <li>{@code sizes}: image sizes in pixels, default {@code 1024,4096}</li>
+ *   <li>{@code concurrency}: concurrency levels, default {@code 1,4,16}</li>
+ *   <li>{@code requests}: requests per scenario, default {@code 100}</li>
+ *   <li>{@code latency}, {@code jitter}: latency of the stub server and its random jitter in ms, default {@code 50}
+ *       and {@code 0}</li>
+ *   <li>{@code objects}: cells per response, default {@code 1000}</li>
+ *   <li>{@code error-rate}: fraction of requests answered with 503, default {@code 0}</li>
+ *   <li>{@code train}: send training instead of inference requests, default {@code false}</li>
+ *   <li>{@code tiled}: use tiled inference, default {@code false}</li>
+ *   <li>{@code binary}: use the binary frame format, default {@code true}</li>
+ * </ul>
+ */
+public class LoadHarness {
+
+	private final CellsparseStubServer server;
+	private final CellsparseClient client;
+	private final boolean train;
+	private final int requests;
+
+	private LoadHarness(final CellsparseStubServer server, final String algorithm, final CellsparseOptions options, final boolean train, final int requests) {
+		this.server = server;
+		this.client = CellsparseClient.newBuilder(server.getEndpointURL(algorithm)).options(options).build();
+		this.train = train;
+		this.requests = requests;
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final Map<String, String> arguments = parse(args);
+		final int[] sizes = parseInts(arguments.getOrDefault("sizes", "1024,4096"));
+		final int[] concurrencies = parseInts(arguments.getOrDefault("concurrency", "1,4,16"));
+		final CellsparseOptions options = CellsparseOptions.newBuilder()
+				.tiledInference(Boolean.parseBoolean(arguments.getOrDefault("tiled", "false")))
+				.binaryTransport(Boolean.parseBoolean(arguments.getOrDefault("binary", "true")))
+				.build();
+		try (CellsparseStubServer server = CellsparseStubServer.newBuilder()
+				.latency(Integer.parseInt(arguments.getOrDefault("latency", "50")))
+				.latencyJitter(Integer.parseInt(arguments.getOrDefault("jitter", "0")))
+				.responseObjects(Integer.parseInt(arguments.getOrDefault("objects", "1000")))
+				.errorRate(Double.parseDouble(arguments.getOrDefault("error-rate", "0")))
+				.threads(Arrays.stream(concurrencies).max().orElse(1) * 2)
+				.build()) {
+			final LoadHarness harness = new LoadHarness(
+					server,
+					arguments.getOrDefault("algorithm", "cellpose"),
+					options,
+					Boolean.parseBoolean(arguments.getOrDefault("train", "false")),
+					Integer.parseInt(arguments.getOrDefault("requests", "100")));
+			System.out.println(String.format("%-8s %-6s %-7s %-7s %-9s %-10s %-8s %-8s %-8s %-8s %-10s %-10s",
+					"size", "conc", "ok", "failed", "req/s", "objects/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "heap MiB", "sent MiB"));
+			for (final int size : sizes) {
+				final ImageData<BufferedImage> imageData = BenchmarkData.createImageData(
+						(size / BenchmarkData.SPACING) * (size / BenchmarkData.SPACING));
+				for (final int concurrency : concurrencies)
+					harness.run(imageData, concurrency);
+			}
+		}
+		System.exit(0);
+	}
+
+	private void run(final ImageData<BufferedImage> imageData, final int concurrency) throws Exception {
+		client.reset();
+		final int size = imageData.getServer().getWidth();
+		final CellsparseMetrics metrics = new CellsparseMetrics("Load " + size + " px, concurrency " + concurrency);
+		final CellsparseMonitor monitor = new HarnessMonitor(metrics);
+		final long[] latencies = new long[requests];
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicLong objects = new AtomicLong();
+		final long bytesBefore = server.getBytesReceived();
+		final List<MemoryPoolMXBean> heapPools = getHeapPools();
+		heapPools.forEach(MemoryPoolMXBean::resetPeakUsage);
+
+		final ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+		final long startTime = System.nanoTime();
+		for (int c = 0; c < concurrency; c++) {
+			clients.execute(() -> {
+				int i;
+				while ((i = next.getAndIncrement()) < requests) {
+					final long requestTime = System.nanoTime();
+					try {
+						final CompletableFuture<Integer> future = train
+								? client.trainAsync(monitor, imageData, 1, 8, 10, batch -> {})
+								: client.inferAsync(monitor, imageData, null, batch -> {});
+						objects.addAndGet(future.join());
+					} catch (RuntimeException e) {
+						failed.incrementAndGet();
+					}
+					latencies[i] = System.nanoTime() - requestTime;
+				}
+			});
+		}
+		clients.shutdown();
+		clients.awaitTermination(1, TimeUnit.DAYS);
+		final double seconds = (System.nanoTime() - startTime) / 1e9;
+		metrics.finish(failed.get() == 0);
+
+		long heapPeak = 0;
+		for (final MemoryPoolMXBean heapPool : heapPools)
+			heapPeak += heapPool.getPeakUsage().getUsed();
+		Arrays.sort(latencies);
+		System.out.println(String.format("%-8d %-6d %-7d %-7d %-9.1f %-10.0f %-8.1f %-8.1f %-8.1f %-8.1f %-10.1f %-10.1f",
+				size,
+				concurrency,
+				requests - failed.get(),
+				failed.get(),
+				requests / seconds,
+				objects.get() / seconds,
+				percentile(latencies, 50),
+				percentile(latencies, 90),
+				percentile(latencies, 99),
+				latencies[requests - 1] / 1e6,
+				heapPeak / (1024.0 * 1024.0),
+				(server.getBytesReceived() - bytesBefore) / (1024.0 * 1024.0)));
+	}
+
+	private static List<MemoryPoolMXBean> getHeapPools() {
+		return ManagementFactory.getMemoryPoolMXBeans().stream()
+				.filter(pool -> pool.getType() == MemoryType.HEAP)
+				.toList();
+	}
+
+	/**
+	 * @param sorted latencies in nanoseconds, in ascending order
+	 * @param percentile
+	 * @return the latency at the percentile in milliseconds
+	 */
+	private static double percentile(final long[] sorted, final int percentile) {
+		final int index = Math.max(0, (int) Math.ceil(percentile / 100.0 * sorted.length) - 1);
+		return sorted[index] / 1e6;
+	}
+
+	private static Map<String, String> parse(final String[] args) {
+		final Map<String, String> arguments = new HashMap<>();
+		for (final String arg : args) {
+			if (!arg.startsWith("--"))
+				throw new IllegalArgumentException("Arguments must be given as --name=value! Found " + arg);
+			final int equals = arg.indexOf('=');
+			if (equals < 0)
+				arguments.put(arg.substring(2), "true");
+			else
+				arguments.put(arg.substring(2, equals), arg.substring(equals + 1));
+		}
+		return arguments;
+	}
+
+	private static int[] parseInts(final String values) {
+		return Arrays.stream(values.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+	}
+
+	/**
+	 * Records the metrics of a scenario and ignores status updates.
+	 */
+	private static class HarnessMonitor implements CellsparseMonitor {
+
+		private final CellsparseMetrics metrics;
+
+		private HarnessMonitor(final CellsparseMetrics metrics) {
+			this.metrics = metrics;
+		}
+
+		@Override
+		public <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+			return future;
+		}
+
+		@Override
+		public void updateStatus(final String message, final double progress) {}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public CellsparseMetrics getMetrics() {
+			return metrics;
+		}
+
+	}
+
+}
@@ -0,0 +1,94 @@
+package org.elephant.cellsparse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+
+/**
+ * Parses an inference response of GeoJSON features.
+ * <p>
+ * {@code gsonList} is the original approach, which binds the whole response to a {@code List<PathObject>};
+ * {@code streaming} is {@link CellsparseResponseReader}, which reads the features one by one and passes them on
+ * in batches.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class ResponseParsingBenchmark {
+
+	private static final Type PATH_OBJECT_LIST = new TypeToken<List<PathObject>>() {}.getType();
+
+	private static final CellsparseMonitor MONITOR = new CellsparseMonitor() {
+
+		@Override
+		public <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+			return future;
+		}
+
+		@Override
+		public void updateStatus(final String message, final double progress) {}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+	};
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int objects;
+
+	private Gson gson;
+	private byte[] response;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		gson = GsonTools.getInstance();
+		response = gson.toJson(BenchmarkData.createCells(objects, null)).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public List<PathObject> gsonList() throws IOException {
+		try (InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8)) {
+			return gson.fromJson(reader, PATH_OBJECT_LIST);
+		}
+	}
+
+	@Benchmark
+	public int streaming(final Blackhole blackhole) throws IOException {
+		return CellsparseResponseReader.readPathObjects(
+				new ByteArrayInputStream(response),
+				CellsparseResponseReader.DEFAULT_BATCH_SIZE,
+				blackhole::consume,
+				MONITOR);
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import qupath.lib.images.ImageData;
+
+/**
+ * Drives training jobs of the Cellsparse client against a {@link CellsparseStubServer}, without a GPU server.
+ * <p>
+ * Each scenario starts its own stub server with training jobs and sends one training request with
+ * {@link CellsparseOptions#isTrainingJobs()} enabled:
+ * <ul>
+ *   <li>{@code completed}: the server closes the event stream every few events, so the client reconnects with
+ *       {@code Last-Event-ID}, follows the progress to the end and reads the result of the job</li>
+ *   <li>{@code failed}: the job ends with an {@code error} event, which fails the request</li>
+ *   <li>{@code cancelled}: the request is cancelled while the job runs, and the client deletes the job</li>
+ * </ul>
+ * Prints one line per scenario and exits with status 1 if any scenario fails.
+ */
+public class TrainingJobHarness {
+
+	private static final int JOB_EVENTS = 10;
+	private static final int OBJECTS = 100;
+	private static final long TIMEOUT = 30;
+
+	private final ImageData<BufferedImage> imageData = BenchmarkData.createImageData(400);
+	private final CellsparseOptions options = CellsparseOptions.newBuilder().trainingJobs(true).build();
+
+	public static void main(final String[] args) throws Exception {
+		final TrainingJobHarness harness = new TrainingJobHarness();
+		boolean passed = true;
+		passed &= report("completed", harness::runCompleted);
+		passed &= report("failed", harness::runFailed);
+		passed &= report("cancelled", harness::runCancelled);
+		System.exit(passed ? 0 : 1);
+	}
+
+	@FunctionalInterface
+	private interface Scenario {
+		String run() throws Exception;
+	}
+
+	/**
+	 * @return true if the scenario passed
+	 */
+	private static boolean report(final String name, final Scenario scenario) {
+		try {
+			System.out.println(String.format("%-10s PASS %s", name, scenario.run()));
+			return true;
+		} catch (Exception | AssertionError e) {
+			System.out.println(String.format("%-10s FAIL %s", name, e));
+			return false;
+		}
+	}
+
+	private CellsparseStubServer.Builder createServer() {
+		return CellsparseStubServer.newBuilder()
+				.trainingJobs(true)
+				.jobEvents(JOB_EVENTS)
+				.responseObjects(OBJECTS)
+				.latency(500);
+	}
+
+	private String runCompleted() throws Exception {
+		try (CellsparseStubServer server = createServer().eventStreamLimit(3).build()) {
+			final HarnessMonitor monitor = new HarnessMonitor();
+			final int count = train(server, monitor).get(TIMEOUT, TimeUnit.SECONDS);
+			check(count == OBJECTS, "Expected " + OBJECTS + " objects, received " + count);
+			check(monitor.progressUpdates.get() == JOB_EVENTS, "Expected " + JOB_EVENTS + " progress updates, received " + monitor.progressUpdates.get());
+			check(server.getResumedEventStreams() > 0, "The event stream was never resumed");
+			return count + " objects, " + monitor.progressUpdates.get() + " progress updates, "
+					+ server.getEventStreams() + " event streams";
+		}
+	}
+
+	private String runFailed() throws Exception {
+		try (CellsparseStubServer server = createServer().errorRate(1).build()) {
+			try {
+				train(server, new HarnessMonitor()).get(TIMEOUT, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				check(e.getCause() instanceof CellsparseException, "Expected a CellsparseException, found " + e.getCause());
+				return e.getCause().getMessage();
+			}
+			throw new AssertionError("The request completed although the job failed");
+		}
+	}
+
+	private String runCancelled() throws Exception {
+		try (CellsparseStubServer server = createServer().latency(10_000).build()) {
+			final HarnessMonitor monitor = new HarnessMonitor();
+			final CompletableFuture<Integer> future = train(server, monitor);
+			check(monitor.firstProgress.await(TIMEOUT, TimeUnit.SECONDS), "No progress received");
+			future.cancel(true);
+			final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+			while (server.getJobsDeleted() == 0 && System.nanoTime() < deadline)
+				Thread.sleep(10);
+			check(server.getJobsDeleted() == 1, "The job was not deleted");
+			return "job deleted after " + monitor.progressUpdates.get() + " progress updates";
+		}
+	}
+
+	private CompletableFuture<Integer> train(final CellsparseStubServer server, final CellsparseMonitor monitor) {
+		final CellsparseClient client = CellsparseClient.newBuilder(server.getEndpointURL("cellpose")).options(options).build();
+		return client.trainAsync(monitor, imageData, 1, 8, JOB_EVENTS, batch -> {});
+	}
+
+	private static void check(final boolean condition, final String message) {
+		if (!condition)
+			throw new AssertionError(message);
+	}
+
+	/**
+	 * Counts the progress updates of a training job.
+	 */
+	private static class HarnessMonitor implements CellsparseMonitor {
+
+		private final AtomicInteger progressUpdates = new AtomicInteger();
+		private final CountDownLatch firstProgress = new CountDownLatch(1);
+
+		@Override
+		public <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+			return future;
+		}
+
+		@Override
+		public void updateStatus(final String message, final double progress) {
+			if (message.startsWith("Training,")) {
+				progressUpdates.incrementAndGet();
+				firstProgress.countDown();
+			}
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+	}
+
+}
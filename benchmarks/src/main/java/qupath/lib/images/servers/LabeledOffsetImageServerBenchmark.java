@@ -0,0 +1,97 @@
+package qupath.lib.images.servers;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.elephant.cellsparse.BenchmarkData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+
+/**
+ * Renders a label tile from a synthetic hierarchy.
+ * <p>
+ * {@link LabeledOffsetImageServer#readTile(TileRequest)} is called directly, which is why this benchmark lives in
+ * the package of the server: reading through {@code readRegion} would return cached tiles after the first call.
+ * <ul>
+ *   <li>{@code INDEXED}: one label per class, {@code Foreground} painted over {@code Background}</li>
+ *   <li>{@code INSTANCE}: a label per {@code Foreground} object over {@code Background}, as sent for training</li>
+ *   <li>{@code MULTICHANNEL}: one binary channel per label</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class LabeledOffsetImageServerBenchmark {
+
+	public enum LabelMode {
+		INDEXED,
+		INSTANCE,
+		MULTICHANNEL
+	}
+
+	@Param({"1000", "10000", "100000", "1000000"})
+	public int objects;
+
+	@Param({"INDEXED", "INSTANCE", "MULTICHANNEL"})
+	public LabelMode mode;
+
+	private LabeledOffsetImageServer server;
+	private TileRequest tileRequest;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		final ImageData<BufferedImage> imageData = BenchmarkData.createImageData(objects);
+		final PathClass foregroundClass = PathClass.getInstance("Foreground");
+		final LabeledOffsetImageServer.Builder builder = new LabeledOffsetImageServer.Builder(imageData);
+		switch (mode) {
+		case INDEXED:
+			builder.backgroundLabel(0)
+					.addLabel("Background", 1)
+					.addLabel("Foreground", 2)
+					.grayscale();
+			break;
+		case INSTANCE:
+			builder.useFilter((PathObject pathObject) -> pathObject.getPathClass() == foregroundClass)
+					.addBaseLabel("Background", 1)
+					.grayscale()
+					.useInstanceLabels()
+					.offset(1);
+			break;
+		case MULTICHANNEL:
+			builder.backgroundLabel(0)
+					.addLabel("Background", 1)
+					.addLabel("Foreground", 2)
+					.multichannelOutput(true);
+			break;
+		}
+		server = builder.build();
+		// A tile from the middle of the image, which is full of objects whatever the size
+		final int tileSize = server.getMetadata().getPreferredTileWidth();
+		final int centre = server.getWidth() / 2;
+		tileRequest = server.getTileRequestManager().getTileRequest(0, centre / tileSize * tileSize, centre / tileSize * tileSize, 0, 0);
+	}
+
+	@Benchmark
+	public BufferedImage readTile() throws IOException {
+		return server.readTile(tileRequest);
+	}
+
+}
@@ -1,64 +1,34 @@
 package org.elephant.cellsparse;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Type;
-import java.net.HttpURLConnection;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
-import javax.imageio.ImageIO;
+import org.controlsfx.control.action.Action;
 
-import com.google.gson.Gson;
-
-import ij.ImagePlus;
-import ij.plugin.ImageCalculator;
-import qupath.imagej.tools.IJTools;
+import javafx.application.Platform;
+import qupath.lib.common.GeneralTools;
+import qupath.lib.gui.ActionTools;
+import qupath.lib.gui.QuPathGUI;
 import qupath.lib.gui.dialogs.Dialogs;
 import qupath.lib.images.ImageData;
-import qupath.lib.images.servers.ImageServer;
-import qupath.lib.images.servers.LabeledImageServer;
-import qupath.lib.images.servers.LabeledOffsetImageServer;
-import qupath.lib.io.GsonTools;
 import qupath.lib.objects.PathObject;
-import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.plugins.parameters.ParameterList;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+import qupath.lib.roi.interfaces.ROI;
 
 public abstract class AbstractCellsparseCommands {
 	
-	private String base64Encode(final BufferedImage bufferedImage) {
-		String base64Image = null;
-		try {
-			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ImageIO.write(bufferedImage, "png", baos);
-			final byte[] bytes = baos.toByteArray();
-			base64Image = Base64.getEncoder().encodeToString(bytes);
-		} catch (IOException e) {
-			Dialogs.showErrorMessage(getClass().getName(), e);
-		}
-		return base64Image;
-	}
-	
-	private BufferedImage readRegionFromServer(
-			final ImageServer<BufferedImage> imageServer,
-			final double downsample,
-			final int x,
-			final int y,
-			final int width,
-			final int height
-	) {
-		BufferedImage image = null;
-		try {
-			image = imageServer.readRegion(downsample, x, y, width, height);
-		} catch (IOException e) {
-			Dialogs.showErrorMessage(getClass().getName(), e);
-		}
-		return image;
-	}
+	private CellsparseOptions options = CellsparseOptions.newBuilder().build();
 	
 	void CellsparseCommand(final ImageData<BufferedImage> imageData, final String endpointURL, final boolean train) {
 		CellsparseCommand(imageData, endpointURL, train, 1, 8, 200);
@@ -72,111 +42,277 @@ public abstract class AbstractCellsparseCommands {
 			final int batchsize,
 			final int steps
 	) {
-		final BufferedImage image = readRegionFromServer(
-				imageData.getServer(),
-				1.0,
-				0,
-				0,
-				imageData.getServer().getWidth(),
-				imageData.getServer().getHeight()
+		// Tiled inference can be restricted to the selected annotation
+		final PathObject selected = imageData.getHierarchy().getSelectionModel().getSelectedObject();
+		final ROI mask = !train && options.isTiledInference() && selected != null && selected.isAnnotation()
+				&& selected.getROI() != null && selected.getROI().isArea()
+				? selected.getROI() : null;
+		CellsparseCommand(imageData, endpointURL, train, epochs, batchsize, steps, mask, success -> {});
+	}
+	
+	/**
+	 * @param imageData
+	 * @param endpointURL
+	 * @param train
+	 * @param epochs
+	 * @param batchsize
+	 * @param steps
+	 * @param mask if not null, inference only replaces the results within this ROI; requires tiled inference
+	 * @param onDone called on the JavaFX application thread with true if the job succeeded
+	 * @return the job, or null if another job is already running for the image
+	 */
+	CellsparseJob<Integer> CellsparseCommand(
+			final ImageData<BufferedImage> imageData,
+			final String endpointURL,
+			final boolean train,
+			final int epochs,
+			final int batchsize,
+			final int steps,
+			final ROI mask,
+			final Consumer<Boolean> onDone
+	) {
+		final CellsparseClient client = createClient(endpointURL);
+		// Only the results within the mask are replaced
+		final HierarchyInserter inserter = new HierarchyInserter(imageData.getHierarchy(), mask);
+		final CellsparseJob.Request<Integer> request = train
+				? monitor -> client.trainAsync(monitor, imageData, epochs, batchsize, steps, inserter)
+				: monitor -> client.inferAsync(monitor, imageData, mask, inserter);
+		final CellsparseJob<Integer> job = new CellsparseJob<>(
+				train ? "Cellsparse training" : "Cellsparse inference",
+				request
 		);
-		final String strImage = base64Encode(image);
-
-		final LabeledImageServer bgLabelServer = new LabeledImageServer.Builder(imageData)
-				.backgroundLabel(0)
-				.addLabel("Background", 1)
-				.multichannelOutput(false)
-				.build();
-		final BufferedImage bgImage = readRegionFromServer(
-				bgLabelServer,
-				1.0,
-				0,
-				0,
-				imageData.getServer().getWidth(),
-				imageData.getServer().getHeight()
+		final boolean started = CellsparseTaskRunner.getInstance().submit(
+				imageData,
+				job,
+				count -> {
+					job.getMetrics().time(CellsparseMetrics.Stage.INSERT, inserter::commit);
+					onDone.accept(true);
+				},
+				() -> {
+					inserter.rollback();
+					onDone.accept(false);
+				}
 		);
-		final LabeledOffsetImageServer fgLabelServer = new LabeledOffsetImageServer.Builder(imageData)
-				.useFilter(pathObject -> pathObject.getPathClass() == PathClass.getInstance("Foreground"))
-				.useInstanceLabels()
-				.offset(1)
-				.build();
-		final BufferedImage fgImage = readRegionFromServer(
-				fgLabelServer,
-				1.0,
-				0,
-				0,
-				imageData.getServer().getWidth(),
-				imageData.getServer().getHeight()
+		return started ? job : null;
+	}
+	
+	/**
+	 * Create the action that turns live mode on and off.
+	 * In live mode, edits of the training annotations trigger a training step of one epoch followed by inference.
+	 * @param qupath
+	 * @param serverURL supplies the current server URL
+	 * @param batchsize
+	 * @param steps
+	 * @return
+	 */
+	Action CellsparseLiveModeAction(final QuPathGUI qupath, final Supplier<String> serverURL, final int batchsize, final int steps) {
+		final CellsparseLiveMode liveMode = new CellsparseLiveMode(
+				qupath,
+				// The annotation just drawn is usually selected, so live mode always runs on the whole image
+				(imageData, train, onDone) -> CellsparseCommand(imageData, serverURL.get(), train, 1, batchsize, steps, null, onDone),
+				() -> options.getLiveModeDelay()
 		);
-		final ImageCalculator imageCalculator = new ImageCalculator();
-		final ImagePlus bgImp = IJTools.convertToUncalibratedImagePlus("Background", bgImage);
-		final ImagePlus fgImp = IJTools.convertToUncalibratedImagePlus("Foreground", fgImage);
-		final BufferedImage lblImage = imageCalculator.run("Max", bgImp, fgImp).getBufferedImage();
-		final String strLabel = base64Encode(lblImage);
-		final Gson gson = GsonTools.getInstance();
-		final CellsparseBody body = CellsparseBody.newBuilder("default")
-				.b64img(strImage)
-				.b64lbl(strLabel)
-				.train(train)
-				.eval(true)
-				.epochs(epochs)
-				.batchsize(batchsize)
-				.steps(steps)
-				.build();
-		final String bodyJson = gson.toJson(body);
+		return ActionTools.createSelectableAction(liveMode.enabledProperty(), "Live mode");
+	}
+	
+	/**
+	 * Collects batches of results as they are decoded.
+	 * Once all batches have been received, they replace the previous results in a single hierarchy update.
+	 */
+	private static class HierarchyInserter implements Consumer<List<PathObject>> {
 		
-		final HttpRequest request = HttpRequest.newBuilder()
-		        .version(HttpClient.Version.HTTP_1_1)
-		        .uri(URI.create(endpointURL))
-		        .header("accept", "application/json")
-		        .header("Content-Type", "application/json; charset=utf-8")
-		        .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
-		        .build();
-		HttpClient client = HttpClient.newHttpClient();
-		final Type type = new com.google.gson.reflect.TypeToken<List<PathObject>>(){}.getType();
-		try {
-			HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-			if (response.statusCode() == HttpURLConnection.HTTP_OK) {
-				List<PathObject> toRomove = imageData.getHierarchy().getAnnotationObjects()
-						.stream().filter(pathObject -> pathObject.getPathClass() == null).toList();
-				imageData.getHierarchy().removeObjects(toRomove, false);
-				List<PathObject> pathObjects = gson.fromJson(response.body(), type);
-				imageData.getHierarchy().addObjects(pathObjects);
-	        }
-			else {
-				Dialogs.showErrorMessage("Http error: " + response.statusCode(), response.body());
-			}
-		} catch (IOException | InterruptedException e) {
-			e.printStackTrace();
-			Dialogs.showErrorMessage(getClass().getName(), e);
+		private final PathObjectHierarchy hierarchy;
+		private final ROI roi;
+		private final List<PathObject> added = Collections.synchronizedList(new ArrayList<>());
+		
+		/**
+		 * @param hierarchy
+		 * @param roi if not null, only the previous results within this ROI are replaced
+		 */
+		private HierarchyInserter(final PathObjectHierarchy hierarchy, final ROI roi) {
+			this.hierarchy = hierarchy;
+			this.roi = roi;
+		}
+		
+		@Override
+		public void accept(final List<PathObject> pathObjects) {
+			added.addAll(pathObjects);
+		}
+		
+		private void commit() {
+			CellsparseClient.replaceResults(hierarchy, roi, added);
 		}
+		
+		private void rollback() {
+			added.clear();
+		}
+		
 	}
 	
-	void CellsparseResetCommand(final String endpointURL) {
-		final Gson gson = GsonTools.getInstance();
-		final CellsparseResetBody body = CellsparseResetBody.newBuilder("default").build();
-		final String bodyJson = gson.toJson(body);
-		
-		final HttpRequest request = HttpRequest.newBuilder()
-		        .version(HttpClient.Version.HTTP_1_1)
-		        .uri(URI.create(endpointURL))
-		        .header("accept", "application/json")
-		        .header("Content-Type", "application/json; charset=utf-8")
-		        .POST(HttpRequest.BodyPublishers.ofString(bodyJson))
-		        .build();
-		HttpClient client = HttpClient.newHttpClient();
+	/**
+	 * @param project
+	 * @param openImageData the image open in the viewer, which is left out of the run, or null
+	 * @param endpointURL
+	 */
+	void CellsparseBatchCommand(final Project<BufferedImage> project, final ImageData<BufferedImage> openImageData, final String endpointURL) {
+		if (project == null) {
+			Dialogs.showErrorMessage("Cellsparse batch inference", "No project is open");
+			return;
+		}
+		final ProjectImageEntry<BufferedImage> openEntry = openImageData == null ? null : project.getEntry(openImageData);
+		if (openEntry != null) {
+			Dialogs.showWarningNotification("Cellsparse batch inference",
+					openEntry.getImageName() + " is open in the viewer and is skipped; close it and run again to process it");
+		}
+		final Set<String> skippedIDs = openEntry == null ? Set.of() : Set.of(openEntry.getID());
+		final CellsparseClient client = createClient(endpointURL);
+		final boolean resume;
 		try {
-			HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
-			if (response.statusCode() == HttpURLConnection.HTTP_OK) {
-				Dialogs.showMessageDialog("Model reset", "Model is reset");
-	        }
-			else {
-				Dialogs.showErrorMessage("Http error: " + response.statusCode(), response.body());
+			final int done = client.getCompletedImages(project);
+			resume = done == 0 || Dialogs.showYesNoDialog("Cellsparse batch inference",
+					"A previous run has already processed " + done + " images. Resume it?\n"
+					+ "Choose 'No' to process all images again.");
+		} catch (IOException e) {
+			Dialogs.showErrorMessage("Cellsparse batch inference", e);
+			return;
+		}
+		final CellsparseJob<Integer> job = new CellsparseJob<>(
+				"Cellsparse batch inference",
+				monitor -> client.inferProject(monitor, project, resume, skippedIDs)
+		);
+		CellsparseTaskRunner.getInstance().submit(
+				project,
+				job,
+				count -> Dialogs.showInfoNotification(job.getTitle(), count + " of " + project.getImageList().size() + " images saved")
+		);
+	}
+	
+	void CellsparseSettingsCommand() {
+		final ParameterList params = new ParameterList()
+				.addBooleanParameter("streamingUpload", "Streaming upload", options.isStreamingUpload(),
+						"Read, encode and upload the image tile by tile instead of as a single image")
+				.addIntParameter("tileSize", "Tile size", options.getTileSize(), "px",
+						"Size of the tiles used for the streaming upload")
+				.addBooleanParameter("binaryTransport", "Binary transport", options.isBinaryTransport(),
+						"Send raw image bytes in a binary frame if the server supports it, instead of base64 inside JSON")
+				.addBooleanParameter("compactResults", "Compact results", options.isCompactResults(),
+						"Ask the server for results as binary polygons instead of GeoJSON")
+				.addIntParameter("connectTimeout", "Connect timeout", options.getConnectTimeout(), "s",
+						"Timeout to establish a connection to the server")
+				.addIntParameter("requestTimeout", "Request timeout", options.getRequestTimeout(), "s",
+						"Timeout for a complete request, 0 to wait indefinitely")
+				.addBooleanParameter("http2", "HTTP/2", options.isHttp2(),
+						"Multiplex requests over HTTP/2 if the server supports it")
+				.addBooleanParameter("compression", "Compression", options.isCompression(),
+						"Compress requests with gzip if the server supports it, and accept compressed responses")
+				.addIntParameter("compressionLevel", "Compression level", options.getCompressionLevel(), "",
+						"Deflate level from 1 (fastest) to 9 (smallest)")
+				.addIntParameter("compressionThreshold", "Compression threshold", options.getCompressionThreshold(), "bytes",
+						"Requests smaller than this are sent uncompressed")
+				.addChoiceParameter("encoding", "Tile encoding", options.getEncoding(),
+						Arrays.asList(CellsparseImageEncoder.Encoding.values()),
+						"Encoding of image and label tiles; RAW is used only with a tiled upload and if the server supports it")
+				.addIntParameter("pngCompressionLevel", "PNG compression level", options.getPngCompressionLevel(), "",
+						"Deflate level of PNG tiles from 0 (uncompressed, fastest) to 9 (smallest)")
+				.addIntParameter("encoderThreads", "Encoder threads", options.getEncoderThreads(), "",
+						"Number of tiles read and encoded in parallel during a tiled upload")
+				.addBooleanParameter("cropTraining", "Crop training", options.isCropTraining(),
+						"Train only on crops around the Foreground and Background annotations if the server supports it")
+				.addIntParameter("cropPadding", "Crop padding", options.getCropPadding(), "px",
+						"Context added around the annotations when cropping")
+				.addBooleanParameter("tiledInference", "Tiled inference", options.isTiledInference(),
+						"Run inference on overlapping tiles of the image, or of the selected annotation, and stitch the results")
+				.addIntParameter("inferenceTileSize", "Inference tile size", options.getInferenceTileSize(), "px",
+						"Size of the inference tiles")
+				.addIntParameter("inferenceOverlap", "Inference tile overlap", options.getInferenceOverlap(), "px",
+						"Pixels shared by neighbouring tiles; should exceed the size of the largest cell")
+				.addIntParameter("inferenceConcurrency", "Inference concurrency", options.getInferenceConcurrency(), "",
+						"Maximum number of tiles requested at the same time")
+				.addChoiceParameter("dispatchPolicy", "Dispatch policy", options.getDispatchPolicy(),
+						Arrays.asList(CellsparseEndpointPool.Policy.values()),
+						"How inference requests are assigned when the server URL lists several endpoints")
+				.addBooleanParameter("hedging", "Hedged requests", options.isHedging(),
+						"Send a slow inference request again to another endpoint and keep the first answer")
+				.addIntParameter("hedgePercentile", "Hedge percentile", options.getHedgePercentile(), "",
+						"Percentile of recent latencies after which an inference request is sent again")
+				.addIntParameter("hedgeMaxRate", "Maximum hedge rate", options.getHedgeMaxRate(), "%",
+						"Maximum percentage of inference requests that are sent twice")
+				.addDoubleParameter("downsample", "Downsample", options.getDownsample(), "",
+						"Send images and labels downsampled by this factor; results are scaled back to full resolution")
+				.addDoubleParameter("pixelSize", "Pixel size", options.getPixelSize(), GeneralTools.micrometerSymbol(),
+						"Send images at this pixel size if the image is calibrated, overriding the downsample; 0 to use the downsample")
+				.addIntParameter("liveModeDelay", "Live mode delay", options.getLiveModeDelay(), "ms",
+						"Time without edits of the training annotations after which live mode retrains")
+				.addBooleanParameter("trainingJobs", "Training jobs", options.isTrainingJobs(),
+						"Run training as a job on the server and show its progress, if the server supports it")
+				.addIntParameter("tileCacheSize", "Tile cache size", options.getTileCacheSize(), "MB",
+						"Keep rendered image and label tiles on disk up to this size, so that unchanged tiles are reused; 0 to disable")
+				.addStringParameter("tileCacheDirectory", "Tile cache directory", options.getTileCacheDirectory(),
+						"Directory of the tile cache; leave empty to use .cellsparse/tile-cache in the home directory");
+		// The dialog is shown again with the values entered until they are valid or it is cancelled
+		while (Dialogs.showParameterDialog("Cellsparse settings", params)) {
+			try {
+				options = buildOptions(params);
+				return;
+			} catch (IllegalArgumentException e) {
+				Dialogs.showErrorMessage("Cellsparse settings", e.getMessage());
 			}
-		} catch (IOException | InterruptedException e) {
-			e.printStackTrace();
-			Dialogs.showErrorMessage(getClass().getName(), e);
 		}
 	}
 
+	private static CellsparseOptions buildOptions(final ParameterList params) {
+		return CellsparseOptions.newBuilder()
+				.streamingUpload(params.getBooleanParameterValue("streamingUpload"))
+				.tileSize(params.getIntParameterValue("tileSize"))
+				.binaryTransport(params.getBooleanParameterValue("binaryTransport"))
+				.compactResults(params.getBooleanParameterValue("compactResults"))
+				.connectTimeout(params.getIntParameterValue("connectTimeout"))
+				.requestTimeout(params.getIntParameterValue("requestTimeout"))
+				.http2(params.getBooleanParameterValue("http2"))
+				.compression(params.getBooleanParameterValue("compression"))
+				.compressionLevel(params.getIntParameterValue("compressionLevel"))
+				.compressionThreshold(params.getIntParameterValue("compressionThreshold"))
+				.encoding((CellsparseImageEncoder.Encoding) params.getChoiceParameterValue("encoding"))
+				.pngCompressionLevel(params.getIntParameterValue("pngCompressionLevel"))
+				.encoderThreads(params.getIntParameterValue("encoderThreads"))
+				.cropTraining(params.getBooleanParameterValue("cropTraining"))
+				.cropPadding(params.getIntParameterValue("cropPadding"))
+				.tiledInference(params.getBooleanParameterValue("tiledInference"))
+				.inferenceTileSize(params.getIntParameterValue("inferenceTileSize"))
+				.inferenceOverlap(params.getIntParameterValue("inferenceOverlap"))
+				.inferenceConcurrency(params.getIntParameterValue("inferenceConcurrency"))
+				.dispatchPolicy((CellsparseEndpointPool.Policy) params.getChoiceParameterValue("dispatchPolicy"))
+				.hedging(params.getBooleanParameterValue("hedging"))
+				.hedgePercentile(params.getIntParameterValue("hedgePercentile"))
+				.hedgeMaxRate(params.getIntParameterValue("hedgeMaxRate"))
+				.downsample(params.getDoubleParameterValue("downsample"))
+				.pixelSize(params.getDoubleParameterValue("pixelSize"))
+				.liveModeDelay(params.getIntParameterValue("liveModeDelay"))
+				.trainingJobs(params.getBooleanParameterValue("trainingJobs"))
+				.tileCacheSize(params.getIntParameterValue("tileCacheSize"))
+				.tileCacheDirectory(params.getStringParameterValue("tileCacheDirectory"))
+				.build();
+	}
+	
+	void CellsparseResetCommand(final String serverURL) {
+		createClient(serverURL).resetAsync()
+				.whenComplete((unused, e) -> Platform.runLater(() -> {
+					final Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+					if (cause instanceof CellsparseHttpException)
+						Dialogs.showErrorMessage(cause.getMessage(), ((CellsparseHttpException) cause).getBody());
+					else if (cause != null)
+						Dialogs.showErrorMessage(getClass().getName(), cause);
+					else
+						Dialogs.showMessageDialog("Model reset", "Model is reset");
+				}));
+	}
+	
+	/**
+	 * @param serverURL
+	 * @return a client for the server URL with the current options
+	 */
+	private CellsparseClient createClient(final String serverURL) {
+		return CellsparseClient.newBuilder(serverURL).options(options).build();
+	}
+
 }
@@ -0,0 +1,306 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.projects.Project;
+import qupath.lib.projects.ProjectImageEntry;
+
+/**
+ * Runs inference on every image of a project.
+ * <p>
+ * The images are processed in order, with the next images opened and their requests started while the server is
+ * still working on the current one, so that reading and encoding overlap with inference. The results of
+ * each image replace its unclassified annotations and the image is saved back to the project.
+ * <p>
+ * The IDs of the saved images are appended to a progress file in the project directory, one line per image and
+ * endpoint. An interrupted run can therefore be resumed by skipping the images already listed. Images that fail
+ * are logged and left out of the progress file, so that they are retried on the next run. So are images that are
+ * left out of the run, e.g. the image open in the viewer, whose next save would overwrite the results.
+ */
+class CellsparseBatchInference {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseBatchInference.class);
+
+	private static final String PROGRESS_FILE = "cellsparse-batch.txt";
+
+	/**
+	 * Sends the inference request for one image.
+	 */
+	@FunctionalInterface
+	interface ImageRequest {
+		/**
+		 * @param monitor
+		 * @param imageData
+		 * @param sink receives the objects of the image
+		 * @return a future that completes with the number of objects
+		 * @throws IOException
+		 */
+		CompletableFuture<Integer> request(CellsparseMonitor monitor, ImageData<BufferedImage> imageData, Consumer<List<PathObject>> sink) throws IOException;
+	}
+
+	private final CellsparseMonitor monitor;
+	private final Project<BufferedImage> project;
+	private final String endpointURL;
+	private final int inFlight;
+	private final Set<String> skippedIDs;
+	private final ImageRequest imageRequest;
+
+	/**
+	 * @param monitor
+	 * @param project
+	 * @param endpointURL the endpoint the results are recorded for in the progress file
+	 * @param inFlight the maximum number of images whose requests are started at the same time, at least 2 so that
+	 *                 the next image is prepared while the current one is on the server
+	 * @param skippedIDs the IDs of the entries to leave out of this run
+	 * @param imageRequest
+	 */
+	CellsparseBatchInference(
+			final CellsparseMonitor monitor,
+			final Project<BufferedImage> project,
+			final String endpointURL,
+			final int inFlight,
+			final Set<String> skippedIDs,
+			final ImageRequest imageRequest
+	) {
+		this.monitor = monitor;
+		this.project = project;
+		this.endpointURL = endpointURL;
+		this.inFlight = Math.max(2, inFlight);
+		this.skippedIDs = skippedIDs;
+		this.imageRequest = imageRequest;
+	}
+
+	/**
+	 * An image whose request has been started.
+	 */
+	private static class PendingImage {
+
+		private final ProjectImageEntry<BufferedImage> entry;
+		private final ImageData<BufferedImage> imageData;
+		private final List<PathObject> pathObjects = Collections.synchronizedList(new ArrayList<>());
+		private CompletableFuture<Integer> result;
+
+		private PendingImage(final ProjectImageEntry<BufferedImage> entry, final ImageData<BufferedImage> imageData) {
+			this.entry = entry;
+			this.imageData = imageData;
+		}
+
+	}
+
+	/**
+	 * Process the images of the project that are not yet listed in the progress file.
+	 * <p>
+	 * This blocks until all images have been processed and should be called on the thread of the job.
+	 * @return a future that completes with the number of images saved
+	 * @throws IOException if the progress file cannot be read or written
+	 */
+	CompletableFuture<Integer> run() throws IOException {
+		final Set<String> completed = getCompleted(project, endpointURL);
+		final List<ProjectImageEntry<BufferedImage>> remaining = project.getImageList().stream()
+				.filter(entry -> !completed.contains(entry.getID()))
+				.toList();
+		final List<ProjectImageEntry<BufferedImage>> entries = new ArrayList<>(remaining.size());
+		for (final ProjectImageEntry<BufferedImage> entry : remaining) {
+			if (skippedIDs.contains(entry.getID()))
+				logger.warn("Batch inference skips {}, which is left out of this run", entry.getImageName());
+			else
+				entries.add(entry);
+		}
+		final int left = remaining.size() - entries.size();
+		final int skipped = project.getImageList().size() - remaining.size();
+		if (skipped > 0)
+			logger.info("Resuming batch inference on {}: {} images already done", endpointURL, skipped);
+		final long startTime = System.nanoTime();
+		int saved = 0;
+		int failed = 0;
+		int index = 0;
+		final Deque<PendingImage> pending = new ArrayDeque<>();
+		while (true) {
+			// Start the next images, so that they are read and uploaded while the server works on the current one
+			while (index < entries.size() && pending.size() < inFlight && !monitor.isCancelled()) {
+				final PendingImage started = start(entries.get(index++));
+				if (started != null)
+					pending.add(started);
+			}
+			if (monitor.isCancelled()) {
+				pending.forEach(CellsparseBatchInference::close);
+				throw new CancellationException();
+			}
+			final PendingImage current = pending.poll();
+			if (current == null)
+				break;
+			try {
+				if (finish(current))
+					saved++;
+				else
+					failed++;
+			} catch (CancellationException e) {
+				pending.forEach(CellsparseBatchInference::close);
+				throw e;
+			}
+			final double hours = (System.nanoTime() - startTime) / 3.6e12;
+			monitor.updateStatus(String.format("%d of %d images done (%.1f images/h)",
+					saved + failed + skipped, skipped + entries.size(), (saved + failed) / hours),
+					(double) (saved + failed) / entries.size());
+		}
+		// Failures are counted from images that could not even be opened too
+		failed = entries.size() - saved;
+		logger.info("Batch inference on {} saved {} images in {} s, {} failed",
+				endpointURL, saved, (System.nanoTime() - startTime) / 1_000_000_000L, failed);
+		// The images left out are still to be done by the next run
+		if (failed == 0 && left == 0)
+			clearCompleted(project, endpointURL);
+		return CompletableFuture.completedFuture(saved);
+	}
+
+	/**
+	 * Open an image and start its request.
+	 * @return the pending image, or null if it could not be opened or its request could not be started
+	 */
+	private PendingImage start(final ProjectImageEntry<BufferedImage> entry) {
+		try {
+			final PendingImage pending = new PendingImage(entry, entry.readImageData());
+			pending.result = imageRequest.request(new ImageMonitor(), pending.imageData, pending.pathObjects::addAll);
+			return pending;
+		} catch (IOException | RuntimeException e) {
+			logger.error("Unable to start batch inference for {}: {}", entry.getImageName(), e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Wait for the results of an image, write them to its hierarchy and save it.
+	 * @return true if the image has been saved
+	 */
+	private boolean finish(final PendingImage pending) {
+		try {
+			pending.result.join();
+			final CellsparseResults results = CellsparseResults.get(pending.imageData.getHierarchy());
+			monitor.getMetrics().time(CellsparseMetrics.Stage.INSERT,
+					() -> results.replace(results.getResults(pathObject -> true), pending.pathObjects));
+			pending.entry.saveImageData(pending.imageData);
+			addCompleted(project, endpointURL, pending.entry.getID());
+			return true;
+		} catch (CancellationException e) {
+			throw e;
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof CancellationException)
+				throw (CancellationException) e.getCause();
+			logger.error("Batch inference failed for {}: {}", pending.entry.getImageName(), e.getCause().getMessage());
+			return false;
+		} catch (IOException | RuntimeException e) {
+			logger.error("Unable to save {}: {}", pending.entry.getImageName(), e.getMessage());
+			return false;
+		} finally {
+			close(pending);
+		}
+	}
+
+	private static void close(final PendingImage pending) {
+		pending.result.cancel(true);
+		try {
+			pending.imageData.getServer().close();
+		} catch (Exception e) {
+			logger.debug("Unable to close the server of {}: {}", pending.entry.getImageName(), e.getMessage());
+		}
+	}
+
+	/**
+	 * @param project
+	 * @return the file that records the images already processed
+	 */
+	static Path getProgressFile(final Project<?> project) {
+		return project.getPath().getParent().resolve(PROGRESS_FILE);
+	}
+
+	/**
+	 * @param project
+	 * @param endpointURL
+	 * @return the IDs of the images already processed with the endpoint
+	 * @throws IOException
+	 */
+	static Set<String> getCompleted(final Project<?> project, final String endpointURL) throws IOException {
+		final Path file = getProgressFile(project);
+		final Set<String> completed = new LinkedHashSet<>();
+		if (!Files.exists(file))
+			return completed;
+		final String prefix = endpointURL + "\t";
+		for (final String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			if (line.startsWith(prefix))
+				completed.add(line.substring(prefix.length()));
+		}
+		return completed;
+	}
+
+	private static synchronized void addCompleted(final Project<?> project, final String endpointURL, final String id) throws IOException {
+		Files.writeString(getProgressFile(project), endpointURL + "\t" + id + "\n", StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * Forget the images processed with the endpoint, so that the next run starts over.
+	 * @param project
+	 * @param endpointURL
+	 * @throws IOException
+	 */
+	static synchronized void clearCompleted(final Project<?> project, final String endpointURL) throws IOException {
+		final Path file = getProgressFile(project);
+		if (!Files.exists(file))
+			return;
+		final String prefix = endpointURL + "\t";
+		final List<String> remaining = Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+				.filter(line -> !line.startsWith(prefix))
+				.toList();
+		if (remaining.isEmpty())
+			Files.delete(file);
+		else
+			Files.write(file, remaining, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Shares cancellation with the job, but keeps the status of the job for the progress over all images.
+	 */
+	private class ImageMonitor implements CellsparseMonitor {
+
+		@Override
+		public <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+			return monitor.track(future);
+		}
+
+		@Override
+		public void updateStatus(final String message, final double progress) {}
+
+		@Override
+		public boolean isCancelled() {
+			return monitor.isCancelled();
+		}
+
+		@Override
+		public CellsparseMetrics getMetrics() {
+			return monitor.getMetrics();
+		}
+
+	}
+
+}
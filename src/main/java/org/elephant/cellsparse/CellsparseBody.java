@@ -8,6 +8,8 @@ public class CellsparseBody {
 	@SuppressWarnings("unused")
 	private String b64img;
 	@SuppressWarnings("unused")
+	private String imghash;
+	@SuppressWarnings("unused")
 	private String b64lbl;
 	@SuppressWarnings("unused")
 	private boolean train;
@@ -23,6 +25,7 @@ public class CellsparseBody {
 	public CellsparseBody(final Builder builder) {
 		this.modelname = builder.modelname;
 		this.b64img = builder.b64img;
+		this.imghash = builder.imghash;
 		this.b64lbl = builder.b64lbl;
 		this.train = builder.train;
 		this.eval = builder.eval;
@@ -34,6 +37,7 @@ public class CellsparseBody {
 	static class Builder {
 		private String modelname;
 		private String b64img;
+		private String imghash = null;
 		private String b64lbl = null;
 		private boolean train = false;
 		private boolean eval = false;
@@ -50,6 +54,11 @@ public class CellsparseBody {
 			return this;
 		}
 		
+		public Builder imghash(final String imghash) {
+			this.imghash = imghash;
+			return this;
+		}
+		
 		public Builder b64lbl(final String b64lbl) {
 			this.b64lbl = b64lbl;
 			return this;
@@ -0,0 +1,110 @@
+package org.elephant.cellsparse;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+import qupath.lib.io.GsonTools;
+
+/**
+ * Features supported by a Cellsparse API endpoint.
+ * <p>
+ * They are queried once per endpoint from {@code <endpoint>capabilities/}, which returns the supported request
+ * {@code formats} and optional {@code features}. Servers that do not provide this resource only support the
+ * JSON request format and no optional features.
+ */
+public class CellsparseCapabilities {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseCapabilities.class);
+
+	public static final String FORMAT_JSON = "json";
+	public static final String FORMAT_FRAME = "frame";
+
+	public static final String FEATURE_IMAGE_RESIDENCY = "image-residency";
+	public static final String FEATURE_LABEL_DELTA = "label-delta";
+	public static final String FEATURE_GZIP_REQUESTS = "gzip-requests";
+	public static final String FEATURE_RAW_ENCODING = "raw-encoding";
+	public static final String FEATURE_CROPS = "crops";
+	public static final String FEATURE_TRAINING_JOBS = "training-jobs";
+
+	static final CellsparseCapabilities LEGACY = new CellsparseCapabilities(Collections.singletonList(FORMAT_JSON));
+
+	private static final Map<String, CellsparseCapabilities> cache = new ConcurrentHashMap<>();
+
+	private List<String> formats;
+	private List<String> features;
+
+	private CellsparseCapabilities(final List<String> formats) {
+		this.formats = formats;
+		this.features = Collections.emptyList();
+	}
+
+	/**
+	 * @param format
+	 * @return true if the endpoint accepts request bodies in the given format
+	 */
+	public boolean supportsFormat(final String format) {
+		return formats != null && formats.contains(format);
+	}
+
+	/**
+	 * @param feature
+	 * @return true if the endpoint supports the given optional feature
+	 */
+	public boolean supportsFeature(final String feature) {
+		return features != null && features.contains(feature);
+	}
+
+	/**
+	 * Get the capabilities of an endpoint, querying the server if they are not known yet.
+	 * If the server cannot be reached, the legacy capabilities are returned without being cached.
+	 * @param client
+	 * @param endpointURL
+	 * @return
+	 */
+	static CompletableFuture<CellsparseCapabilities> forEndpoint(final CellsparseHttpClient client, final String endpointURL) {
+		final CellsparseCapabilities cached = cache.get(endpointURL);
+		if (cached != null)
+			return CompletableFuture.completedFuture(cached);
+		final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+		        .uri(URI.create(endpointURL + "capabilities/"))
+		        .header("accept", "application/json")
+		        .GET();
+		return client.sendAsync(requestBuilder, HttpResponse.BodyHandlers.ofString())
+				.thenApply(response -> {
+					CellsparseCapabilities capabilities = LEGACY;
+					if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+						final Gson gson = GsonTools.getInstance();
+						final CellsparseCapabilities parsed = gson.fromJson(response.body(), CellsparseCapabilities.class);
+						if (parsed != null && parsed.formats != null)
+							capabilities = parsed;
+					}
+					cache.put(endpointURL, capabilities);
+					return capabilities;
+				})
+				.exceptionally(e -> {
+					logger.debug("Unable to query capabilities of {}: {}", endpointURL, e.getMessage());
+					return LEGACY;
+				});
+	}
+
+	/**
+	 * Record that an endpoint rejected a request format or content encoding, e.g. with 415 Unsupported Media Type.
+	 * @param endpointURL
+	 */
+	static void rejectFormats(final String endpointURL) {
+		cache.put(endpointURL, LEGACY);
+	}
+
+}
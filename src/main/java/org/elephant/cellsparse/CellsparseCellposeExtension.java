@@ -36,12 +36,24 @@ public class CellsparseCellposeExtension implements QuPathExtension {
 		@ActionDescription("Cellpose inference.")
 		public final Action actionInference;
 		
+		@ActionMenu("Cellpose>Live mode")
+		@ActionDescription("Retrain Cellpose and rerun inference automatically when Foreground or Background annotations change.")
+		public final Action actionLiveMode;
+		
+		@ActionMenu("Cellpose>Batch inference")
+		@ActionDescription("Cellpose inference on every image of the project.")
+		public final Action actionBatchInference;
+		
 		@ActionMenu("Cellpose>Reset")
 		@ActionDescription("Reset Cellpose model.")
 		public final Action actionReset;
 		
+		@ActionMenu("Cellpose>Settings")
+		@ActionDescription("Set Cellpose upload settings.")
+		public final Action actionSettings;
+		
 		@ActionMenu("Cellpose>Server URL")
-		@ActionDescription("Set API server URL.")
+		@ActionDescription("Set API server URL, or several URLs separated by commas.")
 		public final Action actionSetServerURL;
 		
 		private String serverURL = "http://localhost:8000/cellpose/";
@@ -55,10 +67,16 @@ public class CellsparseCellposeExtension implements QuPathExtension {
 				CellsparseCommand(imageData, serverURL, false);
 			});
 			
-			actionReset = new Action(e -> CellsparseResetCommand(serverURL + "reset/"));
+			actionLiveMode = CellsparseLiveModeAction(qupath, () -> serverURL, 8, 200);
+			
+			actionBatchInference = new Action(event -> CellsparseBatchCommand(qupath.getProject(), qupath.getImageData(), serverURL));
+			
+			actionReset = new Action(e -> CellsparseResetCommand(serverURL));
+			
+			actionSettings = new Action(event -> CellsparseSettingsCommand());
 			
 			actionSetServerURL = new Action(event -> {
-				String newURL = Dialogs.showInputDialog("Server URL", "Set API server URL", serverURL);
+				String newURL = Dialogs.showInputDialog("Server URL", "Set API server URL (several URLs can be separated by commas)", serverURL);
 				if (newURL != null) {
 					serverURL = newURL;
 				}
@@ -0,0 +1,1069 @@
+package org.elephant.cellsparse;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.images.servers.ImageServer;
+import qupath.lib.images.servers.LabeledOffsetImageServer;
+import qupath.lib.images.servers.PixelCalibration;
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjectTools;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.projects.Project;
+import qupath.lib.regions.ImageRegion;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Client of a Cellsparse API server that does not depend on the QuPath GUI.
+ * <p>
+ * A client sends training, inference and reset requests to a server URL, or to several URLs separated by commas,
+ * with fixed {@link CellsparseOptions}. It can be used from scripts and headless batch jobs as well as by the
+ * commands of the extension:
+ * <pre>
+ * def client = CellsparseClient.newBuilder("http://localhost:8000/cellpose/").build()
+ * def cells = client.infer(getCurrentImageData())
+ * CellsparseClient.replaceResults(getCurrentHierarchy(), null, cells)
+ * </pre>
+ * Methods come in three forms: blocking methods that return the results, methods that return a future of the
+ * results, and methods that report to a {@link CellsparseMonitor} and pass the results to a sink in batches as they
+ * are decoded. Failures are reported as {@link CellsparseException}, directly or as the cause of the failed future.
+ * Results are returned in image coordinates and are not added to the hierarchy.
+ * <p>
+ * The connection settings of the options only apply to the requests of the client.
+ */
+public class CellsparseClient {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseClient.class);
+
+	private final String serverURL;
+	private final CellsparseOptions options;
+	private final CellsparseEndpointPool endpointPool;
+	private final CellsparseHttpClient httpClient;
+
+	private CellsparseClient(final Builder builder) {
+		this.serverURL = builder.serverURL;
+		this.options = builder.options;
+		this.endpointPool = CellsparseEndpointPool.get(serverURL);
+		this.httpClient = CellsparseHttpClient.get(
+				Duration.ofSeconds(options.getConnectTimeout()),
+				options.getRequestTimeout() > 0 ? Duration.ofSeconds(options.getRequestTimeout()) : null,
+				options.isHttp2()
+		);
+	}
+
+	/**
+	 * @param serverURL the URL of the algorithm, e.g. {@code http://localhost:8000/cellpose/}, or several URLs
+	 *                  separated by commas
+	 * @return a builder for a client with the default options
+	 */
+	public static Builder newBuilder(final String serverURL) {
+		return new Builder(serverURL);
+	}
+
+	/**
+	 * @return the server URL, or the URLs separated by commas
+	 */
+	public String getServerURL() {
+		return serverURL;
+	}
+
+	/**
+	 * @return the options of the requests
+	 */
+	public CellsparseOptions getOptions() {
+		return options;
+	}
+
+	/**
+	 * Train the model with the Foreground and Background annotations of an image and wait for the results.
+	 * @param imageData
+	 * @param epochs
+	 * @param batchsize
+	 * @param steps
+	 * @return the objects found by the updated model
+	 * @throws CellsparseException if the request fails, is cancelled or the thread is interrupted
+	 */
+	public List<PathObject> train(final ImageData<BufferedImage> imageData, final int epochs, final int batchsize, final int steps) throws CellsparseException {
+		return await(trainAsync(imageData, epochs, batchsize, steps));
+	}
+
+	/**
+	 * Run inference on a whole image and wait for the results.
+	 * @param imageData
+	 * @return the objects found
+	 * @throws CellsparseException if the request fails, is cancelled or the thread is interrupted
+	 */
+	public List<PathObject> infer(final ImageData<BufferedImage> imageData) throws CellsparseException {
+		return infer(imageData, null);
+	}
+
+	/**
+	 * Run inference on a region of an image and wait for the results.
+	 * @param imageData
+	 * @param roi the region, or null for the whole image
+	 * @return the objects found with their centroid inside the region
+	 * @throws CellsparseException if the request fails, is cancelled or the thread is interrupted
+	 */
+	public List<PathObject> infer(final ImageData<BufferedImage> imageData, final ROI roi) throws CellsparseException {
+		return await(inferAsync(imageData, roi));
+	}
+
+	/**
+	 * Run inference on every image of a project, replace the results of each image and save it.
+	 * <p>
+	 * Images processed by an earlier run with the same server URL are skipped if {@code resume} is true.
+	 * Images that fail are logged and skipped.
+	 * @param project
+	 * @param resume
+	 * @return the number of images saved
+	 * @throws CellsparseException if the progress of the run cannot be read or written, or the thread is interrupted
+	 */
+	public int inferProject(final Project<BufferedImage> project, final boolean resume) throws CellsparseException {
+		final ClientMonitor monitor = new ClientMonitor("Cellsparse batch inference");
+		return await(monitor.finish(inferProject(monitor, project, resume, Set.of())));
+	}
+
+	/**
+	 * Reset the model on every endpoint and wait until it is done.
+	 * @throws CellsparseException if any endpoint fails to reset the model
+	 */
+	public void reset() throws CellsparseException {
+		await(resetAsync());
+	}
+
+	/**
+	 * Train the model with the Foreground and Background annotations of an image.
+	 * Cancelling the future cancels the request.
+	 * @param imageData
+	 * @param epochs
+	 * @param batchsize
+	 * @param steps
+	 * @return a future that completes with the objects found by the updated model
+	 */
+	public CompletableFuture<List<PathObject>> trainAsync(final ImageData<BufferedImage> imageData, final int epochs, final int batchsize, final int steps) {
+		final ClientMonitor monitor = new ClientMonitor("Cellsparse training");
+		final List<PathObject> results = Collections.synchronizedList(new ArrayList<>());
+		return monitor.finish(trainAsync(monitor, imageData, epochs, batchsize, steps, results::addAll).thenApply(count -> results));
+	}
+
+	/**
+	 * Run inference on a region of an image.
+	 * Cancelling the future cancels the request.
+	 * @param imageData
+	 * @param roi the region, or null for the whole image
+	 * @return a future that completes with the objects found with their centroid inside the region
+	 */
+	public CompletableFuture<List<PathObject>> inferAsync(final ImageData<BufferedImage> imageData, final ROI roi) {
+		final ClientMonitor monitor = new ClientMonitor("Cellsparse inference");
+		final List<PathObject> results = Collections.synchronizedList(new ArrayList<>());
+		return monitor.finish(inferAsync(monitor, imageData, roi, results::addAll).thenApply(count -> results));
+	}
+
+	/**
+	 * Reset the model on every endpoint, so that inference does not mix models.
+	 * @return a future that completes once every endpoint has reset its model
+	 */
+	public CompletableFuture<Void> resetAsync() {
+		final Gson gson = GsonTools.getInstance();
+		final String bodyJson = gson.toJson(CellsparseResetBody.newBuilder("default").build());
+		final List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (final String endpointURL : endpointPool.getEndpointURLs()) {
+			final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+			        .uri(URI.create(endpointURL + "reset/"))
+			        .header("accept", "application/json")
+			        .header("Content-Type", "application/json; charset=utf-8")
+			        .POST(HttpRequest.BodyPublishers.ofString(bodyJson));
+			futures.add(httpClient.sendAsync(requestBuilder, HttpResponse.BodyHandlers.ofString())
+					.thenCompose(response -> response.statusCode() == HttpURLConnection.HTTP_OK
+							? CompletableFuture.<Void>completedFuture(null)
+							: CompletableFuture.<Void>failedFuture(new CellsparseHttpException(response.statusCode(), response.body()))));
+		}
+		return typed(CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)));
+	}
+
+	/**
+	 * Train the model with the Foreground and Background annotations of an image.
+	 * The model lives on the server, so training always goes to the first endpoint.
+	 * @param monitor
+	 * @param imageData
+	 * @param epochs
+	 * @param batchsize
+	 * @param steps
+	 * @param sink receives the objects found by the updated model, in batches
+	 * @return a future that completes with the number of objects; cancelling it cancels the request
+	 */
+	public CompletableFuture<Integer> trainAsync(
+			final CellsparseMonitor monitor,
+			final ImageData<BufferedImage> imageData,
+			final int epochs,
+			final int batchsize,
+			final int steps,
+			final Consumer<List<PathObject>> sink
+	) {
+		final Rectangle imageBounds = new Rectangle(0, 0, imageData.getServer().getWidth(), imageData.getServer().getHeight());
+		final RequestMonitor requestMonitor = new RequestMonitor(monitor);
+		try {
+			return requestMonitor.follow(typed(requestCellsparse(
+					requestMonitor, imageData, endpointPool.getPrimary(), true, epochs, batchsize, steps, imageBounds, sink)));
+		} catch (RuntimeException e) {
+			return typed(CompletableFuture.failedFuture(e));
+		}
+	}
+
+	/**
+	 * Run inference on a region of an image, as overlapping tiles if tiled inference is enabled.
+	 * Each request is dispatched to one of the endpoints.
+	 * @param monitor
+	 * @param imageData
+	 * @param roi the region, or null for the whole image
+	 * @param sink receives the objects found with their centroid inside the region, in batches
+	 * @return a future that completes with the number of objects; cancelling it cancels the request
+	 */
+	public CompletableFuture<Integer> inferAsync(
+			final CellsparseMonitor monitor,
+			final ImageData<BufferedImage> imageData,
+			final ROI roi,
+			final Consumer<List<PathObject>> sink
+	) {
+		final Rectangle imageBounds = new Rectangle(0, 0, imageData.getServer().getWidth(), imageData.getServer().getHeight());
+		final Rectangle region = roi == null ? imageBounds : imageBounds.intersection(new Rectangle(
+				(int) Math.floor(roi.getBoundsX()),
+				(int) Math.floor(roi.getBoundsY()),
+				(int) Math.ceil(roi.getBoundsWidth()) + 1,
+				(int) Math.ceil(roi.getBoundsHeight()) + 1));
+		// Tiled inference drops the objects outside the ROI itself, when it stitches the tiles
+		final Consumer<List<PathObject>> regionSink = roi == null || options.isTiledInference() ? sink : batch -> sink.accept(batch.stream()
+				.filter(pathObject -> roi.contains(pathObject.getROI().getCentroidX(), pathObject.getROI().getCentroidY()))
+				.toList());
+		final RequestMonitor requestMonitor = new RequestMonitor(monitor);
+		try {
+			return requestMonitor.follow(typed(requestInference(requestMonitor, imageData, region, roi, regionSink)));
+		} catch (IOException | RuntimeException e) {
+			return typed(CompletableFuture.failedFuture(e));
+		}
+	}
+
+	/**
+	 * Run inference on every image of a project, replace the results of each image and save it.
+	 * <p>
+	 * The run reads and saves the images on a background thread, and returns immediately.
+	 * @param monitor
+	 * @param project
+	 * @param resume if false, images processed by an earlier run with the same server URL are processed again
+	 * @param skippedIDs the IDs of the entries to leave out, e.g. the image open in the viewer, which would overwrite
+	 *                   the saved results the next time it is saved; they are processed by the next run
+	 * @return a future that completes with the number of images saved; cancelling it stops the run
+	 */
+	public CompletableFuture<Integer> inferProject(
+			final CellsparseMonitor monitor,
+			final Project<BufferedImage> project,
+			final boolean resume,
+			final Set<String> skippedIDs
+	) {
+		final RequestMonitor requestMonitor = new RequestMonitor(monitor);
+		return requestMonitor.follow(typed(CompletableFuture.supplyAsync(() -> {
+			try {
+				if (!resume)
+					CellsparseBatchInference.clearCompleted(project, serverURL);
+				return new CellsparseBatchInference(
+						requestMonitor,
+						project,
+						serverURL,
+						// Keep every endpoint busy, with one more image being read and uploaded
+						endpointPool.size() + 1,
+						skippedIDs,
+						(imageMonitor, imageData, sink) -> inferAsync(imageMonitor, imageData, null, sink)
+				).run();
+			} catch (IOException e) {
+				throw new CompletionException(e);
+			}
+		}, CellsparseHttpClient.getExecutor()).thenCompose(future -> future)));
+	}
+
+	/**
+	 * @param project
+	 * @return the number of images of the project already processed by an earlier run with the same server URL
+	 * @throws CellsparseException if the progress of the run cannot be read
+	 */
+	public int getCompletedImages(final Project<BufferedImage> project) throws CellsparseException {
+		try {
+			return CellsparseBatchInference.getCompleted(project, serverURL).size();
+		} catch (IOException e) {
+			throw toCellsparseException(e);
+		}
+	}
+
+	/**
+	 * Replace the results of a previous run with new results, in a single hierarchy update.
+	 * <p>
+	 * The results of a previous run are the unclassified annotations added by Cellsparse. Must be called on the
+	 * JavaFX application thread if the hierarchy is displayed.
+	 * @param hierarchy
+	 * @param roi if not null, only the previous results with their centroid inside this ROI are replaced, and not
+	 *            the object of the ROI itself
+	 * @param results
+	 */
+	public static void replaceResults(final PathObjectHierarchy hierarchy, final ROI roi, final Collection<PathObject> results) {
+		final CellsparseResults previousResults = CellsparseResults.get(hierarchy);
+		previousResults.replace(previousResults.getResults(pathObject -> roi == null || (pathObject.getROI() != roi
+				&& roi.contains(pathObject.getROI().getCentroidX(), pathObject.getROI().getCentroidY()))), results);
+	}
+
+	/**
+	 * Wait for a future of this client.
+	 */
+	private <T> T await(final CompletableFuture<T> future) throws CellsparseException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			throw toCellsparseException(e);
+		} catch (CancellationException e) {
+			throw new CellsparseException("Cellsparse request cancelled", e);
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new CellsparseException("Interrupted while waiting for " + serverURL, e);
+		}
+	}
+
+	/**
+	 * Report the failures of a future as {@link CellsparseException}; cancellation is kept as it is.
+	 * Cancelling the returned future cancels the future it reports.
+	 */
+	private <T> CompletableFuture<T> typed(final CompletableFuture<T> future) {
+		final CompletableFuture<T> typedFuture = new CompletableFuture<>();
+		future.whenComplete((result, e) -> {
+			if (e == null) {
+				typedFuture.complete(result);
+				return;
+			}
+			final Throwable cause = unwrap(e);
+			if (cause instanceof CancellationException || cause instanceof Error)
+				typedFuture.completeExceptionally(cause);
+			else
+				typedFuture.completeExceptionally(toCellsparseException(cause));
+		});
+		typedFuture.whenComplete((result, e) -> {
+			if (typedFuture.isCancelled())
+				future.cancel(true);
+		});
+		return typedFuture;
+	}
+
+	private CellsparseException toCellsparseException(final Throwable e) {
+		final Throwable cause = unwrap(e);
+		if (cause instanceof CellsparseException)
+			return (CellsparseException) cause;
+		final String message = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+		if (cause instanceof ConnectException || cause instanceof HttpTimeoutException)
+			return new CellsparseConnectionException("Unable to reach " + serverURL + ": " + message, cause);
+		return new CellsparseException(message, cause);
+	}
+
+	private static Throwable unwrap(Throwable e) {
+		while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null)
+			e = e.getCause();
+		return e;
+	}
+
+	/**
+	 * Run inference on a region, as overlapping tiles if tiled inference is enabled.
+	 * Each request is dispatched to one of the endpoints of the pool.
+	 * @param monitor
+	 * @param imageData
+	 * @param region
+	 * @param mask if not null, only objects with their centroid inside this ROI are kept; only used for tiled inference
+	 * @param sink
+	 * @return a future that completes with the number of objects
+	 * @throws IOException
+	 */
+	private CompletableFuture<Integer> requestInference(
+			final CellsparseMonitor monitor,
+			final ImageData<BufferedImage> imageData,
+			final Rectangle region,
+			final ROI mask,
+			final Consumer<List<PathObject>> sink
+	) throws IOException {
+		if (!options.isTiledInference())
+			return dispatchInference(monitor, imageData, region, sink);
+		return new CellsparseTiledInference(
+				monitor,
+				region,
+				mask,
+				// Tile sizes are given for the images as sent
+				(int) Math.round(options.getInferenceTileSize() * getDownsample(options, imageData)),
+				(int) Math.round(options.getInferenceOverlap() * getDownsample(options, imageData)),
+				options.getInferenceConcurrency(),
+				(tileMonitor, tile, tileSink) -> dispatchInference(tileMonitor, imageData, tile, tileSink),
+				sink
+		).run();
+	}
+
+	/**
+	 * Send an inference request for a region to one of the endpoints, hedging it on another endpoint if enabled.
+	 */
+	private CompletableFuture<Integer> dispatchInference(
+			final CellsparseMonitor monitor,
+			final ImageData<BufferedImage> imageData,
+			final Rectangle region,
+			final Consumer<List<PathObject>> sink
+	) {
+		if (!options.isHedging() || endpointPool.size() < 2) {
+			return endpointPool.dispatch(options.getDispatchPolicy(), endpointURL -> requestCellsparse(
+					monitor, imageData, endpointURL, false, 1, 8, 200, region, sink));
+		}
+		return endpointPool.getHedging().send(
+				monitor,
+				endpointPool,
+				options.getDispatchPolicy(),
+				options.getHedgePercentile(),
+				options.getHedgeMaxRate() / 100.0,
+				(long) region.width * region.height,
+				(attemptMonitor, endpointURL, attemptSink) -> requestCellsparse(
+						attemptMonitor, imageData, endpointURL, false, 1, 8, 200, region, attemptSink),
+				sink);
+	}
+
+	/**
+	 * Send a training or inference request for a region to an endpoint.
+	 * Requests rejected because of the format, a stale label delta or an evicted image are sent again.
+	 */
+	private CompletableFuture<Integer> requestCellsparse(
+			final CellsparseMonitor monitor,
+			final ImageData<BufferedImage> imageData,
+			final String endpointURL,
+			final boolean train,
+			final int epochs,
+			final int batchsize,
+			final int steps,
+			final Rectangle region,
+			final Consumer<List<PathObject>> sink
+	) {
+		// The other features do not depend on the frame format, so the capabilities are always queried
+		return monitor.track(CellsparseCapabilities.forEndpoint(httpClient, endpointURL)).thenCompose(capabilities -> {
+			final UploadFormat format = new UploadFormat(capabilities, monitor.getMetrics(), imageData, region);
+			final String knownHash = format.residency ? CellsparseImageResidency.getHash(endpointURL, format.imageKey) : null;
+			final CompletableFuture<Boolean> resident = knownHash != null
+					? monitor.track(CellsparseImageResidency.isResident(httpClient, endpointURL, knownHash))
+					: CompletableFuture.completedFuture(false);
+			// Reading and encoding the image blocks, so the request is built on the executor for blocking tasks
+			return resident.thenComposeAsync(isResident -> {
+				try {
+					return sendCellsparse(monitor, imageData, endpointURL, train, epochs, batchsize, steps, region, sink,
+							capabilities, format, isResident ? knownHash : null);
+				} catch (IOException e) {
+					return CompletableFuture.failedFuture(e);
+				}
+			}, CellsparseHttpClient.getExecutor());
+		});
+	}
+
+	/**
+	 * Build and send a request once the capabilities of the endpoint and the residency of the image are known.
+	 * @param residentHash hash of the image held by the endpoint, or null to upload it
+	 */
+	private CompletableFuture<Integer> sendCellsparse(
+			final CellsparseMonitor monitor,
+			final ImageData<BufferedImage> imageData,
+			final String endpointURL,
+			final boolean train,
+			final int epochs,
+			final int batchsize,
+			final int steps,
+			final Rectangle region,
+			final Consumer<List<PathObject>> sink,
+			final CellsparseCapabilities capabilities,
+			final UploadFormat format,
+			final String residentHash
+	) throws IOException {
+		final Gson gson = GsonTools.getInstance();
+		final boolean useFrame = format.useFrame;
+		final boolean residency = format.residency;
+		final boolean tiledUpload = format.tiledUpload;
+		final CellsparseMetrics metrics = monitor.getMetrics();
+		final CellsparseImageEncoder encoder = format.encoder;
+		final int uploadTileSize = format.uploadTileSize;
+		final double downsample = format.downsample;
+		final String imageKey = format.imageKey;
+		// Size of the image as sent, which is the size of the region at the downsample
+		final int imageWidth = Math.max(1, (int) Math.round(region.width / downsample));
+		final int imageHeight = Math.max(1, (int) Math.round(region.height / downsample));
+		final PathClass foregroundClass = PathClass.getInstance("Foreground");
+		final PathClass backgroundClass = PathClass.getInstance("Background");
+		final boolean crops = train && options.isCropTraining() && capabilities.supportsFeature(CellsparseCapabilities.FEATURE_CROPS);
+		// Background annotations are painted as 1 and foreground instances on top of them in a single pass
+		final LabeledOffsetImageServer.Builder labelServerBuilder = new LabeledOffsetImageServer.Builder(imageData)
+				.useFilter(pathObject -> pathObject.getPathClass() == foregroundClass)
+				.addBaseLabel("Background", 1)
+				.downsample(downsample)
+				.grayscale();
+		final CellsparseLabelTracker labelTracker;
+		final CellsparseLabelTracker.Delta labelDelta;
+		if (train && !crops && residency && capabilities.supportsFeature(CellsparseCapabilities.FEATURE_LABEL_DELTA)) {
+			// Stable instance labels, so that unchanged label tiles can be skipped in the next request
+			final Collection<PathObject> annotations = imageData.getHierarchy().getAnnotationObjects();
+			labelTracker = CellsparseLabelTracker.get(imageData.getHierarchy(), endpointURL);
+			// The tracker compares annotations in image coordinates, so it gets the tiles at full resolution
+			final Map<Rectangle, Rectangle> tileGrid = new IdentityHashMap<>();
+			for (final Rectangle tile : CellsparseTiledBody.getTileGrid(imageWidth, imageHeight, options.getTileSize()))
+				tileGrid.put(toImageCoordinates(tile, region, downsample), tile);
+			final CellsparseLabelTracker.Delta fullResolutionDelta = labelTracker.prepare(
+					annotations.stream().filter(pathObject -> pathObject.getPathClass() == foregroundClass).toList(),
+					annotations.stream().filter(pathObject -> pathObject.getPathClass() == backgroundClass).toList(),
+					residentHash,
+					new ArrayList<>(tileGrid.keySet())
+			);
+			labelDelta = fullResolutionDelta.mapTiles(tileGrid::get);
+			labelServerBuilder.useInstanceLabels(labelDelta.getLabels());
+		}
+		else {
+			labelTracker = null;
+			labelDelta = null;
+			labelServerBuilder.useInstanceLabels().offset(1);
+		}
+		final LabeledOffsetImageServer labelServer = labelServerBuilder.build();
+		final boolean delta = labelDelta != null && labelDelta.isDelta();
+		final boolean tiled = tiledUpload || delta || crops;
+		final List<Rectangle> cropTiles = crops ? packCrops(imageData, options, foregroundClass, backgroundClass, downsample) : null;
+		if (cropTiles != null && cropTiles.isEmpty())
+			throw new CellsparseException("No Foreground or Background annotations to train on");
+		final Supplier<InputStream> bodyStream;
+		final HttpRequest.BodyPublisher bodyPublisher;
+		final String contentType;
+		final Supplier<String> uploadedHash;
+		if (tiled) {
+			final CellsparseTiledBody body = CellsparseTiledBody.newBuilder("default")
+					.format(useFrame ? CellsparseTiledBody.Format.FRAME : CellsparseTiledBody.Format.JSON)
+					.image(
+							(x, y, width, height) -> metrics.time(CellsparseMetrics.Stage.READ_IMAGE,
+									() -> readImageTile(imageData.getServer(), downsample, region, x, y, width, height)),
+							imageWidth,
+							imageHeight
+					)
+					.residentImage(residentHash)
+					.label((x, y, width, height) -> metrics.time(CellsparseMetrics.Stage.RENDER_LABELS,
+							() -> readLabelTile(labelServer, downsample, region, x, y, width, height)))
+					.tileSize(uploadTileSize > 0 ? uploadTileSize : Math.max(imageWidth, imageHeight))
+					.encoder(encoder)
+					.parallelism(options.getEncoderThreads())
+					.metrics(metrics)
+					.tiles(delta ? labelDelta.getTiles() : cropTiles)
+					.baseVersion(delta ? labelDelta.getBaseVersion() : null)
+					.cropped(crops)
+					.train(train)
+					.eval(true)
+					.epochs(epochs)
+					.batchsize(batchsize)
+					.steps(steps)
+					.build();
+			bodyStream = body::openStream;
+			bodyPublisher = HttpRequest.BodyPublishers.ofInputStream(bodyStream);
+			contentType = body.getContentType();
+			// Crops do not make the whole image resident
+			uploadedHash = crops ? () -> null : body::getEncodedImageHash;
+		}
+		else {
+			String strImage = null;
+			String imageHash = null;
+			if (residentHash == null) {
+				final BufferedImage image = metrics.time(CellsparseMetrics.Stage.READ_IMAGE,
+						() -> readImageTile(imageData.getServer(), downsample, region, 0, 0, imageWidth, imageHeight));
+				final byte[] imageBytes = encoder.encode(image);
+				imageHash = CellsparseImageResidency.toHex(CellsparseImageResidency.createDigest().digest(imageBytes));
+				strImage = metrics.time(CellsparseMetrics.Stage.BASE64, () -> Base64.getEncoder().encodeToString(imageBytes));
+			}
+			final BufferedImage lblImage = metrics.time(CellsparseMetrics.Stage.RENDER_LABELS,
+					() -> readLabelTile(labelServer, downsample, region, 0, 0, imageWidth, imageHeight));
+			final byte[] lblBytes = encoder.encode(lblImage);
+			final String strLabel = metrics.time(CellsparseMetrics.Stage.BASE64, () -> Base64.getEncoder().encodeToString(lblBytes));
+			final CellsparseBody body = CellsparseBody.newBuilder("default")
+					.b64img(strImage)
+					.imghash(residentHash)
+					.b64lbl(strLabel)
+					.train(train)
+					.eval(true)
+					.epochs(epochs)
+					.batchsize(batchsize)
+					.steps(steps)
+					.build();
+			final byte[] bodyBytes = metrics.time(CellsparseMetrics.Stage.SERIALIZE, () -> gson.toJson(body).getBytes(StandardCharsets.UTF_8));
+			bodyStream = () -> new ByteArrayInputStream(bodyBytes);
+			bodyPublisher = HttpRequest.BodyPublishers.ofByteArray(bodyBytes);
+			contentType = CellsparseTiledBody.Format.JSON.getContentType();
+			final String legacyHash = imageHash;
+			uploadedHash = () -> legacyHash;
+		}
+
+		final CellsparseCompression.EncodedBody encodedBody =
+				options.isCompression() && capabilities.supportsFeature(CellsparseCapabilities.FEATURE_GZIP_REQUESTS)
+				? CellsparseCompression.encode(bodyStream, options.getCompressionLevel(), options.getCompressionThreshold())
+				: CellsparseCompression.identity(bodyPublisher);
+		// The lazy body is read and encoded while it is sent, so the round trip starts once it has been sent
+		final AtomicLong uploaded = new AtomicLong();
+		final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+		        .uri(URI.create(endpointURL))
+		        .header("accept", options.isCompactResults() ? CellsparseResponseReader.ACCEPT_POLYGONS : "application/json")
+		        .header("Content-Type", contentType)
+		        .POST(metrics.countSent(encodedBody.getBodyPublisher(), uploaded));
+		if (encodedBody.isCompressed())
+			requestBuilder.header("Content-Encoding", encodedBody.getContentEncoding());
+		if (options.isCompression())
+			requestBuilder.header("Accept-Encoding", CellsparseCompression.ACCEPT_ENCODING);
+		final boolean trainingJob = train && options.isTrainingJobs()
+				&& capabilities.supportsFeature(CellsparseCapabilities.FEATURE_TRAINING_JOBS);
+		if (trainingJob)
+			requestBuilder.header("Prefer", CellsparseTrainingJob.PREFER_ASYNC);
+		monitor.updateStatus(train ? "Training" : "Running inference", -1);
+		return monitor.track(httpClient.sendAsync(requestBuilder, HttpResponse.BodyHandlers.ofInputStream()))
+				.thenCompose(response -> {
+					// A server may answer before it has read the whole body, e.g. to reject it
+					if (uploaded.get() != 0)
+						metrics.record(CellsparseMetrics.Stage.ROUND_TRIP, System.nanoTime() - uploaded.get());
+					if (!trainingJob || response.statusCode() != HttpURLConnection.HTTP_ACCEPTED)
+						return CompletableFuture.completedFuture(response);
+					return CellsparseTrainingJob.follow(httpClient, endpointURL, response, monitor, resultBuilder -> {
+						resultBuilder.header("accept", options.isCompactResults() ? CellsparseResponseReader.ACCEPT_POLYGONS : "application/json");
+						if (options.isCompression())
+							resultBuilder.header("Accept-Encoding", CellsparseCompression.ACCEPT_ENCODING);
+					});
+				})
+				.thenComposeAsync(response -> {
+					try {
+						final InputStream responseBody = CellsparseCompression.decode(response.headers(), metrics.countReceived(response.body()));
+						if (response.statusCode() == HttpURLConnection.HTTP_OK) {
+							if (residency && residentHash == null && uploadedHash.get() != null)
+								CellsparseImageResidency.remember(endpointURL, imageKey, uploadedHash.get());
+							if (labelTracker != null) {
+								labelTracker.commit(
+										labelDelta,
+										residentHash != null ? residentHash : uploadedHash.get(),
+										response.headers().firstValue(CellsparseLabelTracker.HEADER_LABEL_VERSION).orElse(null));
+							}
+							monitor.updateStatus("Receiving results", -1);
+							final int count = metrics.time(CellsparseMetrics.Stage.PARSE, () -> CellsparseResponseReader.readPathObjects(
+									response.headers().firstValue("Content-Type").orElse(null),
+									responseBody,
+									CellsparseResponseReader.DEFAULT_BATCH_SIZE,
+									region.x == 0 && region.y == 0 && downsample == 1.0
+											? sink : batch -> sink.accept(toImageCoordinates(batch, region, downsample)),
+									monitor));
+							metrics.addObjects(count);
+							return CompletableFuture.completedFuture(count);
+						}
+						final String message = readString(responseBody);
+						if ((useFrame || encodedBody.isCompressed()) && response.statusCode() == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+							CellsparseCapabilities.rejectFormats(endpointURL);
+							return requestCellsparse(monitor, imageData, endpointURL, train, epochs, batchsize, steps, region, sink);
+						}
+						if (delta && response.statusCode() == HttpURLConnection.HTTP_CONFLICT) {
+							// The server no longer holds the labels the delta is based on
+							labelTracker.reset();
+							return requestCellsparse(monitor, imageData, endpointURL, train, epochs, batchsize, steps, region, sink);
+						}
+						if (residentHash != null && response.statusCode() == HttpURLConnection.HTTP_CONFLICT) {
+							// The server has evicted the image since it was asked
+							CellsparseImageResidency.forget(endpointURL, imageKey);
+							return requestCellsparse(monitor, imageData, endpointURL, train, epochs, batchsize, steps, region, sink);
+						}
+						return CompletableFuture.failedFuture(new CellsparseHttpException(response.statusCode(), message));
+					} catch (IOException e) {
+						return CompletableFuture.failedFuture(e);
+					}
+				}, CellsparseHttpClient.getExecutor());
+	}
+
+	/**
+	 * How the image of a region is sent to an endpoint, and the key under which it is remembered as resident.
+	 */
+	private class UploadFormat {
+
+		private final boolean useFrame;
+		private final boolean residency;
+		private final boolean tiledUpload;
+		private final CellsparseImageEncoder encoder;
+		private final int uploadTileSize;
+		private final double downsample;
+		private final String imageKey;
+
+		private UploadFormat(
+				final CellsparseCapabilities capabilities,
+				final CellsparseMetrics metrics,
+				final ImageData<BufferedImage> imageData,
+				final Rectangle region
+		) {
+			this.useFrame = options.isBinaryTransport() && capabilities.supportsFormat(CellsparseCapabilities.FORMAT_FRAME);
+			this.residency = capabilities.supportsFeature(CellsparseCapabilities.FEATURE_IMAGE_RESIDENCY);
+			// Raw tiles and parallel encoding need a tiled request; otherwise the image is sent as a single PNG
+			this.tiledUpload = useFrame || options.isStreamingUpload();
+			this.encoder = metrics.wrap(tiledUpload
+					&& options.getEncoding() == CellsparseImageEncoder.Encoding.RAW
+					&& capabilities.supportsFeature(CellsparseCapabilities.FEATURE_RAW_ENCODING)
+					? CellsparseImageEncoder.raw()
+					: CellsparseImageEncoder.png(options.getPngCompressionLevel()));
+			this.uploadTileSize = options.isStreamingUpload() || (useFrame && options.getEncoderThreads() > 1)
+					? options.getTileSize() : 0;
+			this.downsample = getDownsample(options, imageData);
+			this.imageKey = imageData.getServer().getPath() + "|" + (useFrame ? "frame" : "json")
+					+ "|" + encoder + "|" + uploadTileSize + "|" + region.x + "," + region.y + "," + region.width + "," + region.height
+					+ "|" + downsample;
+		}
+
+	}
+
+	/**
+	 * @return the downsample at which images are sent, from the pixel size if it is set and the image is calibrated
+	 */
+	static double getDownsample(final CellsparseOptions options, final ImageData<BufferedImage> imageData) {
+		final PixelCalibration calibration = imageData.getServer().getPixelCalibration();
+		if (options.getPixelSize() > 0 && calibration.hasPixelSizeMicrons())
+			return Math.max(1.0, options.getPixelSize() / calibration.getAveragedPixelSizeMicrons());
+		return options.getDownsample();
+	}
+
+	/**
+	 * Read a tile of the image as {@link #readScaledRegion}, through the tile cache if it is enabled.
+	 * Image tiles are identified by the path of the image server.
+	 */
+	private BufferedImage readImageTile(
+			final ImageServer<BufferedImage> server,
+			final double downsample,
+			final Rectangle region,
+			final int x,
+			final int y,
+			final int width,
+			final int height
+	) throws IOException {
+		final CellsparseTileCache tileCache = getTileCache();
+		if (tileCache == null)
+			return readScaledRegion(server, downsample, region, x, y, width, height);
+		return tileCache.getOrRender(
+				"image|" + server.getPath() + "|" + getTileKey(downsample, region, x, y, width, height),
+				() -> readScaledRegion(server, downsample, region, x, y, width, height));
+	}
+
+	/**
+	 * Read a tile of the labels as {@link #readScaledRegion}, through the tile cache if it is enabled.
+	 * Label tiles are identified by the render parameters and the objects painted in the tile, so that a tile is
+	 * rendered again only if one of its objects has changed.
+	 */
+	private BufferedImage readLabelTile(
+			final LabeledOffsetImageServer server,
+			final double downsample,
+			final Rectangle region,
+			final int x,
+			final int y,
+			final int width,
+			final int height
+	) throws IOException {
+		final CellsparseTileCache tileCache = getTileCache();
+		if (tileCache == null)
+			return readScaledRegion(server, downsample, region, x, y, width, height);
+		final Rectangle bounds = toImageCoordinates(new Rectangle(x, y, width, height), region, downsample);
+		return tileCache.getOrRender(
+				"label|" + server.getRenderKey()
+				+ "|" + server.getRegionKey(ImageRegion.createInstance(bounds.x, bounds.y, bounds.width, bounds.height, 0, 0))
+				+ "|" + getTileKey(downsample, region, x, y, width, height),
+				() -> readScaledRegion(server, downsample, region, x, y, width, height));
+	}
+
+	/**
+	 * @return the bounds of a tile in image coordinates with its size as sent, which determine its pixels
+	 */
+	private static String getTileKey(final double downsample, final Rectangle region, final int x, final int y, final int width, final int height) {
+		final Rectangle bounds = toImageCoordinates(new Rectangle(x, y, width, height), region, downsample);
+		return downsample + "|" + bounds.x + "," + bounds.y + "," + bounds.width + "," + bounds.height + "|" + width + "x" + height;
+	}
+
+	/**
+	 * @return the tile cache, or null if it is disabled
+	 */
+	private CellsparseTileCache getTileCache() {
+		if (options.getTileCacheSize() <= 0)
+			return null;
+		return CellsparseTileCache.get(
+				options.getTileCacheDirectory().isBlank()
+						? CellsparseTileCache.getDefaultDirectory() : Paths.get(options.getTileCacheDirectory()),
+				options.getTileCacheSize() * 1024L * 1024L);
+	}
+
+	/**
+	 * Read a tile of a region at a downsample.
+	 * <p>
+	 * The tile is given in the coordinates of the downsampled region. Its bounds are rounded to full-resolution pixels,
+	 * so the image read may be a pixel off; it is cropped or padded with zeros to the requested size.
+	 * @param server
+	 * @param downsample
+	 * @param region the region in image coordinates
+	 * @param x
+	 * @param y
+	 * @param width
+	 * @param height
+	 * @return
+	 * @throws IOException
+	 */
+	private static BufferedImage readScaledRegion(
+			final ImageServer<BufferedImage> server,
+			final double downsample,
+			final Rectangle region,
+			final int x,
+			final int y,
+			final int width,
+			final int height
+	) throws IOException {
+		if (downsample == 1.0)
+			return server.readRegion(1.0, region.x + x, region.y + y, width, height);
+		final Rectangle bounds = toImageCoordinates(new Rectangle(x, y, width, height), region, downsample);
+		final BufferedImage image = server.readRegion(downsample, bounds.x, bounds.y, bounds.width, bounds.height);
+		if (image.getWidth() == width && image.getHeight() == height)
+			return image;
+		final WritableRaster raster = image.getRaster().createCompatibleWritableRaster(width, height);
+		raster.setRect(image.getRaster());
+		return new BufferedImage(image.getColorModel(), raster, image.isAlphaPremultiplied(), null);
+	}
+
+	/**
+	 * @return the bounds in image coordinates of a tile of a downsampled region, clipped to the region
+	 */
+	private static Rectangle toImageCoordinates(final Rectangle tile, final Rectangle region, final double downsample) {
+		final int x = region.x + (int) Math.floor(tile.x * downsample);
+		final int y = region.y + (int) Math.floor(tile.y * downsample);
+		final int x2 = Math.min(region.x + region.width, region.x + (int) Math.ceil((tile.x + tile.width) * downsample));
+		final int y2 = Math.min(region.y + region.height, region.y + (int) Math.ceil((tile.y + tile.height) * downsample));
+		return new Rectangle(x, y, Math.max(1, x2 - x), Math.max(1, y2 - y));
+	}
+
+	/**
+	 * Move objects returned for a downsampled region of the image to image coordinates.
+	 * @param pathObjects
+	 * @param region
+	 * @param downsample
+	 * @return
+	 */
+	private static List<PathObject> toImageCoordinates(final List<PathObject> pathObjects, final Rectangle region, final double downsample) {
+		final AffineTransform transform = AffineTransform.getTranslateInstance(region.x, region.y);
+		transform.scale(downsample, downsample);
+		return pathObjects.stream()
+				.map(pathObject -> PathObjectTools.transformObject(pathObject, transform, true))
+				.toList();
+	}
+
+	/**
+	 * @return crops around the Foreground and Background annotations, no larger than the tile size
+	 */
+	private static List<Rectangle> packCrops(
+			final ImageData<BufferedImage> imageData,
+			final CellsparseOptions options,
+			final PathClass foregroundClass,
+			final PathClass backgroundClass,
+			final double downsample
+	) {
+		final List<PathObject> annotations = imageData.getHierarchy().getAnnotationObjects().stream()
+				.filter(pathObject -> pathObject.getPathClass() == foregroundClass || pathObject.getPathClass() == backgroundClass)
+				.toList();
+		// Crops are found at full resolution, then mapped to the downsampled image
+		final Rectangle scaledBounds = new Rectangle(
+				0, 0,
+				Math.max(1, (int) Math.round(imageData.getServer().getWidth() / downsample)),
+				Math.max(1, (int) Math.round(imageData.getServer().getHeight() / downsample)));
+		final List<Rectangle> crops = CellsparseCropPacker.pack(
+				annotations,
+				options.getCropPadding(),
+				imageData.getServer().getWidth(),
+				imageData.getServer().getHeight()).stream()
+				.map(crop -> {
+					final int x = (int) Math.floor(crop.x / downsample);
+					final int y = (int) Math.floor(crop.y / downsample);
+					final int x2 = (int) Math.ceil((crop.x + crop.width) / downsample);
+					final int y2 = (int) Math.ceil((crop.y + crop.height) / downsample);
+					return new Rectangle(x, y, x2 - x, y2 - y).intersection(scaledBounds);
+				})
+				.filter(crop -> !crop.isEmpty())
+				.toList();
+		return CellsparseCropPacker.split(crops, options.getTileSize());
+	}
+
+	private static String readString(final InputStream inputStream) throws IOException {
+		try (inputStream) {
+			return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Monitor of the requests started without one: status updates are logged, the metrics are reported when the
+	 * request completes, and cancelling the future of the request cancels its HTTP exchanges.
+	 */
+	private static class ClientMonitor implements CellsparseMonitor {
+
+		private final String title;
+		private final CellsparseMetrics metrics;
+		private final List<CompletableFuture<?>> inFlight = new CopyOnWriteArrayList<>();
+		private volatile boolean cancelled = false;
+
+		private ClientMonitor(final String title) {
+			this.title = title;
+			this.metrics = new CellsparseMetrics(title);
+		}
+
+		/**
+		 * @return the same future, once the monitor follows it
+		 */
+		private <T> CompletableFuture<T> finish(final CompletableFuture<T> future) {
+			future.whenComplete((result, e) -> {
+				if (future.isCancelled()) {
+					cancelled = true;
+					for (final CompletableFuture<?> exchange : inFlight)
+						exchange.cancel(true);
+				}
+				metrics.finish(e == null);
+			});
+			return future;
+		}
+
+		@Override
+		public <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+			inFlight.add(future);
+			future.whenComplete((result, e) -> inFlight.remove(future));
+			if (cancelled)
+				future.cancel(true);
+			return future;
+		}
+
+		@Override
+		public void updateStatus(final String message, final double progress) {
+			if (progress < 0)
+				logger.debug("{}: {}", title, message);
+			else
+				logger.debug("{}: {} ({}%)", title, message, Math.round(progress * 100));
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public CellsparseMetrics getMetrics() {
+			return metrics;
+		}
+
+	}
+
+	/**
+	 * Forwards to the monitor of the caller, and cancels the HTTP exchanges of the request when the future returned
+	 * to the caller is cancelled.
+	 */
+	private static class RequestMonitor implements CellsparseMonitor {
+
+		private final CellsparseMonitor monitor;
+		private final List<CompletableFuture<?>> inFlight = new CopyOnWriteArrayList<>();
+		private volatile boolean cancelled = false;
+
+		private RequestMonitor(final CellsparseMonitor monitor) {
+			this.monitor = monitor;
+		}
+
+		/**
+		 * @return the same future, once the monitor follows it
+		 */
+		private <T> CompletableFuture<T> follow(final CompletableFuture<T> future) {
+			future.whenComplete((result, e) -> {
+				if (future.isCancelled()) {
+					cancelled = true;
+					for (final CompletableFuture<?> exchange : inFlight)
+						exchange.cancel(true);
+				}
+			});
+			return future;
+		}
+
+		@Override
+		public <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+			inFlight.add(future);
+			future.whenComplete((result, e) -> inFlight.remove(future));
+			if (cancelled)
+				future.cancel(true);
+			return monitor.track(future);
+		}
+
+		@Override
+		public void updateStatus(final String message, final double progress) {
+			monitor.updateStatus(message, progress);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled || monitor.isCancelled();
+		}
+
+		@Override
+		public CellsparseMetrics getMetrics() {
+			return monitor.getMetrics();
+		}
+
+	}
+
+	public static class Builder {
+
+		private final String serverURL;
+		private CellsparseOptions options = CellsparseOptions.newBuilder().build();
+
+		private Builder(final String serverURL) {
+			if (serverURL == null || serverURL.isBlank())
+				throw new IllegalArgumentException("Server URL must not be empty!");
+			this.serverURL = serverURL;
+		}
+
+		/**
+		 * @param options options of the requests
+		 * @return
+		 */
+		public Builder options(final CellsparseOptions options) {
+			this.options = options;
+			return this;
+		}
+
+		public CellsparseClient build() {
+			return new CellsparseClient(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,199 @@
+package org.elephant.cellsparse;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content encoding of request and response bodies.
+ * <p>
+ * Request bodies are compressed with gzip while they are being sent, so compression does not require the
+ * whole body in memory. Before a body is compressed, its first bytes are read: if the body ends before the
+ * threshold, it is sent as it is, since the gzip header and trailer would outweigh the savings.
+ * Responses are requested with {@code Accept-Encoding: gzip, deflate} and decoded according to their
+ * {@code Content-Encoding}.
+ */
+class CellsparseCompression {
+
+	static final String ENCODING_GZIP = "gzip";
+	static final String ENCODING_DEFLATE = "deflate";
+
+	/**
+	 * Value of the Accept-Encoding header for requests that return large bodies.
+	 */
+	static final String ACCEPT_ENCODING = ENCODING_GZIP + ", " + ENCODING_DEFLATE;
+
+	private CellsparseCompression() {}
+
+	/**
+	 * Body ready to be attached to a request.
+	 */
+	static class EncodedBody {
+
+		private final HttpRequest.BodyPublisher bodyPublisher;
+		private final String contentEncoding;
+
+		private EncodedBody(final HttpRequest.BodyPublisher bodyPublisher, final String contentEncoding) {
+			this.bodyPublisher = bodyPublisher;
+			this.contentEncoding = contentEncoding;
+		}
+
+		HttpRequest.BodyPublisher getBodyPublisher() {
+			return bodyPublisher;
+		}
+
+		/**
+		 * @return the value of the Content-Encoding header, or null if the body is not compressed
+		 */
+		String getContentEncoding() {
+			return contentEncoding;
+		}
+
+		/**
+		 * @return true if the body is compressed
+		 */
+		boolean isCompressed() {
+			return contentEncoding != null;
+		}
+
+	}
+
+	/**
+	 * @param bodyPublisher
+	 * @return the body, sent as it is
+	 */
+	static EncodedBody identity(final HttpRequest.BodyPublisher bodyPublisher) {
+		return new EncodedBody(bodyPublisher, null);
+	}
+
+	/**
+	 * Prepare a request body, compressing it with gzip unless it is smaller than the threshold.
+	 * <p>
+	 * Up to {@code threshold} bytes are read from the body immediately. The bytes read are reused for the
+	 * first transmission; if the client needs to send the body again, a new stream is opened.
+	 * @param body opens a new stream of the uncompressed body
+	 * @param level the deflate compression level, from 1 (fastest) to 9 (smallest)
+	 * @param threshold bodies smaller than this number of bytes are not compressed
+	 * @return
+	 * @throws IOException
+	 */
+	static EncodedBody encode(final Supplier<InputStream> body, final int level, final int threshold) throws IOException {
+		final InputStream inputStream = body.get();
+		final byte[] head;
+		try {
+			head = inputStream.readNBytes(threshold);
+		} catch (IOException e) {
+			inputStream.close();
+			throw e;
+		}
+		if (head.length < threshold) {
+			inputStream.close();
+			return new EncodedBody(HttpRequest.BodyPublishers.ofByteArray(head), null);
+		}
+		final AtomicReference<InputStream> firstStream = new AtomicReference<>(
+				new SequenceInputStream(new ByteArrayInputStream(head), inputStream));
+		return new EncodedBody(
+				HttpRequest.BodyPublishers.ofInputStream(() -> {
+					final InputStream first = firstStream.getAndSet(null);
+					return new GzipCompressingInputStream(first != null ? first : body.get(), level);
+				}),
+				ENCODING_GZIP);
+	}
+
+	/**
+	 * Wrap a response body so that it is decoded according to its Content-Encoding header.
+	 * @param headers the response headers
+	 * @param inputStream the response body as received
+	 * @return
+	 * @throws IOException
+	 */
+	static InputStream decode(final HttpHeaders headers, final InputStream inputStream) throws IOException {
+		final String contentEncoding = headers.firstValue("Content-Encoding").orElse("").trim();
+		if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding))
+			return new GZIPInputStream(inputStream);
+		if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding))
+			return new InflaterInputStream(inputStream);
+		return inputStream;
+	}
+
+	/**
+	 * Stream that compresses another stream into the gzip format as it is read.
+	 * <p>
+	 * {@link java.util.zip.GZIPOutputStream} needs to be written to, so the gzip header, the raw deflate data and
+	 * the trailer with the CRC-32 and the size of the input are assembled here instead.
+	 */
+	private static class GzipCompressingInputStream extends FilterInputStream {
+
+		private static final byte[] HEADER = {
+				0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+		};
+
+		private final Deflater deflater;
+
+		private GzipCompressingInputStream(final InputStream inputStream, final int level) {
+			this(new CheckedInputStream(inputStream, new CRC32()), new Deflater(level, true));
+		}
+
+		private GzipCompressingInputStream(final CheckedInputStream checkedInputStream, final Deflater deflater) {
+			super(new SequenceInputStream(
+					new ByteArrayInputStream(HEADER),
+					new SequenceInputStream(
+							new DeflaterInputStream(checkedInputStream, deflater),
+							new TrailerInputStream(checkedInputStream, deflater))));
+			this.deflater = deflater;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+			} finally {
+				deflater.end();
+			}
+		}
+
+	}
+
+	/**
+	 * The gzip trailer, which is only known once the compressed data has been read.
+	 */
+	private static class TrailerInputStream extends InputStream {
+
+		private final CheckedInputStream checkedInputStream;
+		private final Deflater deflater;
+		private byte[] trailer = null;
+		private int position = 0;
+
+		private TrailerInputStream(final CheckedInputStream checkedInputStream, final Deflater deflater) {
+			this.checkedInputStream = checkedInputStream;
+			this.deflater = deflater;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (trailer == null) {
+				final long crc = checkedInputStream.getChecksum().getValue();
+				final long size = deflater.getBytesRead();
+				trailer = new byte[] {
+						(byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+						(byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+				};
+			}
+			return position < trailer.length ? trailer[position++] & 0xff : -1;
+		}
+
+	}
+
+}
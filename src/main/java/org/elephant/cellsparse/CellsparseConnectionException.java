@@ -0,0 +1,14 @@
+package org.elephant.cellsparse;
+
+/**
+ * Signals that the Cellsparse API server could not be reached or did not answer in time.
+ */
+public class CellsparseConnectionException extends CellsparseException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CellsparseConnectionException(final String message, final Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,90 @@
+package org.elephant.cellsparse;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Finds the labelled neighbourhoods of an image for sparse training.
+ * <p>
+ * The bounds of each annotation are padded and clipped to the image, and overlapping rectangles are merged
+ * until no two crops overlap. Each crop therefore covers a cluster of nearby annotations with some context
+ * around it, and the crops together cover every annotated pixel exactly once. Crops of large clusters can then be
+ * {@link #split split} into tiles, so that no crop is larger than the image sent without crops.
+ */
+class CellsparseCropPacker {
+
+	private CellsparseCropPacker() {}
+
+	/**
+	 * @param pathObjects the annotations to cover
+	 * @param padding the context in pixels added around each annotation
+	 * @param width the image width
+	 * @param height the image height
+	 * @return non-overlapping crops ordered from top to bottom, then left to right
+	 */
+	static List<Rectangle> pack(final Collection<PathObject> pathObjects, final int padding, final int width, final int height) {
+		final Rectangle imageBounds = new Rectangle(0, 0, width, height);
+		List<Rectangle> crops = new ArrayList<>();
+		for (final PathObject pathObject : pathObjects) {
+			final ROI roi = pathObject.getROI();
+			if (roi == null)
+				continue;
+			final int x = (int) Math.floor(roi.getBoundsX()) - padding;
+			final int y = (int) Math.floor(roi.getBoundsY()) - padding;
+			final int x2 = (int) Math.ceil(roi.getBoundsX() + roi.getBoundsWidth()) + padding;
+			final int y2 = (int) Math.ceil(roi.getBoundsY() + roi.getBoundsHeight()) + padding;
+			final Rectangle crop = new Rectangle(x, y, x2 - x, y2 - y).intersection(imageBounds);
+			if (!crop.isEmpty())
+				crops.add(crop);
+		}
+		// A merged crop may overlap crops it did not overlap before, so repeat until nothing changes
+		boolean merged = true;
+		while (merged) {
+			merged = false;
+			crops.sort(Comparator.comparingInt((Rectangle r) -> r.x));
+			final List<Rectangle> result = new ArrayList<>(crops.size());
+			for (final Rectangle crop : crops) {
+				Rectangle current = crop;
+				for (int i = result.size() - 1; i >= 0; i--) {
+					final Rectangle other = result.get(i);
+					if (other.intersects(current)) {
+						current = current.union(other);
+						result.remove(i);
+						merged = true;
+					}
+				}
+				result.add(current);
+			}
+			crops = result;
+		}
+		crops.sort(Comparator.comparingInt((Rectangle r) -> r.y).thenComparingInt(r -> r.x));
+		return crops;
+	}
+
+	/**
+	 * @param crops non-overlapping crops
+	 * @param tileSize the maximum width and height of a crop
+	 * @return the crops, with crops larger than the tile size split into tiles row by row
+	 */
+	static List<Rectangle> split(final List<Rectangle> crops, final int tileSize) {
+		final List<Rectangle> result = new ArrayList<>(crops.size());
+		for (final Rectangle crop : crops) {
+			if (crop.width <= tileSize && crop.height <= tileSize) {
+				result.add(crop);
+				continue;
+			}
+			for (final Rectangle tile : CellsparseTiledBody.getTileGrid(crop.width, crop.height, tileSize)) {
+				tile.translate(crop.x, crop.y);
+				result.add(tile);
+			}
+		}
+		return result;
+	}
+
+}
@@ -36,12 +36,24 @@ public class CellsparseElephantExtension implements QuPathExtension {
 		@ActionDescription("ELEPHANT inference.")
 		public final Action actionInference;
 		
+		@ActionMenu("ELEPHANT>Live mode")
+		@ActionDescription("Retrain ELEPHANT and rerun inference automatically when Foreground or Background annotations change.")
+		public final Action actionLiveMode;
+		
+		@ActionMenu("ELEPHANT>Batch inference")
+		@ActionDescription("ELEPHANT inference on every image of the project.")
+		public final Action actionBatchInference;
+		
 		@ActionMenu("ELEPHANT>Reset")
 		@ActionDescription("Reset ELEPHANT model.")
 		public final Action actionReset;
 		
+		@ActionMenu("ELEPHANT>Settings")
+		@ActionDescription("Set ELEPHANT upload settings.")
+		public final Action actionSettings;
+		
 		@ActionMenu("ELEPHANT>Server URL")
-		@ActionDescription("Set API server URL.")
+		@ActionDescription("Set API server URL, or several URLs separated by commas.")
 		public final Action actionSetServerURL;
 		
 		private String serverURL = "http://localhost:8000/elephant/";
@@ -55,10 +67,16 @@ public class CellsparseElephantExtension implements QuPathExtension {
 				CellsparseCommand(imageData, serverURL, false);
 			});
 			
-			actionReset = new Action(event -> CellsparseResetCommand(serverURL + "reset/"));
+			actionLiveMode = CellsparseLiveModeAction(qupath, () -> serverURL, 8, 200);
+			
+			actionBatchInference = new Action(event -> CellsparseBatchCommand(qupath.getProject(), qupath.getImageData(), serverURL));
+			
+			actionReset = new Action(event -> CellsparseResetCommand(serverURL));
+			
+			actionSettings = new Action(event -> CellsparseSettingsCommand());
 			
 			actionSetServerURL = new Action(event -> {
-				String newURL = Dialogs.showInputDialog("Server URL", "Set API server URL", serverURL);
+				String newURL = Dialogs.showInputDialog("Server URL", "Set API server URL (several URLs can be separated by commas)", serverURL);
 				if (newURL != null) {
 					serverURL = newURL;
 				}
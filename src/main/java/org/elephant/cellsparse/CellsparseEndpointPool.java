@@ -0,0 +1,310 @@
+package org.elephant.cellsparse;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A set of equivalent Cellsparse API endpoints for one algorithm.
+ * <p>
+ * The server URL of an algorithm may list several endpoints separated by commas. Inference requests are
+ * dispatched to one of them, either to the endpoint with the fewest requests in flight or in turn. An endpoint
+ * that cannot be connected to, or that answers 502, 503 or 504, is evicted and the request is sent to another
+ * one. Evicted endpoints are probed with {@code GET <endpoint>capabilities/} at most every
+ * {@link #HEALTH_CHECK_INTERVAL} and return to the pool once they answer.
+ * <p>
+ * The model is trained on the server, so training always uses the first endpoint of the list.
+ */
+public class CellsparseEndpointPool {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseEndpointPool.class);
+
+	/**
+	 * How requests are assigned to endpoints.
+	 */
+	public enum Policy {
+		LEAST_OUTSTANDING,
+		ROUND_ROBIN
+	}
+
+	static final Duration HEALTH_CHECK_INTERVAL = Duration.ofSeconds(5);
+
+	private static final Duration HEALTH_CHECK_TIMEOUT = Duration.ofSeconds(2);
+
+	/**
+	 * Maximum number of pools kept for reuse; every edit of a server URL in the settings creates a new one.
+	 */
+	static final int MAX_POOLS = 16;
+
+	/**
+	 * Pools by server URLs, least recently used first. Clients keep using an evicted pool, but new clients get a
+	 * fresh one.
+	 */
+	private static final Map<String, CellsparseEndpointPool> pools = new LinkedHashMap<>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, CellsparseEndpointPool> eldest) {
+			return size() > MAX_POOLS;
+		}
+	};
+
+	/**
+	 * Sends a request to a given endpoint.
+	 * @param <T>
+	 */
+	@FunctionalInterface
+	interface EndpointRequest<T> {
+		CompletableFuture<T> request(String endpointURL) throws IOException;
+	}
+
+	private final List<Endpoint> endpoints;
+	private final AtomicInteger next = new AtomicInteger();
+	private final CellsparseHedging hedging = new CellsparseHedging();
+
+	private CellsparseEndpointPool(final List<String> endpointURLs) {
+		final List<Endpoint> list = new ArrayList<>(endpointURLs.size());
+		for (final String endpointURL : endpointURLs)
+			list.add(new Endpoint(endpointURL));
+		this.endpoints = Collections.unmodifiableList(list);
+	}
+
+	/**
+	 * @param serverURLs one or more endpoint URLs separated by commas
+	 * @return the pool for the endpoints, shared by all commands
+	 */
+	static CellsparseEndpointPool get(final String serverURLs) {
+		synchronized (pools) {
+			return pools.computeIfAbsent(serverURLs, urls -> new CellsparseEndpointPool(parse(urls)));
+		}
+	}
+
+	/**
+	 * @param serverURLs one or more endpoint URLs separated by commas
+	 * @return the endpoint URLs
+	 */
+	static List<String> parse(final String serverURLs) {
+		final List<String> endpointURLs = Arrays.stream(serverURLs.split(","))
+				.map(String::trim)
+				.filter(url -> !url.isEmpty())
+				.toList();
+		if (endpointURLs.isEmpty())
+			throw new IllegalArgumentException("Server URL must not be empty!");
+		return endpointURLs;
+	}
+
+	/**
+	 * @return the endpoint used for training
+	 */
+	String getPrimary() {
+		return endpoints.get(0).url;
+	}
+
+	/**
+	 * @return the URLs of all endpoints, healthy or not
+	 */
+	List<String> getEndpointURLs() {
+		return endpoints.stream().map(endpoint -> endpoint.url).toList();
+	}
+
+	int size() {
+		return endpoints.size();
+	}
+
+	/**
+	 * @return the latency statistics of the inference requests hedged on this pool
+	 */
+	CellsparseHedging getHedging() {
+		return hedging;
+	}
+
+	/**
+	 * Send a request to one of the endpoints, retrying on another endpoint if the chosen one is unavailable.
+	 * <p>
+	 * Only failures that happen before any response has been read are retried, so the request is never
+	 * applied twice.
+	 * @param <T>
+	 * @param policy
+	 * @param request
+	 * @return a future that cancels the request in flight when it is cancelled
+	 */
+	<T> CompletableFuture<T> dispatch(final Policy policy, final EndpointRequest<T> request) {
+		return dispatch(policy, request, new ArrayList<>());
+	}
+
+	/**
+	 * Send a request to one of the endpoints that are not excluded.
+	 * @param <T>
+	 * @param policy
+	 * @param excludedURLs endpoints not to use, e.g. the one serving the same request already
+	 * @param request
+	 * @return a future that cancels the request in flight when it is cancelled
+	 */
+	<T> CompletableFuture<T> dispatch(final Policy policy, final Collection<String> excludedURLs, final EndpointRequest<T> request) {
+		final List<Endpoint> tried = endpoints.stream()
+				.filter(endpoint -> excludedURLs.contains(endpoint.url))
+				.collect(Collectors.toCollection(ArrayList::new));
+		if (tried.size() >= endpoints.size())
+			return CompletableFuture.failedFuture(new IllegalStateException("No endpoint left to send the request to"));
+		return dispatch(policy, request, tried);
+	}
+
+	private <T> CompletableFuture<T> dispatch(final Policy policy, final EndpointRequest<T> request, final List<Endpoint> tried) {
+		final CompletableFuture<T> result = new CompletableFuture<>();
+		final AtomicReference<CompletableFuture<T>> inFlight = new AtomicReference<>();
+		result.whenComplete((value, e) -> {
+			final CompletableFuture<T> future = inFlight.get();
+			if (result.isCancelled() && future != null)
+				future.cancel(true);
+		});
+		send(policy, request, tried, result, inFlight);
+		return result;
+	}
+
+	/**
+	 * Send the request to the next endpoint and complete {@code result} with its outcome, or try another endpoint.
+	 */
+	private <T> void send(
+			final Policy policy,
+			final EndpointRequest<T> request,
+			final List<Endpoint> tried,
+			final CompletableFuture<T> result,
+			final AtomicReference<CompletableFuture<T>> inFlight
+	) {
+		final Endpoint endpoint = choose(policy, tried);
+		tried.add(endpoint);
+		endpoint.outstanding.incrementAndGet();
+		CompletableFuture<T> future;
+		try {
+			future = request.request(endpoint.url);
+		} catch (IOException | RuntimeException e) {
+			future = CompletableFuture.failedFuture(e);
+		}
+		inFlight.set(future);
+		// The result may have been cancelled before the request was sent
+		if (result.isCancelled())
+			future.cancel(true);
+		future.whenComplete((value, e) -> {
+			endpoint.outstanding.decrementAndGet();
+			if (result.isDone())
+				return;
+			if (e == null)
+				result.complete(value);
+			else if (!isUnavailable(e))
+				result.completeExceptionally(e);
+			else {
+				endpoint.evict(e);
+				if (tried.size() >= endpoints.size())
+					result.completeExceptionally(e);
+				else
+					send(policy, request, tried, result, inFlight);
+			}
+		});
+	}
+
+	/**
+	 * Pick the next healthy endpoint that has not been tried yet, or any untried endpoint if none is healthy.
+	 */
+	private Endpoint choose(final Policy policy, final List<Endpoint> tried) {
+		List<Endpoint> candidates = endpoints.stream()
+				.filter(endpoint -> !tried.contains(endpoint) && endpoint.isHealthy())
+				.toList();
+		if (candidates.isEmpty()) {
+			candidates = endpoints.stream()
+					.filter(endpoint -> !tried.contains(endpoint))
+					.toList();
+		}
+		final int start = Math.floorMod(next.getAndIncrement(), candidates.size());
+		if (policy == Policy.ROUND_ROBIN)
+			return candidates.get(start);
+		// Ties go to the endpoints in turn
+		Endpoint chosen = null;
+		for (int i = 0; i < candidates.size(); i++) {
+			final Endpoint endpoint = candidates.get((start + i) % candidates.size());
+			if (chosen == null || endpoint.outstanding.get() < chosen.outstanding.get())
+				chosen = endpoint;
+		}
+		return chosen;
+	}
+
+	private static boolean isUnavailable(Throwable e) {
+		while (e instanceof CompletionException && e.getCause() != null)
+			e = e.getCause();
+		if (e instanceof ConnectException || e instanceof HttpConnectTimeoutException)
+			return true;
+		if (e instanceof CellsparseHttpException) {
+			final int statusCode = ((CellsparseHttpException) e).getStatusCode();
+			return statusCode == HttpURLConnection.HTTP_BAD_GATEWAY
+					|| statusCode == HttpURLConnection.HTTP_UNAVAILABLE
+					|| statusCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+		}
+		return false;
+	}
+
+	private static class Endpoint {
+
+		private final String url;
+		private final AtomicInteger outstanding = new AtomicInteger();
+		private volatile boolean healthy = true;
+		private volatile long lastCheck = 0;
+		private volatile boolean checking = false;
+
+		private Endpoint(final String url) {
+			this.url = url;
+		}
+
+		private void evict(final Throwable e) {
+			if (healthy)
+				logger.warn("Evicting endpoint {}: {}", url, e.getMessage());
+			healthy = false;
+			lastCheck = System.nanoTime();
+		}
+
+		/**
+		 * @return true if the endpoint is in the pool; probes an evicted endpoint if it is due for a check
+		 */
+		private boolean isHealthy() {
+			if (!healthy && !checking && System.nanoTime() - lastCheck > HEALTH_CHECK_INTERVAL.toNanos())
+				check();
+			return healthy;
+		}
+
+		private void check() {
+			checking = true;
+			lastCheck = System.nanoTime();
+			final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+					.uri(URI.create(url + "capabilities/"))
+					.timeout(HEALTH_CHECK_TIMEOUT)
+					.GET();
+			CellsparseHttpClient.getInstance().sendAsync(requestBuilder, HttpResponse.BodyHandlers.discarding())
+					.whenComplete((response, e) -> {
+						if (e == null && response.statusCode() < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+							logger.info("Endpoint {} is available again", url);
+							healthy = true;
+						}
+						lastCheck = System.nanoTime();
+						checking = false;
+					});
+		}
+
+	}
+
+}
@@ -0,0 +1,24 @@
+package org.elephant.cellsparse;
+
+import java.io.IOException;
+
+/**
+ * Signals that a Cellsparse request failed.
+ * <p>
+ * Subclasses tell apart the server answering with an error ({@link CellsparseHttpException}) and the server not
+ * answering at all ({@link CellsparseConnectionException}); other failures, e.g. reading the image, are reported
+ * with this class and the original exception as cause.
+ */
+public class CellsparseException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CellsparseException(final String message) {
+		super(message);
+	}
+
+	public CellsparseException(final String message, final Throwable cause) {
+		super(message, cause);
+	}
+
+}
@@ -0,0 +1,253 @@
+package org.elephant.cellsparse;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import qupath.lib.objects.PathObject;
+
+/**
+ * Hedged inference requests.
+ * <p>
+ * An inference request is first sent to one endpoint of a pool. If it has not answered after the given percentile
+ * of the latencies recently observed on the pool, a duplicate is sent to another endpoint. Latencies are kept per
+ * pixel of the requested region and scaled to the size of each request, so that requests of all sizes share their
+ * statistics. The first
+ * request to deliver results, or to complete, wins: only its objects are passed on and the other request is
+ * cancelled. If one request fails before delivering anything, the other one may still win.
+ * <p>
+ * The cancelled request never completes, so the time it had been running when it lost is recorded as its
+ * latency. It took at least that long, and leaving it out would only keep the fast requests and lower the delay.
+ * Each pool keeps its own statistics, see {@link CellsparseEndpointPool#getHedging()}.
+ * <p>
+ * Hedges are limited by a token bucket that gains {@code maxRate} tokens per request and spends one per hedge,
+ * so that no more than that fraction of requests is ever duplicated. Hedging only starts once
+ * {@link #MIN_SAMPLES} latencies have been observed.
+ */
+class CellsparseHedging {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseHedging.class);
+
+	/**
+	 * Number of latencies kept to estimate the hedging delay.
+	 */
+	static final int WINDOW = 100;
+
+	/**
+	 * Number of latencies needed before any request is hedged.
+	 */
+	static final int MIN_SAMPLES = 20;
+
+	/**
+	 * Maximum number of hedges that can be saved up.
+	 */
+	private static final double MAX_TOKENS = 5;
+
+	/**
+	 * Sends an inference request to a given endpoint.
+	 */
+	@FunctionalInterface
+	interface Attempt {
+		/**
+		 * @param monitor
+		 * @param endpointURL
+		 * @param sink
+		 * @return a future that completes with the number of objects
+		 * @throws IOException
+		 */
+		CompletableFuture<Integer> request(CellsparseMonitor monitor, String endpointURL, Consumer<List<PathObject>> sink) throws IOException;
+	}
+
+	/**
+	 * Recent latencies in nanoseconds per pixel.
+	 */
+	private final double[] latencies = new double[WINDOW];
+	private int nLatencies = 0;
+	private int nextLatency = 0;
+	private double tokens = 0;
+
+	CellsparseHedging() {}
+
+	/**
+	 * Send a request, hedging it on another endpoint of the pool if it is slow.
+	 * @param monitor
+	 * @param pool
+	 * @param policy
+	 * @param percentile the percentile of recent latencies after which the request is hedged, between 1 and 99
+	 * @param maxRate the maximum fraction of requests that are hedged
+	 * @param pixels the number of pixels of the requested region
+	 * @param attempt
+	 * @param sink
+	 * @return a future that completes with the number of objects passed to the sink
+	 */
+	CompletableFuture<Integer> send(
+			final CellsparseMonitor monitor,
+			final CellsparseEndpointPool pool,
+			final CellsparseEndpointPool.Policy policy,
+			final int percentile,
+			final double maxRate,
+			final long pixels,
+			final Attempt attempt,
+			final Consumer<List<PathObject>> sink
+	) {
+		final CompletableFuture<Integer> result = new CompletableFuture<>();
+		final AtomicReference<AttemptMonitor> winner = new AtomicReference<>();
+		final long delay;
+		synchronized (this) {
+			tokens = Math.min(MAX_TOKENS, tokens + maxRate);
+			delay = pool.size() > 1 ? getDelay(percentile, pixels) : -1;
+		}
+		final AttemptMonitor primary = new AttemptMonitor(monitor);
+		final AttemptMonitor hedge = new AttemptMonitor(monitor);
+		final AtomicReference<String> primaryURL = new AtomicReference<>();
+		primary.start();
+		start(primary, hedge, result, winner, sink, pixels,
+				pool.dispatch(policy, endpointURL -> {
+					primaryURL.set(endpointURL);
+					return attempt.request(primary, endpointURL, batch -> deliver(primary, winner, sink, batch));
+				}));
+		if (delay >= 0) {
+			// The attempt reads and encodes the image, which must not block the common pool
+			CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, CellsparseHttpClient.getExecutor()).execute(() -> {
+				if (result.isDone() || winner.get() != null || monitor.isCancelled() || !takeToken())
+					return;
+				logger.debug("Hedging request to {} after {} ms", primaryURL.get(), delay / 1_000_000);
+				hedge.start();
+				start(hedge, primary, result, winner, sink, pixels,
+						pool.dispatch(policy, primaryURL.get() == null ? List.of() : List.of(primaryURL.get()),
+								endpointURL -> attempt.request(hedge, endpointURL, batch -> deliver(hedge, winner, sink, batch))));
+			});
+		}
+		return result;
+	}
+
+	private void start(
+			final AttemptMonitor self,
+			final AttemptMonitor other,
+			final CompletableFuture<Integer> result,
+			final AtomicReference<AttemptMonitor> winner,
+			final Consumer<List<PathObject>> sink,
+			final long pixels,
+			final CompletableFuture<Integer> future
+	) {
+		future.whenComplete((count, e) -> {
+			if (e == null && (winner.compareAndSet(null, self) || winner.get() == self)) {
+				// Each request from its own start, which is later than the primary for a hedge
+				final long endTime = System.nanoTime();
+				record((endTime - self.startTime) / (double) Math.max(1, pixels));
+				if (other.started && !other.failed)
+					record((endTime - other.startTime) / (double) Math.max(1, pixels));
+				other.cancel();
+				result.complete(count);
+			}
+			else if (e != null && !self.cancelled) {
+				// The other request may still answer, unless this one has already delivered results
+				self.failed = true;
+				if (winner.get() == self || !other.started || other.failed) {
+					other.cancel();
+					result.completeExceptionally(e);
+				}
+			}
+		});
+	}
+
+	private static void deliver(
+			final AttemptMonitor self,
+			final AtomicReference<AttemptMonitor> winner,
+			final Consumer<List<PathObject>> sink,
+			final List<PathObject> batch
+	) {
+		if (winner.compareAndSet(null, self) || winner.get() == self)
+			sink.accept(batch);
+	}
+
+	private synchronized boolean takeToken() {
+		if (tokens < 1)
+			return false;
+		tokens -= 1;
+		return true;
+	}
+
+	/**
+	 * @return the delay in nanoseconds after which a request for a region of {@code pixels} pixels is hedged, or -1
+	 *         if there are too few samples
+	 */
+	private long getDelay(final int percentile, final long pixels) {
+		if (nLatencies < MIN_SAMPLES)
+			return -1;
+		final double[] sorted = Arrays.copyOf(latencies, nLatencies);
+		Arrays.sort(sorted);
+		return Math.round(sorted[Math.min(nLatencies - 1, (int) Math.ceil(percentile / 100.0 * nLatencies) - 1)] * Math.max(1, pixels));
+	}
+
+	/**
+	 * @param latency in nanoseconds per pixel
+	 */
+	private synchronized void record(final double latency) {
+		latencies[nextLatency] = latency;
+		nextLatency = (nextLatency + 1) % WINDOW;
+		nLatencies = Math.min(WINDOW, nLatencies + 1);
+	}
+
+	/**
+	 * Forwards to the monitor of the job, but can also be cancelled on its own when the other request wins.
+	 */
+	private static class AttemptMonitor implements CellsparseMonitor {
+
+		private final CellsparseMonitor monitor;
+		private final List<CompletableFuture<?>> inFlight = new CopyOnWriteArrayList<>();
+		private volatile boolean started = false;
+		private volatile long startTime;
+		private volatile boolean cancelled = false;
+		private volatile boolean failed = false;
+
+		private AttemptMonitor(final CellsparseMonitor monitor) {
+			this.monitor = monitor;
+		}
+
+		@Override
+		public <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+			inFlight.add(future);
+			future.whenComplete((result, e) -> inFlight.remove(future));
+			if (cancelled)
+				future.cancel(true);
+			return monitor.track(future);
+		}
+
+		@Override
+		public void updateStatus(final String message, final double progress) {
+			monitor.updateStatus(message, progress);
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return cancelled || monitor.isCancelled();
+		}
+
+		@Override
+		public CellsparseMetrics getMetrics() {
+			return monitor.getMetrics();
+		}
+
+		private void start() {
+			startTime = System.nanoTime();
+			started = true;
+		}
+
+		private void cancel() {
+			cancelled = true;
+			for (var future : inFlight)
+				future.cancel(true);
+		}
+
+	}
+
+}
@@ -0,0 +1,116 @@
+package org.elephant.cellsparse;
+
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-lived HTTP client shared by all Cellsparse commands.
+ * <p>
+ * Each instance applies its own protocol version and request timeout to the requests it sends, so that the
+ * settings of one {@link CellsparseClient} do not affect the others. A single {@link HttpClient} for each connect
+ * timeout keeps its connections alive and reuses them across requests, and its selector
+ * thread serves every exchange in flight. All clients share one executor of daemon threads, which grows with the
+ * requests in flight and shrinks when they are done. Requests are sent with {@link HttpClient#sendAsync}, so callers
+ * get a {@link CompletableFuture} and do not need a thread per request.
+ * <p>
+ * HTTP/2 is optional. For {@code http://} URLs it is negotiated with an h2c upgrade, and servers that do not
+ * support it keep answering with HTTP/1.1.
+ */
+public class CellsparseHttpClient {
+
+	/**
+	 * Daemon threads that run the body publishers and the completion of the exchanges. It is deliberately not
+	 * bounded: lazy request bodies read and encode the image on these threads, and responses are parsed on them
+	 * while the client delivers their bodies, so a fixed number of threads could all end up waiting for tasks
+	 * queued behind them. Idle threads end after a minute.
+	 */
+	private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory());
+
+	/**
+	 * The connect timeout belongs to the {@link HttpClient}, so there is one for each timeout in use.
+	 */
+	private static final Map<Duration, HttpClient> clients = new HashMap<>();
+
+	private static final CellsparseHttpClient INSTANCE = new CellsparseHttpClient(Duration.ofSeconds(10), null, false);
+
+	private final HttpClient client;
+	private final Duration requestTimeout;
+	private final boolean http2;
+
+	private CellsparseHttpClient(final Duration connectTimeout, final Duration requestTimeout, final boolean http2) {
+		synchronized (clients) {
+			this.client = clients.computeIfAbsent(connectTimeout, CellsparseHttpClient::createClient);
+		}
+		this.requestTimeout = requestTimeout;
+		this.http2 = http2;
+	}
+
+	/**
+	 * @return the executor of the HTTP clients, for tasks that may block, e.g. to read and encode an image
+	 */
+	static Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return the client with the default settings
+	 */
+	public static CellsparseHttpClient getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Get a client with its own settings. Clients with the same connect timeout share their connection pool.
+	 * @param connectTimeout timeout to establish a connection
+	 * @param requestTimeout timeout for a complete exchange, or null to wait indefinitely
+	 * @param http2 whether to attempt HTTP/2
+	 * @return
+	 */
+	public static CellsparseHttpClient get(final Duration connectTimeout, final Duration requestTimeout, final boolean http2) {
+		return new CellsparseHttpClient(connectTimeout, requestTimeout, http2);
+	}
+
+	private static HttpClient createClient(final Duration connectTimeout) {
+		return HttpClient.newBuilder()
+				.connectTimeout(connectTimeout)
+				.executor(executor)
+				.build();
+	}
+
+	/**
+	 * Apply the protocol version and request timeout of this client, then send the request asynchronously.
+	 * @param <T>
+	 * @param requestBuilder
+	 * @param bodyHandler
+	 * @return a future that completes with the response once the body handler has consumed it
+	 */
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(final HttpRequest.Builder requestBuilder, final HttpResponse.BodyHandler<T> bodyHandler) {
+		requestBuilder.version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1);
+		if (requestTimeout != null)
+			requestBuilder.timeout(requestTimeout);
+		return client.sendAsync(requestBuilder.build(), bodyHandler);
+	}
+
+	private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "cellsparse-http-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
@@ -0,0 +1,33 @@
+package org.elephant.cellsparse;
+
+/**
+ * Signals that the Cellsparse API server answered with an unexpected HTTP status.
+ */
+public class CellsparseHttpException extends CellsparseException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode;
+	private final String body;
+
+	public CellsparseHttpException(final int statusCode, final String body) {
+		super("Http error: " + statusCode);
+		this.statusCode = statusCode;
+		this.body = body;
+	}
+
+	/**
+	 * @return the HTTP status code of the response
+	 */
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return the body of the response
+	 */
+	public String getBody() {
+		return body;
+	}
+
+}
@@ -0,0 +1,216 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes image and label tiles before they are sent to the server.
+ * <p>
+ * Two encodings are available:
+ * <ul>
+ *   <li>{@link Encoding#PNG}: a PNG file written with a configurable deflate level. Level 0 stores the pixels
+ *       uncompressed, which is the fastest to write.</li>
+ *   <li>{@link Encoding#RAW}: the pixels in row-major order with interleaved channels, preceded by a 4-byte header
+ *       made of a data type code ({@link #DTYPE_UINT8}, {@link #DTYPE_UINT16}, {@link #DTYPE_INT16},
+ *       {@link #DTYPE_INT32}, {@link #DTYPE_FLOAT32} or {@link #DTYPE_FLOAT64}), the number of channels and two
+ *       reserved bytes. All values are little-endian, so the server can map the bytes directly into an array.
+ *       It is only used if the server reports the {@value CellsparseCapabilities#FEATURE_RAW_ENCODING} feature.</li>
+ * </ul>
+ */
+public abstract class CellsparseImageEncoder {
+
+	public enum Encoding {
+		PNG,
+		RAW
+	}
+
+	public static final int DTYPE_UINT8 = 0;
+	public static final int DTYPE_UINT16 = 1;
+	public static final int DTYPE_INT16 = 2;
+	public static final int DTYPE_INT32 = 3;
+	public static final int DTYPE_FLOAT32 = 4;
+	public static final int DTYPE_FLOAT64 = 5;
+
+	private static final int RAW_HEADER_LENGTH = 4;
+
+	/**
+	 * @param image
+	 * @return the encoded bytes
+	 * @throws IOException
+	 */
+	public abstract byte[] encode(BufferedImage image) throws IOException;
+
+	/**
+	 * @return the name of the encoding, sent to the server as {@code encoding}
+	 */
+	public abstract String getName();
+
+	/**
+	 * @param level the deflate level, from 0 (uncompressed) to 9 (smallest)
+	 * @return an encoder writing PNG files
+	 */
+	public static CellsparseImageEncoder png(final int level) {
+		if (level < 0 || level > 9)
+			throw new IllegalArgumentException("PNG compression level must be between 0 and 9! Requested " + level);
+		return new PngEncoder(level);
+	}
+
+	/**
+	 * @return an encoder writing raw little-endian pixel arrays
+	 */
+	public static CellsparseImageEncoder raw() {
+		return RawEncoder.INSTANCE;
+	}
+
+	private static class PngEncoder extends CellsparseImageEncoder {
+
+		private final int level;
+
+		private PngEncoder(final int level) {
+			this.level = level;
+		}
+
+		@Override
+		public byte[] encode(final BufferedImage image) throws IOException {
+			final Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("png");
+			if (!writers.hasNext())
+				throw new IOException("No PNG writer available");
+			final ImageWriter writer = writers.next();
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			try (ImageOutputStream ios = ImageIO.createImageOutputStream(baos)) {
+				final ImageWriteParam param = writer.getDefaultWriteParam();
+				if (param.canWriteCompressed()) {
+					// The JDK writer uses a deflate level of (int) ((1 - quality) * 9)
+					param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+					param.setCompressionQuality(Math.max(0f, 1f - (level + 0.5f) / 9f));
+				}
+				writer.setOutput(ios);
+				writer.write(null, new IIOImage(image, null, null), param);
+			} finally {
+				writer.dispose();
+			}
+			return baos.toByteArray();
+		}
+
+		@Override
+		public String getName() {
+			return "png";
+		}
+
+		@Override
+		public String toString() {
+			return "png-" + level;
+		}
+
+	}
+
+	private static class RawEncoder extends CellsparseImageEncoder {
+
+		private static final RawEncoder INSTANCE = new RawEncoder();
+
+		@Override
+		public byte[] encode(final BufferedImage image) throws IOException {
+			final Raster raster = image.getRaster();
+			final int width = raster.getWidth();
+			final int height = raster.getHeight();
+			final int nBands = raster.getNumBands();
+			final int dtype = getDataType(raster);
+			final int bytesPerSample = getBytesPerSample(dtype);
+			final ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_LENGTH + width * height * nBands * bytesPerSample)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			buffer.put((byte) dtype);
+			buffer.put((byte) nBands);
+			buffer.putShort((short) 0);
+			// Read one row at a time to avoid a second copy of the whole tile
+			final int x = raster.getMinX();
+			if (dtype == DTYPE_FLOAT32) {
+				final float[] row = new float[width * nBands];
+				for (int y = 0; y < height; y++) {
+					raster.getPixels(x, raster.getMinY() + y, width, 1, row);
+					buffer.asFloatBuffer().put(row);
+					buffer.position(buffer.position() + row.length * bytesPerSample);
+				}
+			}
+			else if (dtype == DTYPE_FLOAT64) {
+				final double[] row = new double[width * nBands];
+				for (int y = 0; y < height; y++) {
+					raster.getPixels(x, raster.getMinY() + y, width, 1, row);
+					buffer.asDoubleBuffer().put(row);
+					buffer.position(buffer.position() + row.length * bytesPerSample);
+				}
+			}
+			else {
+				final int[] row = new int[width * nBands];
+				for (int y = 0; y < height; y++) {
+					raster.getPixels(x, raster.getMinY() + y, width, 1, row);
+					for (final int value : row) {
+						if (bytesPerSample == 1)
+							buffer.put((byte) value);
+						else if (bytesPerSample == 2)
+							buffer.putShort((short) value);
+						else
+							buffer.putInt(value);
+					}
+				}
+			}
+			return buffer.array();
+		}
+
+		private static int getDataType(final Raster raster) {
+			final int dataType = raster.getDataBuffer().getDataType();
+			if (dataType == DataBuffer.TYPE_FLOAT)
+				return DTYPE_FLOAT32;
+			if (dataType == DataBuffer.TYPE_DOUBLE)
+				return DTYPE_FLOAT64;
+			int bits = 0;
+			for (final int sampleSize : raster.getSampleModel().getSampleSize())
+				bits = Math.max(bits, sampleSize);
+			// Packed RGB images store 8-bit samples in ints
+			if (bits <= 8)
+				return DTYPE_UINT8;
+			if (dataType == DataBuffer.TYPE_SHORT)
+				return DTYPE_INT16;
+			if (bits <= 16)
+				return DTYPE_UINT16;
+			return DTYPE_INT32;
+		}
+
+		private static int getBytesPerSample(final int dtype) {
+			switch (dtype) {
+			case DTYPE_UINT8:
+				return 1;
+			case DTYPE_UINT16:
+			case DTYPE_INT16:
+				return 2;
+			case DTYPE_FLOAT64:
+				return 8;
+			default:
+				return 4;
+			}
+		}
+
+		@Override
+		public String getName() {
+			return "raw";
+		}
+
+		@Override
+		public String toString() {
+			return "raw";
+		}
+
+	}
+
+}
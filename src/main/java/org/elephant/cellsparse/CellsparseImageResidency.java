@@ -0,0 +1,83 @@
+package org.elephant.cellsparse;
+
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of images that are already resident on a server.
+ * <p>
+ * The client hashes the encoded image bytes with SHA-256 while uploading them. Once a request has succeeded, 
+ * the hash is remembered for the image, and later requests first ask the server with 
+ * {@code HEAD <endpoint>images/<hash>} whether it still holds the image. If it does, only the hash and the labels
+ * are sent. A server that has evicted the image in the meantime answers 409 Conflict, and the image is uploaded again.
+ */
+class CellsparseImageResidency {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseImageResidency.class);
+
+	private static final Map<String, String> hashes = new ConcurrentHashMap<>();
+
+	private CellsparseImageResidency() {}
+
+	/**
+	 * @param endpointURL
+	 * @param imageKey identifies the image and the way it is encoded
+	 * @return the hash of the image that was last uploaded to the endpoint, or null if unknown
+	 */
+	static String getHash(final String endpointURL, final String imageKey) {
+		return hashes.get(endpointURL + "|" + imageKey);
+	}
+
+	static void remember(final String endpointURL, final String imageKey, final String hash) {
+		hashes.put(endpointURL + "|" + imageKey, hash);
+	}
+
+	static void forget(final String endpointURL, final String imageKey) {
+		hashes.remove(endpointURL + "|" + imageKey);
+	}
+
+	/**
+	 * Ask the server whether it holds an image.
+	 * @param client
+	 * @param endpointURL
+	 * @param hash
+	 * @return a future that completes with true if the image is resident, false if it is not or if the server could not be asked
+	 */
+	static CompletableFuture<Boolean> isResident(final CellsparseHttpClient client, final String endpointURL, final String hash) {
+		final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+				.uri(URI.create(endpointURL + "images/" + hash))
+				.method("HEAD", HttpRequest.BodyPublishers.noBody());
+		return client.sendAsync(requestBuilder, HttpResponse.BodyHandlers.discarding())
+				.thenApply(response -> response.statusCode() == HttpURLConnection.HTTP_OK)
+				.exceptionally(e -> {
+					logger.debug("Unable to query image residency on {}: {}", endpointURL, e.getMessage());
+					return false;
+				});
+	}
+
+	static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(final byte[] digest) {
+		final StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (final byte b : digest)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+
+}
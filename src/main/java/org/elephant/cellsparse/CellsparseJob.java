@@ -0,0 +1,81 @@
+package org.elephant.cellsparse;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import javafx.concurrent.Task;
+
+/**
+ * JavaFX task that runs a Cellsparse request in the background.
+ * <p>
+ * The request itself is asynchronous; the task waits for its result on a worker thread so that 
+ * JavaFX can report progress, and cancelling the task cancels every HTTP exchange the request has registered.
+ *
+ * @param <T> type of the result
+ */
+public class CellsparseJob<T> extends Task<T> implements CellsparseMonitor {
+
+	/**
+	 * Starts the request of a job.
+	 * @param <T>
+	 */
+	@FunctionalInterface
+	public interface Request<T> {
+		CompletableFuture<T> start(CellsparseMonitor monitor) throws Exception;
+	}
+
+	private final Request<T> request;
+	private final List<CompletableFuture<?>> inFlight = new CopyOnWriteArrayList<>();
+	private final CellsparseMetrics metrics;
+
+	public CellsparseJob(final String title, final Request<T> request) {
+		this.request = request;
+		this.metrics = new CellsparseMetrics(title);
+		updateTitle(title);
+	}
+
+	@Override
+	protected T call() throws Exception {
+		updateStatus("Preparing request", -1);
+		final CompletableFuture<T> future = track(request.start(this));
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+
+	@Override
+	public <S> CompletableFuture<S> track(final CompletableFuture<S> future) {
+		inFlight.add(future);
+		future.whenComplete((result, e) -> inFlight.remove(future));
+		if (isCancelled())
+			future.cancel(true);
+		return future;
+	}
+
+	@Override
+	public void updateStatus(final String message, final double progress) {
+		updateMessage(message);
+		if (progress < 0)
+			updateProgress(-1, 1);
+		else
+			updateProgress(progress, 1.0);
+	}
+
+	@Override
+	public CellsparseMetrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	protected void cancelled() {
+		for (var future : inFlight)
+			future.cancel(true);
+	}
+
+}
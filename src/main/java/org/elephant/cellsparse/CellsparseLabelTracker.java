@@ -0,0 +1,243 @@
+package org.elephant.cellsparse;
+
+import java.awt.Rectangle;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Keeps track of the training annotations that an endpoint has already received for an image.
+ * <p>
+ * Each foreground annotation keeps its instance label for as long as it exists, so the labels drawn for an
+ * unchanged annotation are the same in every request. After a successful training request, the server returns
+ * a label version in the {@value #HEADER_LABEL_VERSION} header. The next request compares the annotations with
+ * the ones recorded for that version and only sends the label tiles touched by annotations that were added,
+ * removed, moved or reclassified, together with the version as {@code baseversion}.
+ */
+class CellsparseLabelTracker {
+
+	static final String HEADER_LABEL_VERSION = "X-Cellsparse-Label-Version";
+
+	/**
+	 * Pixels added around changed annotations, since their outlines may touch neighboring pixels.
+	 */
+	private static final int PADDING = 1;
+
+	private static final Map<PathObjectHierarchy, Map<String, CellsparseLabelTracker>> trackers = new WeakHashMap<>();
+
+	private final Map<PathObject, Integer> labels = new HashMap<>();
+	/**
+	 * The highest label the server has received since its labels were last reset; background is 1.
+	 */
+	private int maxLabel = 1;
+	private Map<PathObject, Annotation> recorded = Collections.emptyMap();
+	private String imageHash = null;
+	private String version = null;
+
+	private CellsparseLabelTracker() {}
+
+	/**
+	 * @param hierarchy
+	 * @param endpointURL
+	 * @return the tracker for the annotations of a hierarchy sent to an endpoint
+	 */
+	static CellsparseLabelTracker get(final PathObjectHierarchy hierarchy, final String endpointURL) {
+		synchronized (trackers) {
+			return trackers.computeIfAbsent(hierarchy, h -> new HashMap<>())
+					.computeIfAbsent(endpointURL, e -> new CellsparseLabelTracker());
+		}
+	}
+
+	/**
+	 * Assign stable instance labels to the foreground annotations and find the label tiles that changed.
+	 * @param foreground the annotations drawn with instance labels
+	 * @param background the annotations drawn as background
+	 * @param imageHash hash of the image resident on the server, or null if it will be uploaded
+	 * @param tiles all label tiles of the image
+	 * @return
+	 */
+	synchronized Delta prepare(
+			final Collection<PathObject> foreground,
+			final Collection<PathObject> background,
+			final String imageHash,
+			final List<Rectangle> tiles
+	) {
+		final Map<PathObject, Annotation> current = new HashMap<>();
+		for (final PathObject pathObject : foreground)
+			current.put(pathObject, new Annotation(pathObject));
+		for (final PathObject pathObject : background)
+			current.put(pathObject, new Annotation(pathObject));
+		// Labels of removed annotations are not reused, otherwise the server could mix up two instances
+		int nextLabel = maxLabel + 1;
+		final Map<PathObject, Integer> currentLabels = new HashMap<>();
+		for (final PathObject pathObject : foreground) {
+			Integer label = labels.get(pathObject);
+			if (label == null)
+				label = nextLabel++;
+			currentLabels.put(pathObject, label);
+		}
+		if (version == null || imageHash == null || !imageHash.equals(this.imageHash))
+			return new Delta(current, currentLabels, null, null);
+
+		final Set<PathObject> pathObjects = new HashSet<>(current.keySet());
+		pathObjects.addAll(recorded.keySet());
+		final List<Rectangle> changedBounds = pathObjects.stream()
+				.flatMap(pathObject -> {
+					final Annotation before = recorded.get(pathObject);
+					final Annotation after = current.get(pathObject);
+					if (before == null)
+						return Stream.of(after.getBounds());
+					if (after == null)
+						return Stream.of(before.getBounds());
+					if (before.equals(after) && Objects.equals(labels.get(pathObject), currentLabels.get(pathObject)))
+						return Stream.empty();
+					return Stream.of(before.getBounds(), after.getBounds());
+				})
+				.collect(Collectors.toList());
+		final List<Rectangle> changedTiles = tiles.stream()
+				.filter(tile -> changedBounds.stream().anyMatch(tile::intersects))
+				.collect(Collectors.toList());
+		return new Delta(current, currentLabels, version, changedTiles);
+	}
+
+	/**
+	 * Record the annotations of a request that the server has accepted.
+	 * @param delta the prepared request
+	 * @param imageHash hash of the image the labels belong to
+	 * @param version the label version returned by the server, or null if the server did not return one
+	 */
+	synchronized void commit(final Delta delta, final String imageHash, final String version) {
+		labels.clear();
+		labels.putAll(delta.labels);
+		for (final int label : delta.labels.values())
+			maxLabel = Math.max(maxLabel, label);
+		recorded = delta.annotations;
+		this.imageHash = imageHash;
+		this.version = version;
+	}
+
+	/**
+	 * Forget the labels held by the server, so that the next request sends all label tiles with new labels.
+	 */
+	synchronized void reset() {
+		labels.clear();
+		maxLabel = 1;
+		recorded = Collections.emptyMap();
+		imageHash = null;
+		version = null;
+	}
+
+	/**
+	 * Labels and changed tiles for one request.
+	 */
+	static class Delta {
+
+		private final Map<PathObject, Annotation> annotations;
+		private final Map<PathObject, Integer> labels;
+		private final String baseVersion;
+		private final List<Rectangle> tiles;
+
+		private Delta(
+				final Map<PathObject, Annotation> annotations,
+				final Map<PathObject, Integer> labels,
+				final String baseVersion,
+				final List<Rectangle> tiles
+		) {
+			this.annotations = annotations;
+			this.labels = labels;
+			this.baseVersion = baseVersion;
+			this.tiles = tiles;
+		}
+
+		/**
+		 * @return the instance label of each foreground annotation
+		 */
+		Map<PathObject, Integer> getLabels() {
+			return labels;
+		}
+
+		/**
+		 * @return true if only the changed tiles are sent
+		 */
+		boolean isDelta() {
+			return baseVersion != null;
+		}
+
+		/**
+		 * @return the label version the delta is based on, or null to send all tiles
+		 */
+		String getBaseVersion() {
+			return baseVersion;
+		}
+
+		/**
+		 * @return the changed tiles, or null to send all tiles
+		 */
+		List<Rectangle> getTiles() {
+			return tiles;
+		}
+
+		/**
+		 * @param mapping maps each tile passed to {@link CellsparseLabelTracker#prepare} to the tile to send
+		 * @return the same delta with its changed tiles mapped
+		 */
+		Delta mapTiles(final Function<Rectangle, Rectangle> mapping) {
+			if (tiles == null)
+				return this;
+			return new Delta(annotations, labels, baseVersion, tiles.stream().map(mapping).collect(Collectors.toList()));
+		}
+
+	}
+
+	/**
+	 * The state of an annotation that determines how it is drawn.
+	 * ROIs are immutable, so comparing them by reference is enough to detect edits.
+	 */
+	private static class Annotation {
+
+		private final ROI roi;
+		private final PathClass pathClass;
+
+		private Annotation(final PathObject pathObject) {
+			this.roi = pathObject.getROI();
+			this.pathClass = pathObject.getPathClass();
+		}
+
+		private Rectangle getBounds() {
+			final int x = (int) Math.floor(roi.getBoundsX()) - PADDING;
+			final int y = (int) Math.floor(roi.getBoundsY()) - PADDING;
+			final int x2 = (int) Math.ceil(roi.getBoundsX() + roi.getBoundsWidth()) + PADDING;
+			final int y2 = (int) Math.ceil(roi.getBoundsY() + roi.getBoundsHeight()) + PADDING;
+			return new Rectangle(x, y, x2 - x, y2 - y);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Annotation))
+				return false;
+			final Annotation other = (Annotation) obj;
+			return roi == other.roi && pathClass == other.pathClass;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(System.identityHashCode(roi), pathClass);
+		}
+
+	}
+
+}
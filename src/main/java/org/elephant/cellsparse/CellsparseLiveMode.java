@@ -0,0 +1,214 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import javafx.application.Platform;
+import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.SimpleBooleanProperty;
+import javafx.beans.value.ChangeListener;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
+
+/**
+ * Retrains and reruns inference automatically while the user annotates.
+ * <p>
+ * When enabled, the hierarchy of the image shown in the viewer is observed. Edits of {@code Foreground} and
+ * {@code Background} annotations are debounced: a run starts once no edit has been made for the configured delay,
+ * so a burst of edits results in a single run. A run is a training step followed by inference.
+ * <p>
+ * An edit made while a run is in flight supersedes it. Inference is cancelled, since it can simply be repeated.
+ * Training is allowed to finish, since the model on the server has already started to change, but the inference
+ * that would follow it is skipped. In both cases a single new run starts once the edits have settled, so edits never
+ * queue up more than one run.
+ * <p>
+ * All state is accessed on the JavaFX application thread.
+ */
+class CellsparseLiveMode implements PathObjectHierarchyListener {
+
+	/**
+	 * Starts one step of a run.
+	 */
+	@FunctionalInterface
+	interface Step {
+		/**
+		 * @param imageData
+		 * @param train true for the training step, false for inference
+		 * @param onDone called on the JavaFX application thread with true if the step succeeded
+		 * @return the job, or null if it could not be started
+		 */
+		CellsparseJob<Integer> start(ImageData<BufferedImage> imageData, boolean train, Consumer<Boolean> onDone);
+	}
+
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		final Thread thread = new Thread(r, "cellsparse-live-mode");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final Step step;
+	private final LongSupplier delayMillis;
+	private final BooleanProperty enabled = new SimpleBooleanProperty(false);
+	private final ChangeListener<ImageData<BufferedImage>> imageDataListener = (observable, oldValue, newValue) -> setImageData(newValue);
+
+	private ImageData<BufferedImage> imageData;
+	private ScheduledFuture<?> pending;
+	private CellsparseJob<Integer> running;
+	private boolean runningTraining;
+	private boolean superseded;
+	private boolean due;
+
+	/**
+	 * @param qupath
+	 * @param step
+	 * @param delayMillis the time without edits after which a run starts
+	 */
+	CellsparseLiveMode(final QuPathGUI qupath, final Step step, final LongSupplier delayMillis) {
+		this.step = step;
+		this.delayMillis = delayMillis;
+		enabled.addListener((observable, oldValue, newValue) -> {
+			if (newValue) {
+				qupath.imageDataProperty().addListener(imageDataListener);
+				setImageData(qupath.getImageData());
+			}
+			else {
+				qupath.imageDataProperty().removeListener(imageDataListener);
+				setImageData(null);
+			}
+		});
+	}
+
+	/**
+	 * @return the property that turns live mode on and off
+	 */
+	BooleanProperty enabledProperty() {
+		return enabled;
+	}
+
+	private void setImageData(final ImageData<BufferedImage> imageData) {
+		if (this.imageData != null)
+			this.imageData.getHierarchy().removeListener(this);
+		cancelPending();
+		if (running != null && !runningTraining)
+			supersede();
+		this.imageData = imageData;
+		if (imageData != null)
+			imageData.getHierarchy().addListener(this);
+	}
+
+	@Override
+	public void hierarchyChanged(final PathObjectHierarchyEvent event) {
+		if (event.isChanging() || !isRelevant(event))
+			return;
+		if (Platform.isFxApplicationThread())
+			edited(event.getHierarchy());
+		else
+			Platform.runLater(() -> edited(event.getHierarchy()));
+	}
+
+	/**
+	 * @return true if the event may change the training labels; results added by Cellsparse are ignored
+	 */
+	private static boolean isRelevant(final PathObjectHierarchyEvent event) {
+		if (event.getSource() instanceof CellsparseResults)
+			return false;
+		final PathClass foregroundClass = PathClass.getInstance("Foreground");
+		final PathClass backgroundClass = PathClass.getInstance("Background");
+		for (final PathObject pathObject : event.getChangedObjects()) {
+			if (!pathObject.isAnnotation())
+				continue;
+			// A reclassified annotation may have been Foreground or Background before
+			if (event.getEventType() == PathObjectHierarchyEvent.HierarchyEventType.CHANGE_CLASSIFICATION)
+				return true;
+			if (pathObject.getPathClass() == foregroundClass || pathObject.getPathClass() == backgroundClass)
+				return true;
+		}
+		return false;
+	}
+
+	private void edited(final PathObjectHierarchy hierarchy) {
+		if (imageData == null || imageData.getHierarchy() != hierarchy)
+			return;
+		if (running != null) {
+			if (runningTraining)
+				superseded = true;
+			else
+				supersede();
+		}
+		cancelPending();
+		schedule(this::trigger);
+	}
+
+	/**
+	 * Run an action on the JavaFX application thread once the delay has passed, unless it is cancelled before.
+	 */
+	private void schedule(final Runnable action) {
+		pending = scheduler.schedule(() -> Platform.runLater(action), delayMillis.getAsLong(), TimeUnit.MILLISECONDS);
+	}
+
+	private void trigger() {
+		pending = null;
+		if (imageData == null)
+			return;
+		if (running != null) {
+			// Start as soon as the current step is done
+			due = true;
+			return;
+		}
+		due = false;
+		superseded = false;
+		start(true);
+	}
+
+	private void start(final boolean train) {
+		final ImageData<BufferedImage> runImageData = imageData;
+		runningTraining = train;
+		running = step.start(runImageData, train, success -> {
+			running = null;
+			final boolean wasSuperseded = superseded;
+			superseded = false;
+			if (!success && !wasSuperseded) {
+				// Do not keep failing on every edit, e.g. if the server is down
+				enabled.set(false);
+				Dialogs.showWarningNotification("Cellsparse live mode", "Live mode has been turned off");
+				return;
+			}
+			if (due)
+				trigger();
+			else if (train && !wasSuperseded && runImageData == imageData)
+				start(false);
+		});
+		if (running == null) {
+			// Another job is running for the image, so the run is repeated once the delay has passed again
+			due = true;
+			schedule(this::trigger);
+		}
+	}
+
+	/**
+	 * Cancel the inference in flight; a new run follows once the edits have settled.
+	 */
+	private void supersede() {
+		superseded = true;
+		running.cancel();
+	}
+
+	private void cancelPending() {
+		if (pending != null) {
+			pending.cancel(false);
+			pending = null;
+		}
+	}
+
+}
@@ -0,0 +1,492 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.SampleModel;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.http.HttpRequest;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Metrics of a Cellsparse command.
+ * <p>
+ * Each job collects the time spent in each {@link Stage}, the bytes handled at each step of a request, the number
+ * of objects received and the heap allocated by each stage, from any thread. When the job finishes, a summary is
+ * logged once and added to the totals exposed through JMX as {@value #OBJECT_NAME}.
+ * <p>
+ * Stage times are summed over threads, so stages that run in parallel, e.g. encoding tiles, may add up to more
+ * than the duration of the command. Allocation is measured per thread where the JVM supports it; the peak heap
+ * is the highest heap usage observed at the end of a stage.
+ */
+public class CellsparseMetrics {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseMetrics.class);
+
+	static final String OBJECT_NAME = "org.elephant.cellsparse:type=Metrics";
+
+	/**
+	 * Stages of a command.
+	 */
+	public enum Stage {
+		READ_IMAGE("read image"),
+		RENDER_LABELS("render labels"),
+		ENCODE("encode"),
+		BASE64("base64"),
+		SERIALIZE("serialize"),
+		/** From the end of the upload to the response headers, so that reading and encoding are not counted twice */
+		ROUND_TRIP("round trip"),
+		PARSE("parse"),
+		INSERT("insert");
+
+		private final String description;
+
+		Stage(final String description) {
+			this.description = description;
+		}
+
+		@Override
+		public String toString() {
+			return description;
+		}
+	}
+
+	/**
+	 * Byte counters of a command.
+	 */
+	public enum Bytes {
+		/** Pixel data read from the image and label servers */
+		RAW,
+		/** Pixel data after PNG or raw encoding */
+		ENCODED,
+		/** Request bodies as sent, after compression */
+		SENT,
+		/** Response bodies as received, before decompression */
+		RECEIVED
+	}
+
+	/**
+	 * A stage that may fail with an I/O error.
+	 * @param <T>
+	 */
+	@FunctionalInterface
+	interface Timed<T> {
+		T call() throws IOException;
+	}
+
+	/**
+	 * Metrics that are not recorded, for requests that do not belong to a job.
+	 */
+	static final CellsparseMetrics NONE = new CellsparseMetrics(null);
+
+	private static final Totals totals = new Totals();
+
+	private static final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+
+	private static final com.sun.management.ThreadMXBean threadBean = getThreadBean();
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(totals, new ObjectName(OBJECT_NAME));
+		} catch (JMException | RuntimeException e) {
+			logger.warn("Unable to register Cellsparse metrics: {}", e.getMessage());
+		}
+	}
+
+	private final String name;
+	private final long startTime = System.nanoTime();
+	private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray stageCounts = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray stageAllocated = new AtomicLongArray(Stage.values().length);
+	private final AtomicLongArray bytes = new AtomicLongArray(Bytes.values().length);
+	private final AtomicLong objects = new AtomicLong();
+	private final AtomicLong peakHeap = new AtomicLong();
+	private final AtomicBoolean finished = new AtomicBoolean();
+
+	/**
+	 * @param name the name of the command, used in the summary
+	 */
+	CellsparseMetrics(final String name) {
+		this.name = name;
+	}
+
+	private static com.sun.management.ThreadMXBean getThreadBean() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+			if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled())
+				return sunBean;
+		}
+		return null;
+	}
+
+	private boolean isEnabled() {
+		return name != null;
+	}
+
+	/**
+	 * Run a stage on the current thread and record its time and allocation.
+	 * @param <T>
+	 * @param stage
+	 * @param timed
+	 * @return the result of the stage
+	 * @throws IOException
+	 */
+	<T> T time(final Stage stage, final Timed<T> timed) throws IOException {
+		if (!isEnabled())
+			return timed.call();
+		final long allocated = getAllocatedBytes();
+		final long start = System.nanoTime();
+		try {
+			return timed.call();
+		} finally {
+			record(stage, System.nanoTime() - start);
+			if (allocated >= 0)
+				stageAllocated.addAndGet(stage.ordinal(), getAllocatedBytes() - allocated);
+		}
+	}
+
+	/**
+	 * Run a stage that cannot fail with an I/O error.
+	 * @param stage
+	 * @param runnable
+	 */
+	void time(final Stage stage, final Runnable runnable) {
+		try {
+			time(stage, () -> {
+				runnable.run();
+				return null;
+			});
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Record a stage that does not run on a single thread, such as a network round trip.
+	 * @param stage
+	 * @param nanos the duration of the stage
+	 */
+	void record(final Stage stage, final long nanos) {
+		if (!isEnabled())
+			return;
+		stageNanos.addAndGet(stage.ordinal(), nanos);
+		stageCounts.incrementAndGet(stage.ordinal());
+		final long heap = memoryBean.getHeapMemoryUsage().getUsed();
+		peakHeap.accumulateAndGet(heap, Math::max);
+	}
+
+	/**
+	 * @param counter
+	 * @param count
+	 */
+	void addBytes(final Bytes counter, final long count) {
+		if (isEnabled())
+			bytes.addAndGet(counter.ordinal(), count);
+	}
+
+	/**
+	 * @param count number of objects received
+	 */
+	void addObjects(final long count) {
+		if (isEnabled())
+			objects.addAndGet(count);
+	}
+
+	/**
+	 * @param encoder
+	 * @return an encoder that records its time and the raw and encoded bytes
+	 */
+	CellsparseImageEncoder wrap(final CellsparseImageEncoder encoder) {
+		if (!isEnabled())
+			return encoder;
+		return new CellsparseImageEncoder() {
+
+			@Override
+			public byte[] encode(final BufferedImage image) throws IOException {
+				final byte[] encoded = time(Stage.ENCODE, () -> encoder.encode(image));
+				addBytes(Bytes.RAW, getRawBytes(image));
+				addBytes(Bytes.ENCODED, encoded.length);
+				return encoded;
+			}
+
+			@Override
+			public String getName() {
+				return encoder.getName();
+			}
+
+			@Override
+			public String toString() {
+				return encoder.toString();
+			}
+
+		};
+	}
+
+	private static long getRawBytes(final BufferedImage image) {
+		final SampleModel sampleModel = image.getSampleModel();
+		long bitsPerPixel = 0;
+		for (final int sampleSize : sampleModel.getSampleSize())
+			bitsPerPixel += sampleSize;
+		return (long) image.getWidth() * image.getHeight() * bitsPerPixel / 8;
+	}
+
+	/**
+	 * @param bodyPublisher
+	 * @param uploaded set to {@link System#nanoTime()} once the body has been sent
+	 * @return a body publisher that counts the bytes sent
+	 */
+	HttpRequest.BodyPublisher countSent(final HttpRequest.BodyPublisher bodyPublisher, final AtomicLong uploaded) {
+		if (!isEnabled())
+			return bodyPublisher;
+		return new HttpRequest.BodyPublisher() {
+
+			@Override
+			public long contentLength() {
+				return bodyPublisher.contentLength();
+			}
+
+			@Override
+			public void subscribe(final Flow.Subscriber<? super ByteBuffer> subscriber) {
+				bodyPublisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+
+					@Override
+					public void onSubscribe(final Flow.Subscription subscription) {
+						subscriber.onSubscribe(subscription);
+					}
+
+					@Override
+					public void onNext(final ByteBuffer item) {
+						addBytes(Bytes.SENT, item.remaining());
+						subscriber.onNext(item);
+					}
+
+					@Override
+					public void onError(final Throwable throwable) {
+						subscriber.onError(throwable);
+					}
+
+					@Override
+					public void onComplete() {
+						uploaded.set(System.nanoTime());
+						subscriber.onComplete();
+					}
+
+				});
+			}
+
+		};
+	}
+
+	/**
+	 * @param stream
+	 * @return a stream that counts the bytes received
+	 */
+	InputStream countReceived(final InputStream stream) {
+		if (!isEnabled())
+			return stream;
+		return new FilterInputStream(stream) {
+
+			@Override
+			public int read() throws IOException {
+				final int b = super.read();
+				if (b >= 0)
+					addBytes(Bytes.RECEIVED, 1);
+				return b;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len) throws IOException {
+				final int n = super.read(b, off, len);
+				if (n > 0)
+					addBytes(Bytes.RECEIVED, n);
+				return n;
+			}
+
+		};
+	}
+
+	/**
+	 * Log the summary of the command and add its metrics to the totals. Only the first call has an effect.
+	 * @param success true if the command succeeded
+	 */
+	void finish(final boolean success) {
+		if (!isEnabled() || !finished.compareAndSet(false, true))
+			return;
+		final String summary = getSummary(success);
+		logger.info(summary);
+		totals.add(this, success, summary);
+	}
+
+	/**
+	 * @param success
+	 * @return a single line with the duration, stage times, byte counts, objects and allocation of the command
+	 */
+	String getSummary(final boolean success) {
+		final StringBuilder sb = new StringBuilder(name)
+				.append(success ? " finished in " : " failed after ")
+				.append(formatMillis(System.nanoTime() - startTime));
+		String separator = ": ";
+		for (final Stage stage : Stage.values()) {
+			final long count = stageCounts.get(stage.ordinal());
+			if (count == 0)
+				continue;
+			sb.append(separator).append(stage).append(' ').append(formatMillis(stageNanos.get(stage.ordinal())));
+			if (count > 1)
+				sb.append(" (").append(count).append(')');
+			separator = ", ";
+		}
+		separator = "; ";
+		for (final Bytes counter : Bytes.values()) {
+			final long count = bytes.get(counter.ordinal());
+			if (count == 0)
+				continue;
+			sb.append(separator).append(counter.name().toLowerCase()).append(' ').append(formatBytes(count));
+			separator = ", ";
+		}
+		sb.append("; ").append(objects.get()).append(" objects");
+		long allocated = 0;
+		for (final Stage stage : Stage.values())
+			allocated += stageAllocated.get(stage.ordinal());
+		if (threadBean != null)
+			sb.append("; allocated ").append(formatBytes(allocated));
+		sb.append(", peak heap ").append(formatBytes(peakHeap.get()));
+		return sb.toString();
+	}
+
+	private static long getAllocatedBytes() {
+		return threadBean == null ? -1 : threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static String formatMillis(final long nanos) {
+		return String.format("%.1f ms", nanos / 1e6);
+	}
+
+	private static String formatBytes(final long bytes) {
+		if (bytes < 1024)
+			return bytes + " B";
+		if (bytes < 1024 * 1024)
+			return String.format("%.1f KiB", bytes / 1024.0);
+		if (bytes < 1024L * 1024 * 1024)
+			return String.format("%.1f MiB", bytes / (1024.0 * 1024));
+		return String.format("%.2f GiB", bytes / (1024.0 * 1024 * 1024));
+	}
+
+	/**
+	 * Totals over all commands, exposed through JMX.
+	 */
+	private static class Totals implements CellsparseMetricsMXBean {
+
+		private long commands;
+		private long failedCommands;
+		private final long[] stageNanos = new long[Stage.values().length];
+		private final long[] stageCounts = new long[Stage.values().length];
+		private final long[] stageAllocated = new long[Stage.values().length];
+		private final long[] bytes = new long[Bytes.values().length];
+		private long objects;
+		private long peakHeap;
+		private String lastSummary = "";
+
+		private synchronized void add(final CellsparseMetrics metrics, final boolean success, final String summary) {
+			commands++;
+			if (!success)
+				failedCommands++;
+			for (int i = 0; i < stageNanos.length; i++) {
+				stageNanos[i] += metrics.stageNanos.get(i);
+				stageCounts[i] += metrics.stageCounts.get(i);
+				stageAllocated[i] += metrics.stageAllocated.get(i);
+			}
+			for (int i = 0; i < bytes.length; i++)
+				bytes[i] += metrics.bytes.get(i);
+			objects += metrics.objects.get();
+			peakHeap = Math.max(peakHeap, metrics.peakHeap.get());
+			lastSummary = summary;
+		}
+
+		@Override
+		public synchronized long getCommands() {
+			return commands;
+		}
+
+		@Override
+		public synchronized long getFailedCommands() {
+			return failedCommands;
+		}
+
+		@Override
+		public synchronized Map<String, Double> getStageMillis() {
+			final Map<String, Double> map = new LinkedHashMap<>();
+			for (final Stage stage : Stage.values())
+				map.put(stage.name(), stageNanos[stage.ordinal()] / 1e6);
+			return map;
+		}
+
+		@Override
+		public synchronized Map<String, Long> getStageCounts() {
+			return toMap(Stage.values(), stageCounts);
+		}
+
+		@Override
+		public synchronized Map<String, Long> getStageAllocatedBytes() {
+			return toMap(Stage.values(), stageAllocated);
+		}
+
+		@Override
+		public synchronized Map<String, Long> getBytes() {
+			return toMap(Bytes.values(), bytes);
+		}
+
+		private static Map<String, Long> toMap(final Enum<?>[] keys, final long[] values) {
+			final Map<String, Long> map = new LinkedHashMap<>();
+			for (final Enum<?> key : keys)
+				map.put(key.name(), values[key.ordinal()]);
+			return map;
+		}
+
+		@Override
+		public synchronized long getObjects() {
+			return objects;
+		}
+
+		@Override
+		public synchronized long getPeakHeapBytes() {
+			return peakHeap;
+		}
+
+		@Override
+		public synchronized String getLastSummary() {
+			return lastSummary;
+		}
+
+		@Override
+		public synchronized void reset() {
+			commands = 0;
+			failedCommands = 0;
+			Arrays.fill(stageNanos, 0);
+			Arrays.fill(stageCounts, 0);
+			Arrays.fill(stageAllocated, 0);
+			Arrays.fill(bytes, 0);
+			objects = 0;
+			peakHeap = 0;
+			lastSummary = "";
+		}
+
+	}
+
+}
@@ -0,0 +1,64 @@
+package org.elephant.cellsparse;
+
+import java.util.Map;
+
+/**
+ * Totals of the metrics of all Cellsparse commands since the last reset, registered with the platform
+ * MBean server as {@value CellsparseMetrics#OBJECT_NAME}.
+ * <p>
+ * Stage maps are keyed by the names of {@link CellsparseMetrics.Stage}, byte maps by the names of
+ * {@link CellsparseMetrics.Bytes}.
+ */
+public interface CellsparseMetricsMXBean {
+
+	/**
+	 * @return the number of commands that have finished
+	 */
+	long getCommands();
+
+	/**
+	 * @return the number of commands that have failed or were cancelled
+	 */
+	long getFailedCommands();
+
+	/**
+	 * @return the total time spent in each stage, in milliseconds, summed over all threads
+	 */
+	Map<String, Double> getStageMillis();
+
+	/**
+	 * @return the number of times each stage has run
+	 */
+	Map<String, Long> getStageCounts();
+
+	/**
+	 * @return the bytes allocated on the heap by each stage, if the JVM can measure it
+	 */
+	Map<String, Long> getStageAllocatedBytes();
+
+	/**
+	 * @return the number of raw, encoded, sent and received bytes
+	 */
+	Map<String, Long> getBytes();
+
+	/**
+	 * @return the number of objects received
+	 */
+	long getObjects();
+
+	/**
+	 * @return the highest heap usage observed at the end of a stage
+	 */
+	long getPeakHeapBytes();
+
+	/**
+	 * @return the summary of the last command that has finished
+	 */
+	String getLastSummary();
+
+	/**
+	 * Set all totals to zero.
+	 */
+	void reset();
+
+}
@@ -0,0 +1,40 @@
+package org.elephant.cellsparse;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Observes a running Cellsparse request.
+ * <p>
+ * Requests report their status through the monitor and register the futures of their HTTP exchanges,
+ * so that cancelling the monitor aborts the exchanges that are in flight.
+ */
+public interface CellsparseMonitor {
+
+	/**
+	 * Register a future to be cancelled when the monitor is cancelled.
+	 * @param <T>
+	 * @param future
+	 * @return the same future
+	 */
+	<T> CompletableFuture<T> track(CompletableFuture<T> future);
+
+	/**
+	 * Report the current status.
+	 * @param message
+	 * @param progress fraction between 0 and 1, or a negative value if unknown
+	 */
+	void updateStatus(String message, double progress);
+
+	/**
+	 * @return true if the request has been cancelled
+	 */
+	boolean isCancelled();
+
+	/**
+	 * @return the metrics the request records its stages in
+	 */
+	default CellsparseMetrics getMetrics() {
+		return CellsparseMetrics.NONE;
+	}
+
+}
@@ -0,0 +1,495 @@
+package org.elephant.cellsparse;
+
+
+public class CellsparseOptions {
+
+	private final boolean streamingUpload;
+	private final int tileSize;
+	private final boolean binaryTransport;
+	private final boolean compactResults;
+	private final int connectTimeout;
+	private final int requestTimeout;
+	private final boolean http2;
+	private final boolean compression;
+	private final int compressionLevel;
+	private final int compressionThreshold;
+	private final CellsparseImageEncoder.Encoding encoding;
+	private final int pngCompressionLevel;
+	private final int encoderThreads;
+	private final boolean cropTraining;
+	private final int cropPadding;
+	private final boolean tiledInference;
+	private final int inferenceTileSize;
+	private final int inferenceOverlap;
+	private final int inferenceConcurrency;
+	private final CellsparseEndpointPool.Policy dispatchPolicy;
+	private final boolean hedging;
+	private final int hedgePercentile;
+	private final int hedgeMaxRate;
+	private final double downsample;
+	private final double pixelSize;
+	private final int liveModeDelay;
+	private final boolean trainingJobs;
+	private final int tileCacheSize;
+	private final String tileCacheDirectory;
+
+	public CellsparseOptions(final Builder builder) {
+		this.streamingUpload = builder.streamingUpload;
+		this.tileSize = builder.tileSize;
+		this.binaryTransport = builder.binaryTransport;
+		this.compactResults = builder.compactResults;
+		this.connectTimeout = builder.connectTimeout;
+		this.requestTimeout = builder.requestTimeout;
+		this.http2 = builder.http2;
+		this.compression = builder.compression;
+		this.compressionLevel = builder.compressionLevel;
+		this.compressionThreshold = builder.compressionThreshold;
+		this.encoding = builder.encoding;
+		this.pngCompressionLevel = builder.pngCompressionLevel;
+		this.encoderThreads = builder.encoderThreads;
+		this.cropTraining = builder.cropTraining;
+		this.cropPadding = builder.cropPadding;
+		this.tiledInference = builder.tiledInference;
+		this.inferenceTileSize = builder.inferenceTileSize;
+		this.inferenceOverlap = builder.inferenceOverlap;
+		this.inferenceConcurrency = builder.inferenceConcurrency;
+		this.dispatchPolicy = builder.dispatchPolicy;
+		this.hedging = builder.hedging;
+		this.hedgePercentile = builder.hedgePercentile;
+		this.hedgeMaxRate = builder.hedgeMaxRate;
+		this.downsample = builder.downsample;
+		this.pixelSize = builder.pixelSize;
+		this.liveModeDelay = builder.liveModeDelay;
+		this.trainingJobs = builder.trainingJobs;
+		this.tileCacheSize = builder.tileCacheSize;
+		this.tileCacheDirectory = builder.tileCacheDirectory;
+	}
+
+	/**
+	 * @return true if the image and label planes are read, encoded and uploaded tile by tile
+	 */
+	public boolean isStreamingUpload() {
+		return streamingUpload;
+	}
+
+	/**
+	 * @return the tile size in pixels used when streaming the upload
+	 */
+	public int getTileSize() {
+		return tileSize;
+	}
+
+	/**
+	 * @return true if the binary frame format is used when the server supports it
+	 */
+	public boolean isBinaryTransport() {
+		return binaryTransport;
+	}
+
+	/**
+	 * @return true if results are requested in the compact binary polygon format
+	 */
+	public boolean isCompactResults() {
+		return compactResults;
+	}
+
+	/**
+	 * @return the timeout in seconds to establish a connection
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	/**
+	 * @return the timeout in seconds for a complete request, or 0 to wait indefinitely
+	 */
+	public int getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * @return true if HTTP/2 is attempted
+	 */
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	/**
+	 * @return true if request bodies are compressed when the server supports it, and compressed responses are accepted
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * @return the deflate level used to compress request bodies, from 1 (fastest) to 9 (smallest)
+	 */
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	/**
+	 * @return the size in bytes below which request bodies are sent uncompressed
+	 */
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	/**
+	 * @return the preferred encoding of image and label tiles
+	 */
+	public CellsparseImageEncoder.Encoding getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return the deflate level of PNG tiles, from 0 (uncompressed) to 9 (smallest)
+	 */
+	public int getPngCompressionLevel() {
+		return pngCompressionLevel;
+	}
+
+	/**
+	 * @return the number of tiles encoded in parallel
+	 */
+	public int getEncoderThreads() {
+		return encoderThreads;
+	}
+
+	/**
+	 * @return true if training only uploads crops around the annotations when the server supports it
+	 */
+	public boolean isCropTraining() {
+		return cropTraining;
+	}
+
+	/**
+	 * @return the context in pixels added around annotations when cropping
+	 */
+	public int getCropPadding() {
+		return cropPadding;
+	}
+
+	/**
+	 * @return true if inference is split into overlapping tiles
+	 */
+	public boolean isTiledInference() {
+		return tiledInference;
+	}
+
+	/**
+	 * @return the size in pixels of the inference tiles
+	 */
+	public int getInferenceTileSize() {
+		return inferenceTileSize;
+	}
+
+	/**
+	 * @return the number of pixels shared by neighbouring inference tiles
+	 */
+	public int getInferenceOverlap() {
+		return inferenceOverlap;
+	}
+
+	/**
+	 * @return the maximum number of inference tiles requested at the same time
+	 */
+	public int getInferenceConcurrency() {
+		return inferenceConcurrency;
+	}
+
+	/**
+	 * @return how inference requests are assigned to the endpoints of a server URL
+	 */
+	public CellsparseEndpointPool.Policy getDispatchPolicy() {
+		return dispatchPolicy;
+	}
+
+	/**
+	 * @return true if slow inference requests are duplicated on another endpoint
+	 */
+	public boolean isHedging() {
+		return hedging;
+	}
+
+	/**
+	 * @return the percentile of recent latencies after which an inference request is duplicated
+	 */
+	public int getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * @return the maximum percentage of inference requests that are duplicated
+	 */
+	public int getHedgeMaxRate() {
+		return hedgeMaxRate;
+	}
+
+	/**
+	 * @return the downsample at which images are sent and labels are rendered, if no pixel size is set
+	 */
+	public double getDownsample() {
+		return downsample;
+	}
+
+	/**
+	 * @return the pixel size in microns at which images are sent, or 0 to use the downsample
+	 */
+	public double getPixelSize() {
+		return pixelSize;
+	}
+
+	/**
+	 * @return the time in milliseconds without edits after which live mode retrains
+	 */
+	public int getLiveModeDelay() {
+		return liveModeDelay;
+	}
+
+	/**
+	 * @return true if training runs as a job on the server and reports its progress, if the server supports it
+	 */
+	public boolean isTrainingJobs() {
+		return trainingJobs;
+	}
+
+	/**
+	 * @return the size limit of the tile cache on disk in MB, 0 (the default) to disable it
+	 */
+	public int getTileCacheSize() {
+		return tileCacheSize;
+	}
+
+	/**
+	 * @return the directory of the tile cache, or an empty string for the default directory
+	 */
+	public String getTileCacheDirectory() {
+		return tileCacheDirectory;
+	}
+
+	public static class Builder {
+		private boolean streamingUpload = false;
+		private int tileSize = 1024;
+		private boolean binaryTransport = true;
+		private boolean compactResults = true;
+		private int connectTimeout = 10;
+		private int requestTimeout = 0;
+		private boolean http2 = false;
+		private boolean compression = true;
+		private int compressionLevel = 1;
+		private int compressionThreshold = 1024;
+		private CellsparseImageEncoder.Encoding encoding = CellsparseImageEncoder.Encoding.PNG;
+		private int pngCompressionLevel = 4;
+		private int encoderThreads = Runtime.getRuntime().availableProcessors();
+		private boolean cropTraining = false;
+		private int cropPadding = 64;
+		private boolean tiledInference = false;
+		private int inferenceTileSize = 2048;
+		private int inferenceOverlap = 128;
+		private int inferenceConcurrency = 4;
+		private CellsparseEndpointPool.Policy dispatchPolicy = CellsparseEndpointPool.Policy.LEAST_OUTSTANDING;
+		private boolean hedging = false;
+		private int hedgePercentile = 95;
+		private int hedgeMaxRate = 10;
+		private double downsample = 1.0;
+		private double pixelSize = 0.0;
+		private int liveModeDelay = 1500;
+		private boolean trainingJobs = true;
+		private int tileCacheSize = 0;
+		private String tileCacheDirectory = "";
+
+		public Builder() {}
+
+		public Builder streamingUpload(final boolean streamingUpload) {
+			this.streamingUpload = streamingUpload;
+			return this;
+		}
+
+		public Builder tileSize(final int tileSize) {
+			if (tileSize <= 0)
+				throw new IllegalArgumentException("Tile size must be positive! Requested " + tileSize);
+			this.tileSize = tileSize;
+			return this;
+		}
+
+		public Builder binaryTransport(final boolean binaryTransport) {
+			this.binaryTransport = binaryTransport;
+			return this;
+		}
+
+		public Builder compactResults(final boolean compactResults) {
+			this.compactResults = compactResults;
+			return this;
+		}
+
+		public Builder connectTimeout(final int connectTimeout) {
+			if (connectTimeout <= 0)
+				throw new IllegalArgumentException("Connect timeout must be positive! Requested " + connectTimeout);
+			this.connectTimeout = connectTimeout;
+			return this;
+		}
+
+		public Builder requestTimeout(final int requestTimeout) {
+			if (requestTimeout < 0)
+				throw new IllegalArgumentException("Request timeout must not be negative! Requested " + requestTimeout);
+			this.requestTimeout = requestTimeout;
+			return this;
+		}
+
+		public Builder http2(final boolean http2) {
+			this.http2 = http2;
+			return this;
+		}
+
+		public Builder compression(final boolean compression) {
+			this.compression = compression;
+			return this;
+		}
+
+		public Builder compressionLevel(final int compressionLevel) {
+			if (compressionLevel < 1 || compressionLevel > 9)
+				throw new IllegalArgumentException("Compression level must be between 1 and 9! Requested " + compressionLevel);
+			this.compressionLevel = compressionLevel;
+			return this;
+		}
+
+		public Builder compressionThreshold(final int compressionThreshold) {
+			if (compressionThreshold < 0)
+				throw new IllegalArgumentException("Compression threshold must not be negative! Requested " + compressionThreshold);
+			this.compressionThreshold = compressionThreshold;
+			return this;
+		}
+
+		public Builder encoding(final CellsparseImageEncoder.Encoding encoding) {
+			this.encoding = encoding;
+			return this;
+		}
+
+		public Builder pngCompressionLevel(final int pngCompressionLevel) {
+			if (pngCompressionLevel < 0 || pngCompressionLevel > 9)
+				throw new IllegalArgumentException("PNG compression level must be between 0 and 9! Requested " + pngCompressionLevel);
+			this.pngCompressionLevel = pngCompressionLevel;
+			return this;
+		}
+
+		public Builder encoderThreads(final int encoderThreads) {
+			if (encoderThreads <= 0)
+				throw new IllegalArgumentException("Encoder threads must be positive! Requested " + encoderThreads);
+			this.encoderThreads = encoderThreads;
+			return this;
+		}
+
+		public Builder cropTraining(final boolean cropTraining) {
+			this.cropTraining = cropTraining;
+			return this;
+		}
+
+		public Builder cropPadding(final int cropPadding) {
+			if (cropPadding < 0)
+				throw new IllegalArgumentException("Crop padding must not be negative! Requested " + cropPadding);
+			this.cropPadding = cropPadding;
+			return this;
+		}
+
+		public Builder tiledInference(final boolean tiledInference) {
+			this.tiledInference = tiledInference;
+			return this;
+		}
+
+		public Builder inferenceTileSize(final int inferenceTileSize) {
+			if (inferenceTileSize <= 0)
+				throw new IllegalArgumentException("Inference tile size must be positive! Requested " + inferenceTileSize);
+			this.inferenceTileSize = inferenceTileSize;
+			return this;
+		}
+
+		public Builder inferenceOverlap(final int inferenceOverlap) {
+			if (inferenceOverlap < 0)
+				throw new IllegalArgumentException("Inference overlap must not be negative! Requested " + inferenceOverlap);
+			this.inferenceOverlap = inferenceOverlap;
+			return this;
+		}
+
+		public Builder inferenceConcurrency(final int inferenceConcurrency) {
+			if (inferenceConcurrency <= 0)
+				throw new IllegalArgumentException("Inference concurrency must be positive! Requested " + inferenceConcurrency);
+			this.inferenceConcurrency = inferenceConcurrency;
+			return this;
+		}
+
+		public Builder dispatchPolicy(final CellsparseEndpointPool.Policy dispatchPolicy) {
+			this.dispatchPolicy = dispatchPolicy;
+			return this;
+		}
+
+		public Builder hedging(final boolean hedging) {
+			this.hedging = hedging;
+			return this;
+		}
+
+		public Builder hedgePercentile(final int hedgePercentile) {
+			if (hedgePercentile < 1 || hedgePercentile > 99)
+				throw new IllegalArgumentException("Hedge percentile must be between 1 and 99! Requested " + hedgePercentile);
+			this.hedgePercentile = hedgePercentile;
+			return this;
+		}
+
+		public Builder hedgeMaxRate(final int hedgeMaxRate) {
+			if (hedgeMaxRate < 1 || hedgeMaxRate > 50)
+				throw new IllegalArgumentException("Hedge rate must be between 1 and 50! Requested " + hedgeMaxRate);
+			this.hedgeMaxRate = hedgeMaxRate;
+			return this;
+		}
+
+		public Builder downsample(final double downsample) {
+			if (downsample < 1.0)
+				throw new IllegalArgumentException("Downsample must be at least 1! Requested " + downsample);
+			this.downsample = downsample;
+			return this;
+		}
+
+		public Builder pixelSize(final double pixelSize) {
+			if (pixelSize < 0.0)
+				throw new IllegalArgumentException("Pixel size must not be negative! Requested " + pixelSize);
+			this.pixelSize = pixelSize;
+			return this;
+		}
+
+		public Builder liveModeDelay(final int liveModeDelay) {
+			if (liveModeDelay < 0)
+				throw new IllegalArgumentException("Live mode delay must not be negative! Requested " + liveModeDelay);
+			this.liveModeDelay = liveModeDelay;
+			return this;
+		}
+
+		public Builder trainingJobs(final boolean trainingJobs) {
+			this.trainingJobs = trainingJobs;
+			return this;
+		}
+
+		public Builder tileCacheSize(final int tileCacheSize) {
+			if (tileCacheSize < 0)
+				throw new IllegalArgumentException("Tile cache size must not be negative! Requested " + tileCacheSize);
+			this.tileCacheSize = tileCacheSize;
+			return this;
+		}
+
+		public Builder tileCacheDirectory(final String tileCacheDirectory) {
+			if (tileCacheDirectory == null)
+				throw new IllegalArgumentException("Tile cache directory must not be null! Use an empty string for the default directory");
+			this.tileCacheDirectory = tileCacheDirectory;
+			return this;
+		}
+
+		public CellsparseOptions build() {
+			if (inferenceOverlap >= inferenceTileSize)
+				throw new IllegalArgumentException("Inference overlap must be smaller than the tile size! Requested " + inferenceOverlap);
+			return new CellsparseOptions(this);
+		}
+	}
+
+	public static CellsparseOptions.Builder newBuilder() {
+		return new Builder();
+	}
+}
@@ -0,0 +1,238 @@
+package org.elephant.cellsparse;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.Consumer;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import qupath.lib.io.GsonTools;
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.objects.classes.PathClass;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+/**
+ * Decodes the objects returned by the server while the response is still being received.
+ * <p>
+ * Objects are converted one at a time and handed over in batches, so neither the response text
+ * nor the complete list of objects needs to be held in memory. Two formats are supported:
+ * <ul>
+ *   <li>{@code application/json}: a JSON array of GeoJSON features or a GeoJSON {@code FeatureCollection}.</li>
+ *   <li>{@value #CONTENT_TYPE_POLYGONS}: a compact binary encoding of polygons. It starts with the magic 
+ *       {@code CSPP} and a version byte, followed by a table of classification names (an unsigned short count, 
+ *       then one modified UTF-8 string per class, empty for unclassified objects) and the number of objects as an int.
+ *       Each object consists of a short class index (-1 for none), a float score (NaN for none), the number of 
+ *       vertices and the vertex coordinates in pixels. The vertex count and the coordinates are zigzag-encoded 
+ *       variable-length integers; the first vertex is absolute and each following vertex is the delta to the 
+ *       previous one. All fixed-size numbers are big-endian.</li>
+ * </ul>
+ */
+class CellsparseResponseReader {
+
+	static final int DEFAULT_BATCH_SIZE = 1000;
+	
+	static final String CONTENT_TYPE_POLYGONS = "application/x-cellsparse-polygons";
+	
+	/**
+	 * Value of the Accept header for requests that return objects.
+	 */
+	static final String ACCEPT_POLYGONS = CONTENT_TYPE_POLYGONS + ", application/json;q=0.9";
+	
+	private static final byte[] POLYGONS_MAGIC = "CSPP".getBytes(StandardCharsets.US_ASCII);
+	private static final int POLYGONS_VERSION = 1;
+
+	private CellsparseResponseReader() {}
+
+	/**
+	 * Read all objects from a response stream, choosing the decoder from the content type.
+	 * @param contentType the Content-Type of the response, may be null
+	 * @param inputStream the response body; it is closed when this method returns
+	 * @param batchSize the maximum number of objects per batch
+	 * @param sink receives each batch of objects
+	 * @param monitor checked between batches; reading stops if it has been cancelled
+	 * @return the number of objects that were read
+	 * @throws IOException
+	 */
+	static int readPathObjects(
+			final String contentType,
+			final InputStream inputStream,
+			final int batchSize,
+			final Consumer<List<PathObject>> sink,
+			final CellsparseMonitor monitor
+	) throws IOException {
+		if (contentType != null && contentType.startsWith(CONTENT_TYPE_POLYGONS))
+			return readPolygons(inputStream, batchSize, sink, monitor);
+		return readPathObjects(inputStream, batchSize, sink, monitor);
+	}
+
+	/**
+	 * Read all objects from a JSON response stream.
+	 * @param inputStream the response body; it is closed when this method returns
+	 * @param batchSize the maximum number of objects per batch
+	 * @param sink receives each batch of objects
+	 * @param monitor checked between batches; reading stops if it has been cancelled
+	 * @return the number of objects that were read
+	 * @throws IOException
+	 */
+	static int readPathObjects(
+			final InputStream inputStream,
+			final int batchSize,
+			final Consumer<List<PathObject>> sink,
+			final CellsparseMonitor monitor
+	) throws IOException {
+		final Gson gson = GsonTools.getInstance();
+		int count = 0;
+		try (JsonReader reader = new JsonReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+			if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+				reader.beginObject();
+				while (reader.hasNext()) {
+					if ("features".equals(reader.nextName()))
+						count += readFeatures(reader, gson, batchSize, sink, monitor);
+					else
+						reader.skipValue();
+				}
+				reader.endObject();
+			}
+			else {
+				count = readFeatures(reader, gson, batchSize, sink, monitor);
+			}
+		} catch (JsonParseException | IllegalStateException e) {
+			throw new IOException("Unable to parse response: " + e.getMessage(), e);
+		}
+		return count;
+	}
+
+	private static int readFeatures(
+			final JsonReader reader,
+			final Gson gson,
+			final int batchSize,
+			final Consumer<List<PathObject>> sink,
+			final CellsparseMonitor monitor
+	) throws IOException {
+		int count = 0;
+		List<PathObject> batch = new ArrayList<>(batchSize);
+		reader.beginArray();
+		while (reader.hasNext()) {
+			final PathObject pathObject = gson.fromJson(reader, PathObject.class);
+			if (pathObject != null)
+				batch.add(pathObject);
+			if (batch.size() == batchSize) {
+				if (monitor.isCancelled())
+					throw new CancellationException();
+				sink.accept(batch);
+				count += batch.size();
+				batch = new ArrayList<>(batchSize);
+			}
+		}
+		reader.endArray();
+		if (!batch.isEmpty()) {
+			sink.accept(batch);
+			count += batch.size();
+		}
+		return count;
+	}
+
+	/**
+	 * Read all objects from a response stream in the compact polygon format.
+	 * @param inputStream the response body; it is closed when this method returns
+	 * @param batchSize the maximum number of objects per batch
+	 * @param sink receives each batch of objects
+	 * @param monitor checked between batches; reading stops if it has been cancelled
+	 * @return the number of objects that were read
+	 * @throws IOException
+	 */
+	static int readPolygons(
+			final InputStream inputStream,
+			final int batchSize,
+			final Consumer<List<PathObject>> sink,
+			final CellsparseMonitor monitor
+	) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream))) {
+			final byte[] magic = new byte[POLYGONS_MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, POLYGONS_MAGIC))
+				throw new IOException("Unexpected polygon response");
+			final int version = in.readUnsignedByte();
+			if (version != POLYGONS_VERSION)
+				throw new IOException("Unsupported polygon response version " + version);
+			final PathClass[] pathClasses = new PathClass[in.readUnsignedShort()];
+			for (int i = 0; i < pathClasses.length; i++) {
+				final String name = in.readUTF();
+				pathClasses[i] = name.isEmpty() ? null : PathClass.fromString(name);
+			}
+			final int nObjects = in.readInt();
+			if (nObjects < 0)
+				throw new IOException("Invalid number of objects " + nObjects);
+			final ImagePlane plane = ImagePlane.getDefaultPlane();
+			List<PathObject> batch = new ArrayList<>(Math.min(batchSize, nObjects));
+			for (int i = 0; i < nObjects; i++) {
+				final int classIndex = in.readShort();
+				if (classIndex >= pathClasses.length)
+					throw new IOException("Invalid class index " + classIndex + " of object " + i);
+				final float score = in.readFloat();
+				final int nVertices = readVarInt(in);
+				if (nVertices < 0)
+					throw new IOException("Invalid number of vertices " + nVertices + " of object " + i);
+				final double[] xs = new double[nVertices];
+				final double[] ys = new double[nVertices];
+				int x = 0;
+				int y = 0;
+				for (int v = 0; v < nVertices; v++) {
+					x += readVarInt(in);
+					y += readVarInt(in);
+					xs[v] = x;
+					ys[v] = y;
+				}
+				final PathObject pathObject = PathObjects.createAnnotationObject(
+						ROIs.createPolygonROI(xs, ys, plane),
+						classIndex < 0 ? null : pathClasses[classIndex]);
+				if (!Float.isNaN(score)) {
+					try (var measurements = pathObject.getMeasurementList()) {
+						measurements.put("score", score);
+					}
+				}
+				batch.add(pathObject);
+				if (batch.size() == batchSize) {
+					if (monitor.isCancelled())
+						throw new CancellationException();
+					sink.accept(batch);
+					batch = new ArrayList<>(batchSize);
+				}
+			}
+			if (!batch.isEmpty())
+				sink.accept(batch);
+			return nObjects;
+		}
+	}
+	
+	/**
+	 * Read a zigzag-encoded variable-length integer (7 bits per byte, least significant group first).
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	private static int readVarInt(final DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return (value >>> 1) ^ -(value & 1);
+		}
+		throw new IOException("Malformed variable-length integer");
+	}
+
+}
@@ -0,0 +1,90 @@
+package org.elephant.cellsparse;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Predicate;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+
+/**
+ * Keeps track of the results added to each hierarchy and replaces them in a single update.
+ * <p>
+ * The results of a hierarchy are the unclassified annotations added by Cellsparse. They are indexed when they are
+ * added, so that the next run can find them without scanning all annotations; the first run on a hierarchy, e.g.
+ * after an image was opened, takes them from a scan. Results that have been removed or classified since, e.g. to be
+ * used as training annotations, are no longer considered results.
+ * <p>
+ * Results are replaced without firing an event for each object: the previous results are removed from their
+ * parents, the new ones are added as children of the root object, and a single hierarchy change event is fired once
+ * both are done. The new results are not placed under the annotations that contain them, since the hierarchy finds
+ * parents through its spatial cache, which is only updated by the event.
+ */
+class CellsparseResults {
+
+	private static final Map<PathObjectHierarchy, CellsparseResults> indexes = new WeakHashMap<>();
+
+	private final PathObjectHierarchy hierarchy;
+	private final Set<PathObject> results = new HashSet<>();
+	private boolean indexed = false;
+
+	private CellsparseResults(final PathObjectHierarchy hierarchy) {
+		this.hierarchy = hierarchy;
+	}
+
+	/**
+	 * @param hierarchy
+	 * @return the results of the hierarchy
+	 */
+	static CellsparseResults get(final PathObjectHierarchy hierarchy) {
+		synchronized (indexes) {
+			return indexes.computeIfAbsent(hierarchy, CellsparseResults::new);
+		}
+	}
+
+	/**
+	 * @param filter
+	 * @return the current results accepted by the filter
+	 */
+	synchronized List<PathObject> getResults(final Predicate<PathObject> filter) {
+		if (!indexed) {
+			for (final PathObject pathObject : hierarchy.getAnnotationObjects()) {
+				if (pathObject.getPathClass() == null)
+					results.add(pathObject);
+			}
+			indexed = true;
+		}
+		results.removeIf(pathObject -> pathObject.getParent() == null || pathObject.getPathClass() != null);
+		return results.stream().filter(filter).toList();
+	}
+
+	/**
+	 * Replace results in the hierarchy and fire a single change event.
+	 * Must be called on the JavaFX application thread if the hierarchy is displayed.
+	 * @param previousResults the results to remove
+	 * @param newResults the results to add
+	 */
+	synchronized void replace(final Collection<PathObject> previousResults, final Collection<PathObject> newResults) {
+		if (previousResults.isEmpty() && newResults.isEmpty())
+			return;
+		// Removing all children of a parent at once avoids a linear search for each of them
+		final Map<PathObject, Set<PathObject>> byParent = new LinkedHashMap<>();
+		for (final PathObject pathObject : previousResults) {
+			final PathObject parent = pathObject.getParent();
+			if (parent != null)
+				byParent.computeIfAbsent(parent, p -> new HashSet<>()).add(pathObject);
+		}
+		for (final Map.Entry<PathObject, Set<PathObject>> entry : byParent.entrySet())
+			entry.getKey().removeChildObjects(entry.getValue());
+		results.removeAll(previousResults);
+		hierarchy.getRootObject().addChildObjects(newResults);
+		results.addAll(newResults);
+		hierarchy.fireHierarchyChangedEvent(this);
+	}
+
+}
@@ -0,0 +1,211 @@
+package org.elephant.cellsparse;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.roi.GeometryTools;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Merges the objects found near the seams of overlapping inference tiles.
+ * <p>
+ * The objects are indexed in an {@link STRtree}. Objects from different tiles whose areas overlap by at least
+ * {@link #MIN_OVERLAP} of the smaller one are grouped as the same instance, as long as a group contains at most one
+ * object of each tile. For each group, the largest object that was not cut by the border of its tile is kept; if
+ * every object of the group was cut, the instance crossed the seam and their union is kept instead, unless it is
+ * part of an object that another tile found whole. This happens when one tile splits what the other tile finds as a
+ * single object: the whole object wins the group of one part, and the other part is dropped with it.
+ */
+class CellsparseSeamStitcher {
+
+	/**
+	 * Minimum intersection, as a fraction of the smaller area, for two objects to be the same instance.
+	 * Neighbouring instances may share boundary pixels, so this must be clearly above zero.
+	 */
+	static final double MIN_OVERLAP = 0.2;
+
+	/**
+	 * Distance in pixels from the border of a tile below which an object is considered cut by it.
+	 */
+	private static final double BORDER_TOLERANCE = 1.0;
+
+	private CellsparseSeamStitcher() {}
+
+	/**
+	 * An object with the tile it was found in.
+	 */
+	static class TileObject {
+
+		private final PathObject pathObject;
+		private final Rectangle tile;
+		private final boolean cut;
+		private Geometry geometry;
+
+		/**
+		 * @param pathObject the object in image coordinates
+		 * @param tile the tile the object was found in
+		 * @param region the region covered by all tiles; tile borders on the border of the region do not cut objects
+		 */
+		TileObject(final PathObject pathObject, final Rectangle tile, final Rectangle region) {
+			this.pathObject = pathObject;
+			this.tile = tile;
+			final ROI roi = pathObject.getROI();
+			this.cut = (tile.x > region.x && roi.getBoundsX() <= tile.x + BORDER_TOLERANCE)
+					|| (tile.y > region.y && roi.getBoundsY() <= tile.y + BORDER_TOLERANCE)
+					|| (tile.x + tile.width < region.x + region.width
+							&& roi.getBoundsX() + roi.getBoundsWidth() >= tile.x + tile.width - BORDER_TOLERANCE)
+					|| (tile.y + tile.height < region.y + region.height
+							&& roi.getBoundsY() + roi.getBoundsHeight() >= tile.y + tile.height - BORDER_TOLERANCE);
+		}
+
+		private Geometry getGeometry() {
+			if (geometry == null)
+				geometry = pathObject.getROI().getGeometry();
+			return geometry;
+		}
+
+		private double getArea() {
+			return pathObject.getROI().getArea();
+		}
+
+	}
+
+	/**
+	 * @param tileObjects objects found within the overlap of neighbouring tiles
+	 * @return one object per instance
+	 */
+	static List<PathObject> stitch(final List<TileObject> tileObjects) {
+		final STRtree index = new STRtree();
+		for (int i = 0; i < tileObjects.size(); i++)
+			index.insert(tileObjects.get(i).getGeometry().getEnvelopeInternal(), i);
+
+		final int[] parents = new int[tileObjects.size()];
+		// The tiles of the objects in each group, by the root of the group
+		final List<Set<Rectangle>> tiles = new ArrayList<>(tileObjects.size());
+		for (int i = 0; i < parents.length; i++) {
+			parents[i] = i;
+			tiles.add(new HashSet<>(List.of(tileObjects.get(i).tile)));
+		}
+		for (int i = 0; i < tileObjects.size(); i++) {
+			final TileObject tileObject = tileObjects.get(i);
+			final Envelope envelope = tileObject.getGeometry().getEnvelopeInternal();
+			for (final Object candidate : index.query(envelope)) {
+				final int j = (Integer) candidate;
+				if (j <= i)
+					continue;
+				final int rootI = find(parents, i);
+				final int rootJ = find(parents, j);
+				// Objects of the same tile are different instances, also if they overlap the same object of another tile
+				if (rootI == rootJ || !Collections.disjoint(tiles.get(rootI), tiles.get(rootJ)))
+					continue;
+				if (isSameInstance(tileObject, tileObjects.get(j))) {
+					parents[rootJ] = rootI;
+					tiles.get(rootI).addAll(tiles.get(rootJ));
+					tiles.set(rootJ, null);
+				}
+			}
+		}
+
+		final Map<Integer, List<TileObject>> groups = new LinkedHashMap<>();
+		for (int i = 0; i < tileObjects.size(); i++)
+			groups.computeIfAbsent(find(parents, i), k -> new ArrayList<>()).add(tileObjects.get(i));
+		// The object kept for each group with an object that was not cut, by the root of the group
+		final Map<Integer, TileObject> complete = new HashMap<>();
+		for (final Map.Entry<Integer, List<TileObject>> entry : groups.entrySet()) {
+			entry.getValue().stream()
+					.filter(tileObject -> !tileObject.cut)
+					.max(Comparator.comparingDouble(TileObject::getArea))
+					.ifPresent(tileObject -> complete.put(entry.getKey(), tileObject));
+		}
+		final List<PathObject> stitched = new ArrayList<>(groups.size());
+		for (final Map.Entry<Integer, List<TileObject>> entry : groups.entrySet()) {
+			final int root = entry.getKey();
+			final List<TileObject> group = entry.getValue();
+			if (complete.containsKey(root))
+				stitched.add(complete.get(root).pathObject);
+			else if (!isPartOfComplete(group, tiles.get(root), index, parents, complete))
+				stitched.add(merge(group));
+		}
+		return stitched;
+	}
+
+	/**
+	 * @return true if an object of the group is the same instance as an object of another tile that was kept whole
+	 */
+	private static boolean isPartOfComplete(
+			final List<TileObject> group,
+			final Set<Rectangle> groupTiles,
+			final STRtree index,
+			final int[] parents,
+			final Map<Integer, TileObject> complete
+	) {
+		for (final TileObject tileObject : group) {
+			for (final Object candidate : index.query(tileObject.getGeometry().getEnvelopeInternal())) {
+				final TileObject kept = complete.get(find(parents, (Integer) candidate));
+				if (kept != null && !groupTiles.contains(kept.tile) && isSameInstance(tileObject, kept))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isSameInstance(final TileObject first, final TileObject second) {
+		final Geometry a = first.getGeometry();
+		final Geometry b = second.getGeometry();
+		if (!a.intersects(b))
+			return false;
+		final double minArea = Math.min(a.getArea(), b.getArea());
+		if (minArea <= 0)
+			return false;
+		return a.intersection(b).getArea() >= MIN_OVERLAP * minArea;
+	}
+
+	/**
+	 * @return the union of a group of objects that were all cut by a tile border
+	 */
+	private static PathObject merge(final List<TileObject> group) {
+		if (group.size() == 1)
+			return group.get(0).pathObject;
+		final TileObject largest = group.stream().max(Comparator.comparingDouble(TileObject::getArea)).get();
+		Geometry union = group.get(0).getGeometry();
+		for (int i = 1; i < group.size(); i++)
+			union = union.union(group.get(i).getGeometry());
+		final PathObject merged = PathObjects.createAnnotationObject(
+				GeometryTools.geometryToROI(union, largest.pathObject.getROI().getImagePlane()),
+				largest.pathObject.getPathClass());
+		final double score = group.stream()
+				.mapToDouble(tileObject -> tileObject.pathObject.getMeasurementList().get("score"))
+				.filter(value -> !Double.isNaN(value))
+				.max()
+				.orElse(Double.NaN);
+		if (!Double.isNaN(score)) {
+			try (var measurements = merged.getMeasurementList()) {
+				measurements.put("score", score);
+			}
+		}
+		return merged;
+	}
+
+	private static int find(final int[] parents, int i) {
+		while (parents[i] != i) {
+			parents[i] = parents[parents[i]];
+			i = parents[i];
+		}
+		return i;
+	}
+
+}
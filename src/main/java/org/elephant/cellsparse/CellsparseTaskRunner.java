@@ -0,0 +1,130 @@
+package org.elephant.cellsparse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.controlsfx.dialog.ProgressDialog;
+
+import javafx.event.ActionEvent;
+import javafx.scene.control.ButtonType;
+import javafx.stage.Modality;
+import qupath.lib.gui.QuPathGUI;
+import qupath.lib.gui.dialogs.Dialogs;
+import qupath.lib.images.ImageData;
+
+/**
+ * Runs Cellsparse jobs in the background, with at most one active job per image or project.
+ * <p>
+ * Each job is shown in a non-modal progress dialog with a cancel button. All methods must be called from the
+ * JavaFX application thread; result handlers are called there too, once the job has completed. The metrics of
+ * the job are reported once its handlers have run.
+ */
+public class CellsparseTaskRunner {
+
+	private static final CellsparseTaskRunner INSTANCE = new CellsparseTaskRunner();
+
+	private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory());
+
+	private final Map<Object, CellsparseJob<?>> activeJobs = new HashMap<>();
+
+	private CellsparseTaskRunner() {}
+
+	/**
+	 * @return the runner shared by all commands
+	 */
+	public static CellsparseTaskRunner getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @param target the image or project
+	 * @return the job currently running for the target, or null if there is none
+	 */
+	public CellsparseJob<?> getActiveJob(final Object target) {
+		return activeJobs.get(target);
+	}
+
+	/**
+	 * Start a job for an image or project, unless another job is already running for the same target.
+	 * @param <T>
+	 * @param target the image or project the job works on
+	 * @param job
+	 * @param onSuccess called with the result of the job when it completes successfully
+	 * @return true if the job was started
+	 */
+	public <T> boolean submit(final Object target, final CellsparseJob<T> job, final Consumer<T> onSuccess) {
+		return submit(target, job, onSuccess, () -> {});
+	}
+
+	/**
+	 * Start a job for an image or project, unless another job is already running for the same target.
+	 * @param <T>
+	 * @param target the image or project the job works on
+	 * @param job
+	 * @param onSuccess called with the result of the job when it completes successfully
+	 * @param onFailure called when the job fails or is cancelled
+	 * @return true if the job was started
+	 */
+	public <T> boolean submit(final Object target, final CellsparseJob<T> job, final Consumer<T> onSuccess, final Runnable onFailure) {
+		if (activeJobs.containsKey(target)) {
+			Dialogs.showWarningNotification(job.getTitle(), "Another Cellsparse job is already running for this " + (target instanceof ImageData ? "image" : "project"));
+			return false;
+		}
+		activeJobs.put(target, job);
+		job.setOnSucceeded(event -> {
+			activeJobs.remove(target, job);
+			onSuccess.accept(job.getValue());
+			job.getMetrics().finish(true);
+		});
+		job.setOnFailed(event -> {
+			activeJobs.remove(target, job);
+			onFailure.run();
+			job.getMetrics().finish(false);
+			final Throwable e = job.getException();
+			if (e instanceof CellsparseHttpException)
+				Dialogs.showErrorMessage(e.getMessage(), ((CellsparseHttpException)e).getBody());
+			else
+				Dialogs.showErrorMessage(job.getTitle(), e);
+		});
+		job.setOnCancelled(event -> {
+			activeJobs.remove(target, job);
+			onFailure.run();
+			job.getMetrics().finish(false);
+			Dialogs.showInfoNotification(job.getTitle(), "Cancelled");
+		});
+		showProgress(job);
+		executor.execute(job);
+		return true;
+	}
+
+	private void showProgress(final CellsparseJob<?> job) {
+		final ProgressDialog dialog = new ProgressDialog(job);
+		dialog.initModality(Modality.NONE);
+		final QuPathGUI qupath = QuPathGUI.getInstance();
+		if (qupath != null)
+			dialog.initOwner(qupath.getStage());
+		dialog.setTitle("Cellsparse");
+		dialog.setHeaderText(job.getTitle());
+		dialog.getDialogPane().getButtonTypes().add(ButtonType.CANCEL);
+		dialog.getDialogPane().lookupButton(ButtonType.CANCEL).addEventFilter(ActionEvent.ACTION, event -> job.cancel());
+		dialog.show();
+	}
+
+	private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "cellsparse-job-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+}
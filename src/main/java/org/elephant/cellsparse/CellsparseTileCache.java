@@ -0,0 +1,314 @@
+package org.elephant.cellsparse;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps rendered image and label tiles on disk, so that tiles that have not changed are not read or rendered again,
+ * across commands and QuPath sessions.
+ * <p>
+ * Callers build the key of a tile from the identity of the image, the render parameters and, for label tiles, a
+ * hash of the objects painted in the tile. A tile that changes therefore gets a new key, and its previous version
+ * is never served; it is evicted once it is no longer used. Each tile is stored in its own file, named after the
+ * SHA-256 hash of its key and compressed with deflate. The least recently used tiles are deleted once the files
+ * exceed the size limit. The order of use is kept in the modification times of the files, so that it survives
+ * restarts.
+ * <p>
+ * Only images of a predefined {@link BufferedImage} type with a fixed color model are cached, e.g. gray labels and
+ * RGB images; others are rendered every time. Failures to read or write the cache are logged and treated as misses.
+ */
+class CellsparseTileCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseTileCache.class);
+
+	private static final int MAGIC = 0x43535443;
+	private static final int VERSION = 1;
+	private static final String SUFFIX = ".tile";
+
+	private static final Map<Path, CellsparseTileCache> caches = new HashMap<>();
+
+	/**
+	 * Renders a tile that is not in the cache.
+	 */
+	@FunctionalInterface
+	interface Renderer {
+		BufferedImage render() throws IOException;
+	}
+
+	private final Path directory;
+	/**
+	 * Sizes of the files in the cache by name, from the least to the most recently used.
+	 */
+	private final LinkedHashMap<String, Long> files = new LinkedHashMap<>(16, 0.75f, true);
+	private long maxBytes;
+	private long totalBytes = 0;
+
+	private CellsparseTileCache(final Path directory) {
+		this.directory = directory;
+		scan();
+	}
+
+	/**
+	 * @param directory
+	 * @param maxBytes the size limit of the files in the directory
+	 * @return the cache of the directory
+	 */
+	static CellsparseTileCache get(final Path directory, final long maxBytes) {
+		final CellsparseTileCache cache;
+		synchronized (caches) {
+			cache = caches.computeIfAbsent(directory.toAbsolutePath().normalize(), CellsparseTileCache::new);
+		}
+		cache.setMaxBytes(maxBytes);
+		return cache;
+	}
+
+	/**
+	 * @return the directory used if none is set in the options
+	 */
+	static Path getDefaultDirectory() {
+		return Paths.get(System.getProperty("user.home"), ".cellsparse", "tile-cache");
+	}
+
+	/**
+	 * Get a tile from the cache, or render it and add it to the cache.
+	 * @param key identifies the content of the tile
+	 * @param renderer
+	 * @return
+	 * @throws IOException if the tile is not cached and cannot be rendered
+	 */
+	BufferedImage getOrRender(final String key, final Renderer renderer) throws IOException {
+		final String name = CellsparseImageResidency.toHex(
+				CellsparseImageResidency.createDigest().digest(key.getBytes(StandardCharsets.UTF_8)));
+		final BufferedImage cached = read(name);
+		if (cached != null)
+			return cached;
+		final BufferedImage image = renderer.render();
+		if (isCacheable(image))
+			write(name, image);
+		return image;
+	}
+
+	private synchronized void setMaxBytes(final long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	/**
+	 * Index the files left by a previous session, in the order they were last used.
+	 */
+	private synchronized void scan() {
+		if (!Files.isDirectory(directory))
+			return;
+		final List<Path> paths = new ArrayList<>();
+		try (Stream<Path> stream = Files.walk(directory, 2)) {
+			stream.filter(Files::isRegularFile).forEach(paths::add);
+		} catch (IOException e) {
+			logger.warn("Unable to read the tile cache in {}: {}", directory, e.getMessage());
+			return;
+		}
+		final Map<Path, FileTime> times = new HashMap<>();
+		for (final Path path : paths) {
+			try {
+				if (path.getFileName().toString().endsWith(SUFFIX))
+					times.put(path, Files.getLastModifiedTime(path));
+				else
+					// Left by a write that did not complete
+					Files.delete(path);
+			} catch (IOException e) {
+				logger.debug("Unable to index {}: {}", path, e.getMessage());
+			}
+		}
+		times.entrySet().stream()
+				.sorted(Map.Entry.comparingByValue(Comparator.naturalOrder()))
+				.forEach(entry -> {
+					final String fileName = entry.getKey().getFileName().toString();
+					try {
+						final long size = Files.size(entry.getKey());
+						files.put(fileName.substring(0, fileName.length() - SUFFIX.length()), size);
+						totalBytes += size;
+					} catch (IOException e) {
+						logger.debug("Unable to index {}: {}", entry.getKey(), e.getMessage());
+					}
+				});
+		logger.info("Tile cache in {}: {} tiles, {} MB", directory, files.size(), totalBytes / (1024 * 1024));
+	}
+
+	private Path getPath(final String name) {
+		return directory.resolve(name.substring(0, 2)).resolve(name + SUFFIX);
+	}
+
+	private BufferedImage read(final String name) {
+		synchronized (this) {
+			// Marks the tile as the most recently used
+			if (files.get(name) == null)
+				return null;
+		}
+		final Path path = getPath(name);
+		try (DataInputStream input = new DataInputStream(new InflaterInputStream(new BufferedInputStream(Files.newInputStream(path), 64 * 1024)))) {
+			final BufferedImage image = decode(input);
+			Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+			return image;
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Unable to read cached tile {}: {}", path, e.getMessage());
+			synchronized (this) {
+				final Long size = files.remove(name);
+				if (size != null)
+					totalBytes -= size;
+			}
+			delete(path);
+			return null;
+		}
+	}
+
+	private void write(final String name, final BufferedImage image) {
+		final Path path = getPath(name);
+		final long size;
+		try {
+			final byte[] bytes = encode(image);
+			Files.createDirectories(path.getParent());
+			// Readers never see a partial file
+			final Path temp = Files.createTempFile(path.getParent(), name, ".tmp");
+			Files.write(temp, bytes);
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			size = bytes.length;
+		} catch (IOException e) {
+			logger.debug("Unable to cache tile {}: {}", path, e.getMessage());
+			return;
+		}
+		synchronized (this) {
+			final Long previousSize = files.put(name, size);
+			totalBytes += size - (previousSize == null ? 0 : previousSize);
+			evict();
+		}
+	}
+
+	/**
+	 * Delete the least recently used tiles until the cache fits in its size limit.
+	 */
+	private synchronized void evict() {
+		final Iterator<Map.Entry<String, Long>> iterator = files.entrySet().iterator();
+		while (totalBytes > maxBytes && iterator.hasNext()) {
+			final Map.Entry<String, Long> entry = iterator.next();
+			iterator.remove();
+			totalBytes -= entry.getValue();
+			delete(getPath(entry.getKey()));
+		}
+	}
+
+	private static void delete(final Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			logger.debug("Unable to delete cached tile {}: {}", path, e.getMessage());
+		}
+	}
+
+	/**
+	 * @return true if the image can be recreated from its type, size and data elements
+	 */
+	private static boolean isCacheable(final BufferedImage image) {
+		switch (image.getType()) {
+		case BufferedImage.TYPE_CUSTOM:
+		// Their color model is not fixed by the type
+		case BufferedImage.TYPE_BYTE_BINARY:
+		case BufferedImage.TYPE_BYTE_INDEXED:
+			return false;
+		default:
+			return image.getRaster().getMinX() == 0 && image.getRaster().getMinY() == 0;
+		}
+	}
+
+	private static byte[] encode(final BufferedImage image) throws IOException {
+		final int width = image.getWidth();
+		final int height = image.getHeight();
+		final Object data = image.getRaster().getDataElements(0, 0, width, height, null);
+		final ByteBuffer buffer;
+		if (data instanceof byte[]) {
+			buffer = ByteBuffer.wrap((byte[]) data);
+		} else if (data instanceof short[]) {
+			buffer = ByteBuffer.allocate(((short[]) data).length * Short.BYTES);
+			buffer.asShortBuffer().put((short[]) data);
+		} else if (data instanceof int[]) {
+			buffer = ByteBuffer.allocate(((int[]) data).length * Integer.BYTES);
+			buffer.asIntBuffer().put((int[]) data);
+		} else {
+			throw new IOException("Unsupported data elements: " + data.getClass().getSimpleName());
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try (DataOutputStream output = new DataOutputStream(new DeflaterOutputStream(bytes, deflater, 64 * 1024))) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeInt(image.getType());
+			output.writeInt(width);
+			output.writeInt(height);
+			output.writeInt(buffer.capacity());
+			output.write(buffer.array());
+		} finally {
+			deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	private static BufferedImage decode(final DataInputStream input) throws IOException {
+		if (input.readInt() != MAGIC || input.readInt() != VERSION)
+			throw new IOException("Not a tile of this version");
+		final int type = input.readInt();
+		final int width = input.readInt();
+		final int height = input.readInt();
+		final BufferedImage image = new BufferedImage(width, height, type);
+		final WritableRaster raster = image.getRaster();
+		final int length = width * height * raster.getNumDataElements();
+		final int byteLength = input.readInt();
+		if (byteLength != length * (DataBuffer.getDataTypeSize(raster.getTransferType()) / Byte.SIZE))
+			throw new IOException("Unexpected tile length: " + byteLength);
+		final byte[] bytes = new byte[byteLength];
+		input.readFully(bytes);
+		final Object data;
+		switch (raster.getTransferType()) {
+		case DataBuffer.TYPE_BYTE:
+			data = bytes;
+			break;
+		case DataBuffer.TYPE_USHORT:
+			data = new short[length];
+			ByteBuffer.wrap(bytes).asShortBuffer().get((short[]) data);
+			break;
+		case DataBuffer.TYPE_INT:
+			data = new int[length];
+			ByteBuffer.wrap(bytes).asIntBuffer().get((int[]) data);
+			break;
+		default:
+			throw new IOException("Unsupported transfer type: " + raster.getTransferType());
+		}
+		raster.setDataElements(0, 0, width, height, data);
+		return image;
+	}
+
+}
@@ -0,0 +1,627 @@
+package org.elephant.cellsparse;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Request body that is generated tile by tile while it is being sent.
+ * <p>
+ * Tiles are only read and encoded when the HTTP client pulls the corresponding bytes, so the memory required 
+ * depends on the tile size rather than the image size. Two formats are supported:
+ * <ul>
+ *   <li>{@link Format#JSON}: the same parameters as {@link CellsparseBody}, but instead of {@code b64img} and 
+ *       {@code b64lbl} the document carries the image size and a {@code tiles} array, where each element holds 
+ *       the offset, the size and the base64-encoded bytes of the image and label tile.</li>
+ *   <li>{@link Format#FRAME}: a length-prefixed binary frame. It starts with the magic {@code CSPF}, a version byte 
+ *       and a small JSON header with the parameters, followed by sections made of a type byte 
+ *       ({@link #SECTION_IMAGE}, {@link #SECTION_LABEL}), the x, y, width and height of the tile, the byte length 
+ *       and the encoded bytes. The frame is terminated by a {@link #SECTION_END} byte. All numbers are big-endian.</li>
+ * </ul>
+ * Tiles are encoded as PNG by default, or in the encoding named by the {@code encoding} parameter
+ * (see {@link CellsparseImageEncoder}). Several tiles can be read and encoded in parallel ahead of the upload.
+ * <p>
+ * If the image is already resident on the server, the parameters carry its hash as {@code imghash} and only
+ * the label tiles are sent. If only some label tiles changed since a previous request, the parameters carry
+ * the label version of that request as {@code baseversion} and only the changed tiles are sent.
+ * For sparse training, the tiles can instead be crops around the annotations, flagged with {@code cropped}.
+ */
+public class CellsparseTiledBody {
+	
+	public enum Format {
+		JSON("application/json; charset=utf-8"),
+		FRAME("application/x-cellsparse-frame");
+		
+		private final String contentType;
+		
+		Format(final String contentType) {
+			this.contentType = contentType;
+		}
+		
+		public String getContentType() {
+			return contentType;
+		}
+	}
+	
+	static final byte[] FRAME_MAGIC = "CSPF".getBytes(StandardCharsets.US_ASCII);
+	static final int FRAME_VERSION = 1;
+	static final int SECTION_END = 0;
+	static final int SECTION_IMAGE = 1;
+	static final int SECTION_LABEL = 2;
+
+	/**
+	 * Time after which the idle encoder threads of a stream end.
+	 */
+	private static final long IDLE_TIMEOUT_SECONDS = 30;
+
+	/**
+	 * Reads a region of an image at full resolution.
+	 */
+	@FunctionalInterface
+	interface RegionReader {
+		BufferedImage read(int x, int y, int width, int height) throws IOException;
+	}
+
+	private final Format format;
+	private final String modelname;
+	private final RegionReader imageReader;
+	private final RegionReader labelReader;
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private final boolean train;
+	private final boolean eval;
+	private final int epochs;
+	private final int batchsize;
+	private final int steps;
+	private final String residentImageHash;
+	private final List<Rectangle> tiles;
+	private final String baseVersion;
+	private final boolean cropped;
+	private final CellsparseImageEncoder encoder;
+	private final int parallelism;
+	private final CellsparseMetrics metrics;
+	
+	private volatile String encodedImageHash = null;
+
+	public CellsparseTiledBody(final Builder builder) {
+		this.format = builder.format;
+		this.modelname = builder.modelname;
+		this.imageReader = builder.imageReader;
+		this.labelReader = builder.labelReader;
+		this.width = builder.width;
+		this.height = builder.height;
+		this.tileSize = builder.tileSize;
+		this.train = builder.train;
+		this.eval = builder.eval;
+		this.epochs = builder.epochs;
+		this.batchsize = builder.batchsize;
+		this.steps = builder.steps;
+		this.residentImageHash = builder.residentImageHash;
+		this.tiles = builder.tiles;
+		this.baseVersion = builder.baseVersion;
+		this.cropped = builder.cropped;
+		this.encoder = builder.encoder;
+		this.parallelism = builder.parallelism;
+		this.metrics = builder.metrics;
+	}
+	
+	/**
+	 * @return the tiles to send, either as requested or covering the whole image
+	 */
+	private List<Rectangle> getTiles() {
+		if (tiles != null)
+			return tiles;
+		return getTileGrid(width, height, tileSize);
+	}
+	
+	/**
+	 * Split an image into tiles, row by row.
+	 * @param width
+	 * @param height
+	 * @param tileSize
+	 * @return tiles covering the image; tiles in the last row and column may be smaller
+	 */
+	static List<Rectangle> getTileGrid(final int width, final int height, final int tileSize) {
+		final List<Rectangle> grid = new ArrayList<>();
+		for (int y = 0; y < height; y += tileSize) {
+			for (int x = 0; x < width; x += tileSize)
+				grid.add(new Rectangle(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y)));
+		}
+		return grid;
+	}
+
+	/**
+	 * @return the value of the Content-Type header for this body
+	 */
+	public String getContentType() {
+		return format.getContentType();
+	}
+	
+	/**
+	 * Get the SHA-256 hash of the encoded image bytes, in the order of the tiles.
+	 * It is only available once a stream has been read completely, and only if the image was uploaded.
+	 * @return the hex-encoded hash, or null if not available
+	 */
+	public String getEncodedImageHash() {
+		return encodedImageHash;
+	}
+	
+	/**
+	 * Open a new stream over the document.
+	 * Each call starts reading the tiles from the beginning. Closing the stream before the end stops encoding the
+	 * tiles ahead.
+	 * @return
+	 */
+	public InputStream openStream() {
+		final TileEnumeration tileEnumeration = new TileEnumeration();
+		return new FilterInputStream(new SequenceInputStream(tileEnumeration)) {
+
+			@Override
+			public int read() throws IOException {
+				try {
+					return super.read();
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				try {
+					return super.read(b, off, len);
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				// Otherwise closing the sequence would generate all remaining chunks
+				tileEnumeration.close();
+				super.close();
+			}
+
+		};
+	}
+
+	/**
+	 * The encoded image and label of a tile.
+	 */
+	private static class EncodedTile {
+		
+		private final Rectangle tile;
+		private final byte[] imageBytes;
+		private final byte[] labelBytes;
+		
+		private EncodedTile(final Rectangle tile, final byte[] imageBytes, final byte[] labelBytes) {
+			this.tile = tile;
+			this.imageBytes = imageBytes;
+			this.labelBytes = labelBytes;
+		}
+		
+	}
+	
+	private EncodedTile encodeTile(final Rectangle tile) throws IOException {
+		final byte[] imageBytes = residentImageHash == null
+				? encoder.encode(imageReader.read(tile.x, tile.y, tile.width, tile.height))
+				: null;
+		final byte[] labelBytes = labelReader != null
+				? encoder.encode(labelReader.read(tile.x, tile.y, tile.width, tile.height))
+				: null;
+		return new EncodedTile(tile, imageBytes, labelBytes);
+	}
+
+	/**
+	 * Emits the document header, one chunk per tile and the closing chunk.
+	 */
+	private class TileEnumeration implements Enumeration<InputStream> {
+
+		private final StringWriter buffer = new StringWriter();
+		private final JsonWriter writer = new JsonWriter(buffer);
+		private final MessageDigest digest = CellsparseImageResidency.createDigest();
+		private final List<Rectangle> tiles = getTiles();
+		private final Deque<CompletableFuture<EncodedTile>> pending = new ArrayDeque<>();
+		private ExecutorService executor = null;
+		private int tileIndex = -1;
+		private int nextTileToEncode = 0;
+		private volatile boolean closed = false;
+
+		@Override
+		public boolean hasMoreElements() {
+			return !closed && tileIndex <= tiles.size();
+		}
+
+		/**
+		 * Stop encoding tiles ahead and end the enumeration.
+		 */
+		private void close() {
+			closed = true;
+			shutdown();
+		}
+
+		private synchronized void shutdown() {
+			for (final CompletableFuture<EncodedTile> future : pending)
+				future.cancel(true);
+			pending.clear();
+			if (executor != null) {
+				executor.shutdownNow();
+				executor = null;
+			}
+		}
+
+		@Override
+		public InputStream nextElement() {
+			if (!hasMoreElements())
+				throw new NoSuchElementException();
+			final InputStream chunk;
+			try {
+				if (tileIndex < 0)
+					chunk = format == Format.FRAME ? writeFrameHeader() : writeHeader();
+				else if (tileIndex < tiles.size())
+					chunk = format == Format.FRAME ? writeFrameTile(takeTile()) : writeTile(takeTile());
+				else {
+					chunk = format == Format.FRAME ? writeFrameFooter() : writeFooter();
+					shutdown();
+					if (residentImageHash == null)
+						encodedImageHash = CellsparseImageResidency.toHex(digest.digest());
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			tileIndex++;
+			return chunk;
+		}
+		
+		private InputStream drainBuffer() {
+			final byte[] bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+			buffer.getBuffer().setLength(0);
+			return new ByteArrayInputStream(bytes);
+		}
+		
+		private void writeParameters() throws IOException {
+			writer.beginObject();
+			writer.name("modelname").value(modelname);
+			writer.name("train").value(train);
+			writer.name("eval").value(eval);
+			writer.name("epochs").value(epochs);
+			writer.name("batchsize").value(batchsize);
+			writer.name("steps").value(steps);
+			writer.name("width").value(width);
+			writer.name("height").value(height);
+			if (residentImageHash != null)
+				writer.name("imghash").value(residentImageHash);
+			if (baseVersion != null)
+				writer.name("baseversion").value(baseVersion);
+			if (cropped)
+				writer.name("cropped").value(true);
+			if (!"png".equals(encoder.getName()))
+				writer.name("encoding").value(encoder.getName());
+		}
+		
+		/**
+		 * Get the next tile, encoding up to {@code parallelism} tiles ahead on threads of this stream, since reading
+		 * the image blocks. The image hash is updated in the order of the tiles.
+		 * @return
+		 * @throws IOException
+		 */
+		private EncodedTile takeTile() throws IOException {
+			final EncodedTile encodedTile;
+			if (parallelism <= 1) {
+				encodedTile = encodeTile(tiles.get(tileIndex));
+			}
+			else {
+				final CompletableFuture<EncodedTile> next;
+				synchronized (this) {
+					if (closed)
+						throw new IOException("Stream closed");
+					if (executor == null) {
+						// Threads of a stream that is abandoned without being closed end once idle
+						final ThreadPoolExecutor threadPool = new ThreadPoolExecutor(parallelism, parallelism,
+								IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new ThreadFactory());
+						threadPool.allowCoreThreadTimeOut(true);
+						executor = threadPool;
+					}
+					while (nextTileToEncode < tiles.size() && nextTileToEncode < tileIndex + parallelism) {
+						final Rectangle tile = tiles.get(nextTileToEncode++);
+						pending.add(CompletableFuture.supplyAsync(() -> {
+							try {
+								return encodeTile(tile);
+							} catch (IOException e) {
+								throw new UncheckedIOException(e);
+							}
+						}, executor));
+					}
+					next = pending.remove();
+				}
+				try {
+					encodedTile = next.join();
+				} catch (CompletionException e) {
+					shutdown();
+					if (e.getCause() instanceof UncheckedIOException)
+						throw ((UncheckedIOException) e.getCause()).getCause();
+					throw e;
+				} catch (CancellationException e) {
+					throw new IOException("Stream closed", e);
+				}
+			}
+			if (encodedTile.imageBytes != null)
+				digest.update(encodedTile.imageBytes);
+			return encodedTile;
+		}
+
+		private InputStream writeHeader() throws IOException {
+			writeParameters();
+			writer.name("tiles").beginArray();
+			writer.flush();
+			return drainBuffer();
+		}
+
+		private InputStream writeTile(final EncodedTile encodedTile) throws IOException {
+			final Rectangle tile = encodedTile.tile;
+			writer.beginObject();
+			writer.name("x").value(tile.x);
+			writer.name("y").value(tile.y);
+			writer.name("width").value(tile.width);
+			writer.name("height").value(tile.height);
+			if (encodedTile.imageBytes != null)
+				writer.name("b64img").value(metrics.time(CellsparseMetrics.Stage.BASE64, () -> Base64.getEncoder().encodeToString(encodedTile.imageBytes)));
+			if (encodedTile.labelBytes != null)
+				writer.name("b64lbl").value(metrics.time(CellsparseMetrics.Stage.BASE64, () -> Base64.getEncoder().encodeToString(encodedTile.labelBytes)));
+			writer.endObject();
+			writer.flush();
+			return drainBuffer();
+		}
+
+		private InputStream writeFooter() throws IOException {
+			writer.endArray();
+			writer.endObject();
+			writer.close();
+			return drainBuffer();
+		}
+		
+		private InputStream writeFrameHeader() throws IOException {
+			writeParameters();
+			writer.endObject();
+			writer.close();
+			final byte[] header = buffer.toString().getBytes(StandardCharsets.UTF_8);
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream(header.length + 9);
+			final DataOutputStream dos = new DataOutputStream(baos);
+			dos.write(FRAME_MAGIC);
+			dos.writeByte(FRAME_VERSION);
+			dos.writeInt(header.length);
+			dos.write(header);
+			dos.flush();
+			return new ByteArrayInputStream(baos.toByteArray());
+		}
+		
+		private InputStream writeFrameTile(final EncodedTile encodedTile) throws IOException {
+			final int x = encodedTile.tile.x;
+			final int y = encodedTile.tile.y;
+			final int w = encodedTile.tile.width;
+			final int h = encodedTile.tile.height;
+			final List<InputStream> parts = new ArrayList<>(4);
+			if (encodedTile.imageBytes != null) {
+				parts.add(new ByteArrayInputStream(sectionHeader(SECTION_IMAGE, x, y, w, h, encodedTile.imageBytes.length)));
+				parts.add(new ByteArrayInputStream(encodedTile.imageBytes));
+			}
+			if (encodedTile.labelBytes != null) {
+				parts.add(new ByteArrayInputStream(sectionHeader(SECTION_LABEL, x, y, w, h, encodedTile.labelBytes.length)));
+				parts.add(new ByteArrayInputStream(encodedTile.labelBytes));
+			}
+			return new SequenceInputStream(Collections.enumeration(parts));
+		}
+		
+		private byte[] sectionHeader(final int type, final int x, final int y, final int w, final int h, final long length) throws IOException {
+			final ByteArrayOutputStream baos = new ByteArrayOutputStream(25);
+			final DataOutputStream dos = new DataOutputStream(baos);
+			dos.writeByte(type);
+			dos.writeInt(x);
+			dos.writeInt(y);
+			dos.writeInt(w);
+			dos.writeInt(h);
+			dos.writeLong(length);
+			dos.flush();
+			return baos.toByteArray();
+		}
+		
+		private InputStream writeFrameFooter() {
+			return new ByteArrayInputStream(new byte[] {SECTION_END});
+		}
+
+	}
+
+	private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+
+		private static final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "cellsparse-encoder-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+
+	}
+
+	static class Builder {
+		private Format format = Format.JSON;
+		private String modelname;
+		private RegionReader imageReader;
+		private RegionReader labelReader = null;
+		private int width;
+		private int height;
+		private int tileSize = 1024;
+		private boolean train = false;
+		private boolean eval = false;
+		private int epochs = 10;
+		private int batchsize = 8;
+		private int steps = 10;
+		private String residentImageHash = null;
+		private List<Rectangle> tiles = null;
+		private String baseVersion = null;
+		private boolean cropped = false;
+		private CellsparseImageEncoder encoder = CellsparseImageEncoder.png(4);
+		private int parallelism = 1;
+		private CellsparseMetrics metrics = CellsparseMetrics.NONE;
+
+		public Builder(final String modelname) {
+			this.modelname = modelname;
+		}
+
+		public Builder format(final Format format) {
+			this.format = format;
+			return this;
+		}
+
+		public Builder image(final RegionReader imageReader, final int width, final int height) {
+			this.imageReader = imageReader;
+			this.width = width;
+			this.height = height;
+			return this;
+		}
+
+		/**
+		 * Refer to an image that is already resident on the server instead of uploading it.
+		 * The image size must still be given with {@link #image(RegionReader, int, int)}.
+		 * @param hash the hash of the encoded image
+		 * @return
+		 */
+		public Builder residentImage(final String hash) {
+			this.residentImageHash = hash;
+			return this;
+		}
+
+		public Builder label(final RegionReader labelReader) {
+			this.labelReader = labelReader;
+			return this;
+		}
+
+		public Builder tileSize(final int tileSize) {
+			this.tileSize = tileSize;
+			return this;
+		}
+
+		/**
+		 * Send only the given tiles instead of tiling the whole image.
+		 * @param tiles
+		 * @return
+		 */
+		public Builder tiles(final List<Rectangle> tiles) {
+			this.tiles = tiles;
+			return this;
+		}
+
+		/**
+		 * Send the tiles as a delta on top of labels that the server already holds.
+		 * @param baseVersion the label version returned by the server for the previous request
+		 * @return
+		 */
+		public Builder baseVersion(final String baseVersion) {
+			this.baseVersion = baseVersion;
+			return this;
+		}
+
+		/**
+		 * Mark the tiles as crops around the annotations, so that the server only trains on the areas they cover.
+		 * @param cropped
+		 * @return
+		 */
+		public Builder cropped(final boolean cropped) {
+			this.cropped = cropped;
+			return this;
+		}
+
+		/**
+		 * Set the encoder of the image and label tiles.
+		 * @param encoder
+		 * @return
+		 */
+		public Builder encoder(final CellsparseImageEncoder encoder) {
+			this.encoder = encoder;
+			return this;
+		}
+
+		/**
+		 * Set the number of tiles that are read and encoded in parallel ahead of the upload.
+		 * @param parallelism 1 to encode each tile when it is sent
+		 * @return
+		 */
+		public Builder parallelism(final int parallelism) {
+			if (parallelism < 1)
+				throw new IllegalArgumentException("Parallelism must be positive! Requested " + parallelism);
+			this.parallelism = parallelism;
+			return this;
+		}
+
+		/**
+		 * @param metrics records the time spent in base64 encoding
+		 * @return
+		 */
+		Builder metrics(final CellsparseMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		public Builder train(final boolean train) {
+			this.train = train;
+			return this;
+		}
+
+		public Builder eval(final boolean eval) {
+			this.eval = eval;
+			return this;
+		}
+
+		public Builder epochs(final int epochs) {
+			this.epochs = epochs;
+			return this;
+		}
+
+		public Builder batchsize(final int batchsize) {
+			this.batchsize = batchsize;
+			return this;
+		}
+
+		public Builder steps(final int steps) {
+			this.steps = steps;
+			return this;
+		}
+
+		public CellsparseTiledBody build() {
+			return new CellsparseTiledBody(this);
+		}
+	}
+
+	public static CellsparseTiledBody.Builder newBuilder(final String modelname) {
+		return new Builder(modelname);
+	}
+}
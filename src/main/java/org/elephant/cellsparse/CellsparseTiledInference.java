@@ -0,0 +1,250 @@
+package org.elephant.cellsparse;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.roi.interfaces.ROI;
+
+/**
+ * Runs inference on a large region as a set of overlapping tiles.
+ * <p>
+ * Tiles are requested concurrently, up to a fixed number at a time. Objects that lie far enough from every
+ * seam cannot be seen by a neighbouring tile, so they are handed over as soon as their tile returns. Objects
+ * within the overlap of a seam are kept back and stitched by {@link CellsparseSeamStitcher} once all tiles
+ * are done, so that each instance crossing a seam is inserted exactly once.
+ */
+class CellsparseTiledInference {
+
+	/**
+	 * Sends the inference request for one tile.
+	 */
+	@FunctionalInterface
+	interface TileRequest {
+		/**
+		 * @param monitor
+		 * @param tile the tile in image coordinates
+		 * @param sink receives the objects of the tile in image coordinates
+		 * @return a future that completes with the number of objects
+		 * @throws IOException
+		 */
+		CompletableFuture<Integer> request(CellsparseMonitor monitor, Rectangle tile, Consumer<List<PathObject>> sink) throws IOException;
+	}
+
+	private final CellsparseMonitor monitor;
+	private final Rectangle region;
+	private final ROI mask;
+	private final List<Rectangle> tiles;
+	private final int overlap;
+	private final int concurrency;
+	private final TileRequest tileRequest;
+	private final Consumer<List<PathObject>> sink;
+
+	private final Queue<CellsparseSeamStitcher.TileObject> seamObjects = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger nextTile = new AtomicInteger();
+	private final AtomicInteger completedTiles = new AtomicInteger();
+	private final AtomicInteger count = new AtomicInteger();
+	private final CompletableFuture<Integer> result = new CompletableFuture<>();
+	/**
+	 * The futures of the tiles and their exchanges that are in flight, cancelled if a tile fails or the result is
+	 * cancelled.
+	 */
+	private final List<CompletableFuture<?>> inFlight = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param monitor
+	 * @param region the region to run inference on
+	 * @param mask if not null, only objects with their centroid inside this ROI are kept
+	 * @param tileSize
+	 * @param overlap the number of pixels shared by neighbouring tiles, smaller than the tile size
+	 * @param concurrency the maximum number of tile requests in flight
+	 * @param tileRequest
+	 * @param sink
+	 */
+	CellsparseTiledInference(
+			final CellsparseMonitor monitor,
+			final Rectangle region,
+			final ROI mask,
+			final int tileSize,
+			final int overlap,
+			final int concurrency,
+			final TileRequest tileRequest,
+			final Consumer<List<PathObject>> sink
+	) {
+		if (overlap >= tileSize)
+			throw new IllegalArgumentException("Tile overlap must be smaller than the tile size! Requested " + overlap + " for " + tileSize);
+		this.monitor = monitor;
+		this.region = region;
+		this.mask = mask;
+		this.tiles = getOverlappingTiles(region, tileSize, overlap);
+		this.overlap = overlap;
+		this.concurrency = concurrency;
+		this.tileRequest = tileRequest;
+		this.sink = sink;
+	}
+
+	/**
+	 * Split a region into tiles, row by row, where neighbouring tiles share {@code overlap} pixels.
+	 * @param region
+	 * @param tileSize
+	 * @param overlap
+	 * @return
+	 */
+	static List<Rectangle> getOverlappingTiles(final Rectangle region, final int tileSize, final int overlap) {
+		final int step = tileSize - overlap;
+		final List<Rectangle> tiles = new ArrayList<>();
+		for (int y = region.y; ; y += step) {
+			final int height = Math.min(tileSize, region.y + region.height - y);
+			for (int x = region.x; ; x += step) {
+				final int width = Math.min(tileSize, region.x + region.width - x);
+				tiles.add(new Rectangle(x, y, width, height));
+				if (x + width >= region.x + region.width)
+					break;
+			}
+			if (y + height >= region.y + region.height)
+				break;
+		}
+		return tiles;
+	}
+
+	/**
+	 * Request all tiles and stitch the results.
+	 * @return a future that completes with the number of objects handed to the sink; cancelling it cancels the tiles
+	 */
+	CompletableFuture<Integer> run() {
+		result.whenComplete((n, e) -> {
+			if (e != null) {
+				for (final CompletableFuture<?> future : inFlight)
+					future.cancel(true);
+			}
+		});
+		monitor.updateStatus("Running inference on " + tiles.size() + " tiles", 0);
+		for (int i = 0; i < Math.min(concurrency, tiles.size()); i++)
+			requestNextTile();
+		return result;
+	}
+
+	private void requestNextTile() {
+		final int index = nextTile.getAndIncrement();
+		if (index >= tiles.size() || result.isDone())
+			return;
+		if (monitor.isCancelled()) {
+			result.completeExceptionally(new CancellationException());
+			return;
+		}
+		final Rectangle tile = tiles.get(index);
+		final TileMonitor tileMonitor = new TileMonitor();
+		final CompletableFuture<Integer> future;
+		try {
+			future = tileMonitor.track(tileRequest.request(tileMonitor, tile, pathObjects -> accept(tile, pathObjects)));
+		} catch (IOException | RuntimeException e) {
+			result.completeExceptionally(e);
+			return;
+		}
+		future.whenComplete((n, e) -> {
+			if (e != null) {
+				result.completeExceptionally(e);
+				return;
+			}
+			final int completed = completedTiles.incrementAndGet();
+			monitor.updateStatus("Received " + completed + " of " + tiles.size() + " tiles", (double) completed / tiles.size());
+			if (completed == tiles.size())
+				stitch();
+			else
+				requestNextTile();
+		});
+	}
+
+	/**
+	 * Pass on the objects that only this tile can see and keep the others for stitching.
+	 */
+	private void accept(final Rectangle tile, final List<PathObject> pathObjects) {
+		final List<PathObject> interior = new ArrayList<>(pathObjects.size());
+		for (final PathObject pathObject : pathObjects) {
+			final ROI roi = pathObject.getROI();
+			if (roi == null)
+				continue;
+			if (isInterior(tile, roi))
+				interior.add(pathObject);
+			else
+				seamObjects.add(new CellsparseSeamStitcher.TileObject(pathObject, tile, region));
+		}
+		insert(interior);
+	}
+
+	/**
+	 * @return true if the ROI does not reach into the overlap with any neighbouring tile
+	 */
+	private boolean isInterior(final Rectangle tile, final ROI roi) {
+		if (tile.x > region.x && roi.getBoundsX() < tile.x + overlap)
+			return false;
+		if (tile.y > region.y && roi.getBoundsY() < tile.y + overlap)
+			return false;
+		if (tile.x + tile.width < region.x + region.width && roi.getBoundsX() + roi.getBoundsWidth() > tile.x + tile.width - overlap)
+			return false;
+		if (tile.y + tile.height < region.y + region.height && roi.getBoundsY() + roi.getBoundsHeight() > tile.y + tile.height - overlap)
+			return false;
+		return true;
+	}
+
+	private void insert(final List<PathObject> pathObjects) {
+		final List<PathObject> kept = mask == null ? pathObjects : pathObjects.stream()
+				.filter(pathObject -> mask.contains(pathObject.getROI().getCentroidX(), pathObject.getROI().getCentroidY()))
+				.toList();
+		if (kept.isEmpty())
+			return;
+		for (int i = 0; i < kept.size(); i += CellsparseResponseReader.DEFAULT_BATCH_SIZE)
+			sink.accept(kept.subList(i, Math.min(kept.size(), i + CellsparseResponseReader.DEFAULT_BATCH_SIZE)));
+		count.addAndGet(kept.size());
+	}
+
+	private void stitch() {
+		try {
+			monitor.updateStatus("Stitching " + seamObjects.size() + " objects along tile seams", -1);
+			insert(CellsparseSeamStitcher.stitch(new ArrayList<>(seamObjects)));
+			result.complete(count.get());
+		} catch (RuntimeException e) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Shares cancellation with the job, but keeps the status of the job for the progress over all tiles.
+	 * The tile is also cancelled once another tile has failed.
+	 */
+	private class TileMonitor implements CellsparseMonitor {
+
+		@Override
+		public <T> CompletableFuture<T> track(final CompletableFuture<T> future) {
+			inFlight.add(future);
+			future.whenComplete((value, e) -> inFlight.remove(future));
+			if (result.isCompletedExceptionally())
+				future.cancel(true);
+			return monitor.track(future);
+		}
+
+		@Override
+		public void updateStatus(final String message, final double progress) {}
+
+		@Override
+		public boolean isCancelled() {
+			return result.isCompletedExceptionally() || monitor.isCancelled();
+		}
+
+		@Override
+		public CellsparseMetrics getMetrics() {
+			return monitor.getMetrics();
+		}
+
+	}
+
+}
@@ -0,0 +1,278 @@
+package org.elephant.cellsparse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Follows a training job running on the server.
+ * <p>
+ * Servers that report the {@value CellsparseCapabilities#FEATURE_TRAINING_JOBS} feature accept training requests
+ * sent with {@code Prefer: respond-async}. They answer 202 Accepted with the URL of the job in the
+ * {@code Location} header, and the job reports its progress as server-sent events at {@code <job>/events}:
+ * <ul>
+ *   <li>{@code progress}: a JSON object with {@code epoch}, {@code epochs}, {@code step}, {@code steps},
+ *       {@code loss} and {@code throughput} in steps per second, all optional</li>
+ *   <li>{@code done}: the job has finished and its result is available at {@code <job>/result}</li>
+ *   <li>{@code error}: the job has failed, with the message as data</li>
+ * </ul>
+ * If the event stream ends before the job has finished, e.g. because a proxy closed an idle connection, it is
+ * opened again with {@code Last-Event-ID}, up to {@link #MAX_RECONNECTS} times in a row. Cancelling the
+ * returned future deletes the job.
+ */
+class CellsparseTrainingJob {
+
+	private static final Logger logger = LoggerFactory.getLogger(CellsparseTrainingJob.class);
+
+	static final String PREFER_ASYNC = "respond-async";
+
+	/**
+	 * Number of times the event stream is reopened without receiving an event in between.
+	 */
+	static final int MAX_RECONNECTS = 5;
+
+	private final CellsparseHttpClient client;
+	private final URI jobURI;
+	private final CellsparseMonitor monitor;
+	private final Consumer<HttpRequest.Builder> resultHeaders;
+	private final CompletableFuture<HttpResponse<InputStream>> result = new CompletableFuture<>();
+
+	private String lastEventId = null;
+	private int reconnects = 0;
+	private volatile boolean finished = false;
+
+	private CellsparseTrainingJob(
+			final CellsparseHttpClient client,
+			final URI jobURI,
+			final CellsparseMonitor monitor,
+			final Consumer<HttpRequest.Builder> resultHeaders
+	) {
+		this.client = client;
+		this.jobURI = jobURI;
+		this.monitor = monitor;
+		this.resultHeaders = resultHeaders;
+	}
+
+	/**
+	 * Follow an accepted training job until it finishes.
+	 * @param client
+	 * @param endpointURL
+	 * @param accepted the 202 response to the training request
+	 * @param monitor receives the progress of the job
+	 * @param resultHeaders adds the headers of the original request, such as Accept, to the request for the result
+	 * @return a future that completes with the response of the job result, which has the same form as the response
+	 *         to a synchronous training request
+	 */
+	static CompletableFuture<HttpResponse<InputStream>> follow(
+			final CellsparseHttpClient client,
+			final String endpointURL,
+			final HttpResponse<InputStream> accepted,
+			final CellsparseMonitor monitor,
+			final Consumer<HttpRequest.Builder> resultHeaders
+	) {
+		try {
+			accepted.body().close();
+		} catch (IOException e) {
+			logger.debug("Unable to close response: {}", e.getMessage());
+		}
+		final String location = accepted.headers().firstValue("Location").orElse(null);
+		if (location == null)
+			return CompletableFuture.failedFuture(new IOException("Training job accepted without a Location header"));
+		final String jobURL = location.endsWith("/") ? location : location + "/";
+		final CellsparseTrainingJob job = new CellsparseTrainingJob(
+				client, URI.create(endpointURL).resolve(jobURL), monitor, resultHeaders);
+		job.result.whenComplete((response, e) -> {
+			if (e instanceof CancellationException)
+				job.delete();
+		});
+		job.openEvents();
+		return monitor.track(job.result);
+	}
+
+	private void openEvents() {
+		if (result.isDone())
+			return;
+		final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+				.uri(jobURI.resolve("events"))
+				.header("accept", "text/event-stream")
+				.GET();
+		if (lastEventId != null)
+			requestBuilder.header("Last-Event-ID", lastEventId);
+		final EventSubscriber subscriber = new EventSubscriber();
+		// Error pages are not parsed as events; event streams are always UTF-8
+		final HttpResponse.BodyHandler<Void> bodyHandler = responseInfo -> responseInfo.statusCode() == HttpURLConnection.HTTP_OK
+				? HttpResponse.BodySubscribers.fromLineSubscriber(subscriber)
+				: HttpResponse.BodySubscribers.discarding();
+		monitor.track(client.sendAsync(requestBuilder, bodyHandler))
+				.whenComplete((response, e) -> {
+					if (finished || result.isDone())
+						return;
+					if (e != null)
+						result.completeExceptionally(e);
+					else if (response.statusCode() != HttpURLConnection.HTTP_OK)
+						result.completeExceptionally(new CellsparseHttpException(response.statusCode(), "Unable to follow training job " + jobURI));
+					else if (reconnects++ < MAX_RECONNECTS) {
+						logger.debug("Event stream of {} ended, reconnecting", jobURI);
+						openEvents();
+					}
+					else
+						result.completeExceptionally(new IOException("Event stream of training job " + jobURI + " keeps closing"));
+				});
+	}
+
+	private void onEvent(final String event, final String id, final String data) {
+		reconnects = 0;
+		if (id != null)
+			lastEventId = id;
+		switch (event) {
+		case "progress":
+			onProgress(data);
+			break;
+		case "done":
+			finished = true;
+			fetchResult();
+			break;
+		case "error":
+			finished = true;
+			result.completeExceptionally(new IOException("Training job failed: " + data));
+			break;
+		default:
+			logger.trace("Ignoring event {} of {}", event, jobURI);
+		}
+	}
+
+	private void onProgress(final String data) {
+		final JsonObject progress;
+		try {
+			progress = JsonParser.parseString(data).getAsJsonObject();
+		} catch (RuntimeException e) {
+			logger.debug("Invalid progress event from {}: {}", jobURI, data);
+			return;
+		}
+		final int epoch = getInt(progress, "epoch");
+		final int epochs = getInt(progress, "epochs");
+		final int step = getInt(progress, "step");
+		final int steps = getInt(progress, "steps");
+		final StringBuilder message = new StringBuilder("Training");
+		if (epoch > 0)
+			message.append(", epoch ").append(epoch).append(epochs > 0 ? "/" + epochs : "");
+		if (step > 0)
+			message.append(", step ").append(step).append(steps > 0 ? "/" + steps : "");
+		if (progress.has("loss"))
+			message.append(String.format(", loss %.4g", progress.get("loss").getAsDouble()));
+		if (progress.has("throughput"))
+			message.append(String.format(", %.1f steps/s", progress.get("throughput").getAsDouble()));
+		final double fraction = epoch > 0 && epochs > 0 && steps > 0
+				? ((epoch - 1) * steps + Math.max(0, step)) / (double) (epochs * steps)
+				: -1;
+		monitor.updateStatus(message.toString(), Math.min(1.0, fraction));
+	}
+
+	private static int getInt(final JsonObject object, final String name) {
+		final JsonElement element = object.get(name);
+		return element == null || element.isJsonNull() ? -1 : element.getAsInt();
+	}
+
+	private void fetchResult() {
+		monitor.updateStatus("Receiving results", -1);
+		final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+				.uri(jobURI.resolve("result"))
+				.GET();
+		resultHeaders.accept(requestBuilder);
+		monitor.track(client.sendAsync(requestBuilder, HttpResponse.BodyHandlers.ofInputStream()))
+				.whenComplete((response, e) -> {
+					if (e != null)
+						result.completeExceptionally(e);
+					else
+						result.complete(response);
+				});
+	}
+
+	private void delete() {
+		final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder()
+				.uri(jobURI)
+				.DELETE();
+		client.sendAsync(requestBuilder, HttpResponse.BodyHandlers.discarding())
+				.whenComplete((response, e) -> {
+					if (e != null)
+						logger.debug("Unable to delete training job {}: {}", jobURI, e.getMessage());
+				});
+	}
+
+	/**
+	 * Parses the lines of a server-sent event stream.
+	 */
+	private class EventSubscriber implements Flow.Subscriber<String> {
+
+		private Flow.Subscription subscription;
+		private String event = null;
+		private String id = null;
+		private StringBuilder data = null;
+
+		@Override
+		public void onSubscribe(final Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(Long.MAX_VALUE);
+		}
+
+		@Override
+		public void onNext(final String line) {
+			if (finished || result.isDone()) {
+				subscription.cancel();
+				return;
+			}
+			if (line.isEmpty()) {
+				if (data != null)
+					onEvent(event == null ? "message" : event, id, data.toString());
+				event = null;
+				data = null;
+				return;
+			}
+			if (line.startsWith(":"))
+				return;
+			final int colon = line.indexOf(':');
+			final String field = colon < 0 ? line : line.substring(0, colon);
+			String value = colon < 0 ? "" : line.substring(colon + 1);
+			if (value.startsWith(" "))
+				value = value.substring(1);
+			switch (field) {
+			case "event":
+				event = value;
+				break;
+			case "id":
+				id = value;
+				break;
+			case "data":
+				if (data == null)
+					data = new StringBuilder(value);
+				else
+					data.append('\n').append(value);
+				break;
+			default:
+				break;
+			}
+		}
+
+		@Override
+		public void onError(final Throwable throwable) {}
+
+		@Override
+		public void onComplete() {}
+
+	}
+
+}
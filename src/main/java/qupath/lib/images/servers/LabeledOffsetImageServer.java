@@ -32,9 +32,14 @@ import java.awt.image.DataBufferByte;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -42,6 +47,8 @@ import java.util.Map;
 import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -61,6 +68,8 @@ import qupath.lib.objects.PathObjectFilter;
 import qupath.lib.objects.PathObjectTools;
 import qupath.lib.objects.classes.PathClass;
 import qupath.lib.objects.hierarchy.PathObjectHierarchy;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyEvent;
+import qupath.lib.objects.hierarchy.events.PathObjectHierarchyListener;
 import qupath.lib.regions.ImageRegion;
 import qupath.lib.regions.RegionRequest;
 import qupath.lib.roi.RoiTools;
@@ -90,10 +99,22 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 	private static final ColorModel COLOR_MODEL_GRAY_UINT16 = new BufferedImage(1, 1, BufferedImage.TYPE_USHORT_GRAY).getColorModel();
 	
 	private PathObjectHierarchy hierarchy;
+	
+	/**
+	 * Path of the image the labels are rendered for.
+	 */
+	private String serverPath;
+	
+	private double downsample;
 		
 	private ColorModel colorModel;
 	private boolean multichannelOutput;
 	
+	/**
+	 * Offset added to the instance labels.
+	 */
+	private int offset;
+	
 	private LabeledServerParameters params;
 	
 	/**
@@ -108,11 +129,14 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 		super();
 		
 		this.multichannelOutput = multichannelOutput;
+		this.offset = offset;
 		this.hierarchy = imageData.getHierarchy();
 		
 		this.params = params;
 		
 		var server = imageData.getServer();
+		this.serverPath = server.getPath();
+		this.downsample = downsample;
 		
 		// Generate mapping for labels; it is permissible to have multiple classes for the same labels, in which case a derived class will be used
 		Map<Integer, PathClass> classificationLabels = new TreeMap<>();
@@ -121,18 +145,25 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 					.filter(params.objectFilter)
 					.collect(Collectors.toCollection(ArrayList::new));
 			// Shuffle the objects, this helps when using grayscale lookup tables, since labels for neighboring objects are otherwise very similar
-			if (params.shuffleInstanceLabels)
+			if (params.shuffleInstanceLabels && params.fixedInstanceLabels == null)
 				Collections.shuffle(pathObjects, new Random(100L));
 			Integer count = multichannelOutput ? 0 : offset + 1;
 			instanceClassMap = new HashMap<>();
 			instanceClassMapInverse = new HashMap<>();
 			for (var pathObject : pathObjects) {
-				var pathClass = instanceLabelToClass(count);
-				instanceClassMap.put(pathObject, count);
-				instanceClassMapInverse.put(count, pathObject);
-				classificationLabels.put(count, pathClass);
-				params.labelColors.put(count, pathClass.getColor());
-				params.labels.put(pathClass, count);
+				Integer label = count;
+				if (params.fixedInstanceLabels != null) {
+					// Objects without a fixed label are not drawn
+					label = params.fixedInstanceLabels.get(pathObject);
+					if (label == null)
+						continue;
+				}
+				var pathClass = instanceLabelToClass(label);
+				instanceClassMap.put(pathObject, label);
+				instanceClassMapInverse.put(label, pathObject);
+				classificationLabels.put(label, pathClass);
+				params.labelColors.put(label, pathClass.getColor());
+				params.labels.put(pathClass, label);
 				count++;
 			}
 		} else {
@@ -146,6 +177,15 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 			}
 		}
 		
+		for (var entry : params.baseLabels.entrySet()) {
+			var pathClass = getPathClass(entry.getKey());
+			var label = entry.getValue();
+			var previousClass = classificationLabels.put(label, pathClass);
+			if (previousClass != null && previousClass != PathClass.NULL_CLASS) {
+				classificationLabels.put(label, PathClass.getInstance(previousClass, pathClass.getName(), null));
+			}
+		}
+		
 		for (var entry : params.boundaryLabels.entrySet()) {
 			var pathClass = getPathClass(entry.getKey());
 			var label = entry.getValue();
@@ -217,7 +257,7 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 			}
 			
 			if (params.grayscaleLut) {
-				if (maxLabel < 255)
+				if (maxLabel <= 255)
 					colorModel = COLOR_MODEL_GRAY_UINT8;
 				else if (maxLabel < 65536){
 					colorModel = COLOR_MODEL_GRAY_UINT16;
@@ -271,6 +311,14 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 	}
 	
 	
+	/**
+	 * @param pathObject
+	 * @return true if the object is an annotation painted with one of the base labels
+	 */
+	private boolean isBaseObject(PathObject pathObject) {
+		return !params.baseLabels.isEmpty() && pathObject.isAnnotation() && params.baseLabels.containsKey(getPathClass(pathObject.getPathClass()));
+	}
+	
 	private static PathClass instanceLabelToClass(Integer label) {
 		if (label == null)
 			return null;
@@ -341,6 +389,7 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 		
 		private boolean createInstanceLabels = false;
 		private boolean shuffleInstanceLabels = true; // Only if using instance labels
+		private Map<PathObject, Integer> fixedInstanceLabels = null; // Only if using instance labels
 		
 		private int maxOutputChannelLimit = 256;
 		
@@ -349,6 +398,7 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 		private float lineThickness = 1.0f;
 		private Map<PathClass, Integer> labels = new LinkedHashMap<>();
 		private Map<PathClass, Integer> boundaryLabels = new LinkedHashMap<>();
+		private Map<PathClass, Integer> baseLabels = new LinkedHashMap<>(); // Painted beneath all other labels
 		private Map<Integer, Integer> labelColors = new LinkedHashMap<>();
 		
 		LabeledServerParameters() {
@@ -362,12 +412,14 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 			this.objectFilter = params.objectFilter;
 			this.labels = new LinkedHashMap<>(params.labels);
 			this.boundaryLabels = new LinkedHashMap<>(params.boundaryLabels);
+			this.baseLabels = new LinkedHashMap<>(params.baseLabels);
 			this.labelColors = new LinkedHashMap<>(params.labelColors);
 			this.createInstanceLabels = params.createInstanceLabels;
 			this.maxOutputChannelLimit = params.maxOutputChannelLimit;
 			this.roiFunction = params.roiFunction;
 			this.grayscaleLut = params.grayscaleLut;
 			this.shuffleInstanceLabels = params.shuffleInstanceLabels;
+			this.fixedInstanceLabels = params.fixedInstanceLabels;
 		}
 		
 	}
@@ -570,6 +622,20 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 			return this;
 		}
 		
+		/**
+		 * Request that unique labels are used for all objects, taking the label of each object from a map 
+		 * rather than numbering the objects. This keeps labels stable while objects are added or removed.
+		 * Objects selected by the filter that are not in the map are not drawn, and the offset is ignored.
+		 * @param instanceLabels map of objects to their labels; it is copied
+		 * @return
+		 * @see #useInstanceLabels()
+		 */
+		public Builder useInstanceLabels(Map<PathObject, Integer> instanceLabels) {
+			params.createInstanceLabels = true;
+			params.fixedInstanceLabels = new HashMap<>(instanceLabels);
+			return this;
+		}
+		
 		
 		/**
 		 * If true, the output image consists of multiple binary images concatenated as different channels, 
@@ -680,6 +746,19 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 			return addLabel(params.labels, pathClass, label, color);
 		}
 		
+		/**
+		 * Add a label painted beneath all other labels for annotations with the given classname.
+		 * This makes it possible to combine class labels with instance labels in a single image, e.g. a background 
+		 * class beneath the instances selected with {@link #useInstanceLabels()}. The annotations do not need to 
+		 * pass the object filter. Base labels are only supported for single-channel output.
+		 * @param pathClassName
+		 * @param label the indexed image pixel value for the given classification
+		 * @return
+		 */
+		public Builder addBaseLabel(String pathClassName, int label) {
+			return addLabel(params.baseLabels, PathClass.fromString(pathClassName), label, null);
+		}
+		
 		/**
 		 * Add a single label for objects that are unclassified, where the label represents the integer label used for 
 		 * annotations that have no classification set.
@@ -803,11 +882,155 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 	}
 	
 	/**
-	 * Returns a UUID.
+	 * Returns an ID derived from the image, the render parameters and the version of the hierarchy.
+	 * <p>
+	 * Servers built for the same image with the same parameters from an unchanged hierarchy share their ID, 
+	 * so that the tiles of one can be reused from the tile cache by the next. Any change of the hierarchy 
+	 * changes the ID. The version is only valid within a session; use {@link #getRegionKey(ImageRegion)} 
+	 * to identify rendered labels across sessions.
 	 */
 	@Override
 	protected String createID() {
-		return UUID.randomUUID().toString();
+		var digest = createDigest();
+		digest.update(getRenderKey().getBytes(StandardCharsets.UTF_8));
+		digest.update(HierarchyVersion.get(hierarchy).getBytes(StandardCharsets.UTF_8));
+		return getClass().getSimpleName() + ": " + serverPath + " " + toHex(digest.digest());
+	}
+	
+	/**
+	 * Counts the changes of a hierarchy.
+	 */
+	private static class HierarchyVersion implements PathObjectHierarchyListener {
+		
+		private static final Map<PathObjectHierarchy, HierarchyVersion> versions = new WeakHashMap<>();
+		
+		// Distinguishes hierarchies of the same image, e.g. if it is opened twice
+		private final String id = UUID.randomUUID().toString();
+		private final AtomicLong version = new AtomicLong();
+		
+		/**
+		 * @param hierarchy
+		 * @return a token that changes whenever the hierarchy changes
+		 */
+		private static String get(PathObjectHierarchy hierarchy) {
+			HierarchyVersion hierarchyVersion;
+			synchronized (versions) {
+				hierarchyVersion = versions.get(hierarchy);
+				if (hierarchyVersion == null) {
+					hierarchyVersion = new HierarchyVersion();
+					hierarchy.addListener(hierarchyVersion);
+					versions.put(hierarchy, hierarchyVersion);
+				}
+			}
+			return hierarchyVersion.id + ":" + hierarchyVersion.version.get();
+		}
+		
+		@Override
+		public void hierarchyChanged(PathObjectHierarchyEvent event) {
+			if (!event.isChanging())
+				version.incrementAndGet();
+		}
+		
+	}
+	
+	/**
+	 * Get a key that identifies the image and the parameters the labels are rendered with, but not the objects.
+	 * Together with {@link #getRegionKey(ImageRegion)}, it identifies the labels rendered for a region.
+	 * @return
+	 */
+	public String getRenderKey() {
+		var sb = new StringBuilder(serverPath)
+				.append("|downsample=").append(downsample)
+				.append("|tile=").append(getMetadata().getPreferredTileWidth()).append("x").append(getMetadata().getPreferredTileHeight())
+				.append("|pixelType=").append(getMetadata().getPixelType())
+				.append("|multichannel=").append(multichannelOutput)
+				.append("|grayscale=").append(params.grayscaleLut)
+				.append("|lineThickness=").append(params.lineThickness)
+				.append("|unannotated=").append(params.unannotatedClass)
+				.append("|boundaries=").append(params.boundaryLabels)
+				.append("|base=").append(params.baseLabels);
+		// Which label each object gets depends on the offset, the shuffle and the fixed labels, but not on the region
+		if (params.createInstanceLabels)
+			sb.append("|instances")
+				.append("|offset=").append(offset)
+				.append("|shuffle=").append(params.shuffleInstanceLabels)
+				.append("|fixed=").append(getFixedLabelsKey());
+		else
+			sb.append("|labels=").append(params.labels).append("|colors=").append(params.labelColors);
+		return sb.toString();
+	}
+	
+	/**
+	 * @return a hash of the fixed instance labels, or null if they are not fixed
+	 */
+	private String getFixedLabelsKey() {
+		if (params.fixedInstanceLabels == null)
+			return null;
+		var entries = new ArrayList<>(params.fixedInstanceLabels.entrySet());
+		entries.sort(Comparator.comparing(entry -> entry.getKey().getID()));
+		var digest = createDigest();
+		for (var entry : entries)
+			digest.update((entry.getKey().getID() + "=" + entry.getValue() + "|").getBytes(StandardCharsets.UTF_8));
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Get a hash of the objects painted within a region, their ROIs and their labels.
+	 * The region is padded by the line thickness, so that lines drawn from outside the region are included.
+	 * Regions with the same key are rendered identically by servers with the same {@link #getRenderKey()}.
+	 * @param region
+	 * @return
+	 */
+	public String getRegionKey(ImageRegion region) {
+		int pad = (int)Math.ceil(params.lineThickness * downsample);
+		var padded = ImageRegion.createInstance(region.getX() - pad, region.getY() - pad, 
+				region.getWidth() + 2 * pad, region.getHeight() + 2 * pad, region.getZ(), region.getT());
+		var pathObjects = new ArrayList<>(hierarchy.getObjectsForRegion(null, padded, null));
+		// The hierarchy returns the objects in no particular order, which changes between sessions
+		pathObjects.sort(Comparator.comparing(PathObject::getID));
+		var digest = createDigest();
+		updateDigest(digest, pathObjects);
+		return toHex(digest.digest());
+	}
+	
+	/**
+	 * Add the objects that are painted, with their labels and ROIs, to a digest, in the order they are given.
+	 */
+	private void updateDigest(MessageDigest digest, Collection<PathObject> pathObjects) {
+		for (var pathObject : pathObjects) {
+			boolean isBase = isBaseObject(pathObject);
+			if (!isBase && !params.objectFilter.test(pathObject))
+				continue;
+			var pathClass = isBase ? getPathClass(pathObject.getPathClass()) : getPathClass(pathObject);
+			var roi = isBase ? pathObject.getROI() : params.roiFunction.apply(pathObject);
+			digest.update((isBase + "|" + pathClass + "|" + (roi == null ? null : roi.getRoiName() + "|" + roi.getZ() + "|" + roi.getT()) + "|")
+					.getBytes(StandardCharsets.UTF_8));
+			if (roi == null)
+				continue;
+			var points = roi.getAllPoints();
+			var buffer = ByteBuffer.allocate(points.size() * 2 * Double.BYTES);
+			for (var p : points) {
+				buffer.putDouble(p.getX());
+				buffer.putDouble(p.getY());
+			}
+			digest.update(buffer.array());
+		}
+	}
+	
+	private static MessageDigest createDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String toHex(byte[] digest) {
+		var sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest)
+			sb.append(String.format("%02x", b));
+		return sb.toString();
 	}
 	
 	/**
@@ -842,8 +1065,8 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 	 */
 	public List<PathObject> getObjectsForRegion(ImageRegion region) {
 		return hierarchy.getObjectsForRegion(null, region, null).stream()
-				.filter(params.objectFilter)
-				.filter(p -> params.createInstanceLabels || params.labels.containsKey(p.getPathClass()) || params.boundaryLabels.containsKey(p.getPathClass()))
+				.filter(p -> isBaseObject(p) || (params.objectFilter.test(p) && 
+						(params.createInstanceLabels || params.labels.containsKey(p.getPathClass()) || params.boundaryLabels.containsKey(p.getPathClass()))))
 				.collect(Collectors.toList());
 	}
 	
@@ -882,7 +1105,7 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 		
 		var pathObjects = hierarchy.getObjectsForRegion(null, tileRequest.getRegionRequest(), null)
 				.stream()
-				.filter(params.objectFilter)
+				.filter(p -> params.objectFilter.test(p) || isBaseObject(p))
 				.collect(Collectors.toList());
 		BufferedImage img;
 		if (multichannelOutput) {
@@ -1027,6 +1250,35 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 			BasicStroke stroke = new BasicStroke((float)(params.lineThickness * tileRequest.getDownsample()));
 			g2d.setStroke(stroke);
 			
+			// Base labels are painted first, so that all other labels are drawn on top of them
+			for (var entry : params.baseLabels.entrySet()) {
+				var pathClass = getPathClass(entry.getKey());
+				int c = entry.getValue();
+				color = getColorForLabel(c, doRGB);
+				g2d.setColor(color);
+				for (var pathObject : pathObjects) {
+					if (!isBaseObject(pathObject) || getPathClass(pathObject.getPathClass()) != pathClass)
+						continue;
+					var roi = params.roiFunction.apply(pathObject);
+					if (roi.isArea())
+						g2d.fill(roi.getShape());
+					else if (roi.isLine())
+						g2d.draw(roi.getShape());
+					else if (roi.isPoint()) {
+						for (var p : roi.getAllPoints()) {
+							int x = (int)((p.getX() - request.getX()) / downsampleFactor);
+							int y = (int)((p.getY() - request.getY()) / downsampleFactor);
+							if (x >= 0 && x < width && y >= 0 && y < height) {
+								if (doRGB)
+									img.setRGB(x, y, color.getRGB());
+								else
+									raster.setSample(x, y, 0, c);
+							}
+						}
+					}
+				}
+			}
+			
 			// We want to order consistently to avoid confusing overlaps
 			for (var entry : params.labels.entrySet()) {
 				var pathClass = getPathClass(entry.getKey());
@@ -1041,6 +1293,7 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 				} else
 					toDraw = pathObjects
 									.stream()
+									.filter(params.objectFilter)
 									.filter(p -> getPathClass(p) == pathClass)
 									.collect(Collectors.toList());
 				
@@ -1071,7 +1324,7 @@ public class LabeledOffsetImageServer extends AbstractTileableImageServer implem
 				for (var pathObject : pathObjects) {
 //					if (pathObject.getPathClass() == pathClass) {
 					var pathClass = getPathClass(pathObject);
-					if (params.labels.containsKey(pathClass)) {// && !PathClassTools.isIgnoredClass(pathObject.getPathClass())) {
+					if (params.labels.containsKey(pathClass) && params.objectFilter.test(pathObject)) {// && !PathClassTools.isIgnoredClass(pathObject.getPathClass())) {
 						var roi = params.roiFunction.apply(pathObject);
 						if (roi.isArea()) {
 							g2d.setColor(color);
@@ -0,0 +1,49 @@
+package org.elephant.cellsparse;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.objects.PathObject;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+class CellsparseSeamStitcherTest {
+
+	private static final Rectangle REGION = new Rectangle(0, 0, 180, 100);
+	private static final Rectangle TILE_A = new Rectangle(0, 0, 100, 100);
+	private static final Rectangle TILE_B = new Rectangle(80, 0, 100, 100);
+
+	private static PathObject createCell(final double x, final double y, final double width, final double height) {
+		return PathObjects.createAnnotationObject(ROIs.createRectangleROI(x, y, width, height, ImagePlane.getDefaultPlane()));
+	}
+
+	@Test
+	void testCellCrossingSeamIsKeptOnce() {
+		final PathObject cutByA = createCell(85, 10, 14, 20);
+		final PathObject completeInB = createCell(85, 10, 25, 20);
+		final List<PathObject> stitched = CellsparseSeamStitcher.stitch(List.of(
+				new CellsparseSeamStitcher.TileObject(cutByA, TILE_A, REGION),
+				new CellsparseSeamStitcher.TileObject(completeInB, TILE_B, REGION)));
+		assertEquals(List.of(completeInB), stitched);
+	}
+
+	@Test
+	void testCellsOfSameTileAreNotMergedThroughAnotherTile() {
+		// Two neighbouring cells in tile A, found as a single object in tile B
+		final PathObject firstInA = createCell(82, 10, 8, 20);
+		final PathObject secondInA = createCell(91, 10, 8, 20);
+		final PathObject bothInB = createCell(82, 10, 17, 20);
+		final List<PathObject> stitched = CellsparseSeamStitcher.stitch(List.of(
+				new CellsparseSeamStitcher.TileObject(firstInA, TILE_A, REGION),
+				new CellsparseSeamStitcher.TileObject(secondInA, TILE_A, REGION),
+				new CellsparseSeamStitcher.TileObject(bothInB, TILE_B, REGION)));
+		// The second cell of tile A is cut by its border, and tile B found it whole as part of the single object
+		assertEquals(List.of(bothInB), stitched);
+	}
+
+}
@@ -0,0 +1,45 @@
+package qupath.lib.images.servers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.jupiter.api.Test;
+
+import qupath.lib.images.ImageData;
+import qupath.lib.objects.PathObjects;
+import qupath.lib.regions.ImagePlane;
+import qupath.lib.roi.ROIs;
+
+class LabeledOffsetImageServerTest {
+
+	private static ImageData<BufferedImage> createImageData() {
+		final ImageData<BufferedImage> imageData = new ImageData<>(
+				new WrappedBufferedImageServer("test", new BufferedImage(64, 64, BufferedImage.TYPE_BYTE_GRAY)));
+		imageData.getHierarchy().addObject(PathObjects.createAnnotationObject(
+				ROIs.createRectangleROI(8, 8, 16, 16, ImagePlane.getDefaultPlane())));
+		return imageData;
+	}
+
+	private static LabeledOffsetImageServer createServer(final ImageData<BufferedImage> imageData, final int offset) {
+		return new LabeledOffsetImageServer.Builder(imageData)
+				.useAnnotations()
+				.useInstanceLabels()
+				.offset(offset)
+				.build();
+	}
+
+	@Test
+	void testSameParametersShareTheirID() {
+		final ImageData<BufferedImage> imageData = createImageData();
+		assertEquals(createServer(imageData, 1).getPath(), createServer(imageData, 1).getPath());
+	}
+
+	@Test
+	void testInstanceOffsetChangesTheID() {
+		final ImageData<BufferedImage> imageData = createImageData();
+		assertNotEquals(createServer(imageData, 0).getPath(), createServer(imageData, 1).getPath());
+	}
+
+}